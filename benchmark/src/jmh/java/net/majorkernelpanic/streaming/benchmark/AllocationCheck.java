@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
+import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
+import net.majorkernelpanic.streaming.rtp.AMRNBPacketizer;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.H263Packetizer;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.util.Log;
+
+/**
+ * Measures the bytes allocated per frame and per packet by the packetizers and by the Thread of 
+ * the RtpSocket, and per picture by the NV21Convertor, with the allocation counters of the threads, and fails if a component allocates 
+ * more than its budget in the steady state.
+ * <p>
+ * Every component runs a short stream and a long one, the difference between the two is what the 
+ * frames cost once the stream is running: what is allocated when a stream starts or stops does not count. 
+ * ART does not remove allocations the way the escape analysis of HotSpot does, so run it with 
+ * -XX:-DoEscapeAnalysis, as the checkAllocations task does.
+ */
+public class AllocationCheck {
+
+	/** Number of frames of the short stream, the long one has twice as many. */
+	private final static int FRAMES = 1000;
+
+	/** Number of times each component runs before it is measured, for the JIT to settle. */
+	private final static int WARMUP = 20;
+
+	private final static int FIFO_CAPACITY = 512;
+
+	private final static com.sun.management.ThreadMXBean sThreads = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	/** A packetizer fed with a canned stream, or anything else that outputs RTP packets through an RtpSocket. */
+	private static abstract class Component {
+
+		final String name;
+
+		/** 
+		 * Bytes that a frame may allocate in the steady state, both threads included. 
+		 * What is allocated when a stream starts varies a little, less than a byte per frame is not counted.
+		 */
+		final long budget;
+
+		Component(String name, long budget) {
+			this.name = name;
+			this.budget = budget;
+		}
+
+		/** Prepares a stream of that many frames, what is allocated here does not count. */
+		abstract void prepare(int frames);
+
+		/** Packetizes the stream prepared, returns once it has all been handed to the socket. */
+		abstract void run() throws Exception;
+
+		/** The socket the component sends its packets with, if any. */
+		abstract RtpSocket socket();
+
+	}
+
+	private static abstract class Packetizer extends Component {
+
+		final AbstractPacketizer packetizer;
+
+		Packetizer(String name, long budget, AbstractPacketizer packetizer) {
+			super(name, budget);
+			this.packetizer = packetizer;
+			pin(packetizer.getRtpSocket());
+		}
+
+		@Override
+		void run() {
+			((Runnable) packetizer).run();
+		}
+
+		@Override
+		RtpSocket socket() {
+			return packetizer.getRtpSocket();
+		}
+
+	}
+
+	/** Feeds a packetizer with the output buffers of a MediaCodec. */
+	private static class Codec extends Packetizer {
+
+		final MediaCodec codec;
+		MediaCodecFrameSource source;
+		int frames;
+
+		final Runnable end = new Runnable() {
+			@Override
+			public void run() {
+				source.close();
+			}
+		};
+
+		Codec(String name, long budget, AbstractPacketizer packetizer, MediaCodec codec) {
+			super(name, budget, packetizer);
+			this.codec = codec;
+		}
+
+		@Override
+		void prepare(int frames) {
+			this.frames = frames;
+		}
+
+		@Override
+		void run() {
+			codec.replay(frames, end);
+			source = new MediaCodecFrameSource(codec);
+			packetizer.setFrameSource(source);
+			super.run();
+		}
+
+	}
+
+	/** Feeds a packetizer with a stream in a byte array, like the ones the MediaRecorder writes. */
+	private static abstract class Recorder extends Packetizer {
+
+		Recorder(String name, long budget, AbstractPacketizer packetizer) {
+			super(name, budget, packetizer);
+		}
+
+		abstract byte[] stream(int frames);
+
+		@Override
+		void prepare(int frames) {
+			packetizer.setInputStream(new ByteArrayInputStream(stream(frames)));
+		}
+
+	}
+
+	/** Sends access units of 8 packets through an RtpSocket to a TCP destination. */
+	private static class Socket extends Component {
+
+		final RtpSocket socket = new RtpSocket();
+		int frames;
+		long time = 0;
+
+		Socket(String name, long budget) {
+			super(name, budget);
+			pin(socket);
+			socket.setOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) {}
+				@Override
+				public void write(byte[] b, int off, int len) {}
+			}, (byte) 0);
+		}
+
+		@Override
+		void prepare(int frames) {
+			this.frames = frames;
+		}
+
+		@Override
+		void run() throws IOException, InterruptedException {
+			for (int i=0;i<frames;i++) {
+				for (int j=0;j<8;j++) {
+					socket.requestByteBuffer();
+					socket.updateTimestamp(time);
+					if (j == 7) socket.markNextPacket();
+					socket.stageBuffer(1200);
+				}
+				socket.commitBuffers();
+				time += 33333333;
+			}
+		}
+
+		@Override
+		RtpSocket socket() {
+			return socket;
+		}
+
+	}
+
+	/** Converts pictures of the camera for an encoder that expects the planar format, with some padding after the Y plane. */
+	private static class Convertor extends Component {
+
+		final NV21Convertor convertor = new NV21Convertor();
+		final byte[] picture;
+		final ByteBuffer buffer;
+		int frames;
+
+		Convertor(String name, long budget, int width, int height) {
+			super(name, budget);
+			convertor.setSize(width, height);
+			convertor.setEncoderColorFormat(CodecCapabilities.COLOR_FormatYUV420Planar);
+			convertor.setYPadding(1024);
+			picture = Streams.nv21(width, height);
+			buffer = ByteBuffer.allocateDirect(convertor.getBufferSize()+1024);
+		}
+
+		@Override
+		void prepare(int frames) {
+			this.frames = frames;
+		}
+
+		@Override
+		void run() {
+			for (int i=0;i<frames;i++) {
+				buffer.clear();
+				convertor.convert(picture, buffer);
+			}
+		}
+
+		@Override
+		RtpSocket socket() {
+			return null;
+		}
+
+	}
+
+	/** What a run of a component allocated. */
+	private static class Sample {
+		long bytes, packets;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logger.setLevel(Log.ASSERT);
+
+		List<Component> components = new ArrayList<Component>();
+		components.add(new Codec("H264Packetizer, single NAL units", 0, 
+				new H264Packetizer(), new MediaCodec(Streams.annexB(50, 1000), 33333)));
+		components.add(new Codec("H264Packetizer, FU-A", 0, 
+				new H264Packetizer(), new MediaCodec(Streams.annexB(50, 30000), 33333)));
+		components.add(new Codec("AACLATMPacketizer", 0, 
+				new AACLATMPacketizer(), new MediaCodec(Streams.aac(50, 371), 23220)));
+		components.add(new Recorder("AACADTSPacketizer", 0, new AACADTSPacketizer()) {
+			@Override
+			byte[] stream(int frames) {
+				return Streams.adts(frames, 364);
+			}
+		});
+		components.add(new Recorder("AMRNBPacketizer", 0, new AMRNBPacketizer()) {
+			@Override
+			byte[] stream(int frames) {
+				return Streams.amr(frames);
+			}
+		});
+		components.add(new Recorder("H263Packetizer", 0, new H263Packetizer()) {
+			@Override
+			byte[] stream(int frames) {
+				return Streams.h263(frames, 3000);
+			}
+		});
+		components.add(new Socket("RtpSocket, TCP destination", 0));
+		components.add(new Convertor("NV21Convertor, 640x480", 0, 640, 480));
+
+		boolean failed = false;
+		System.out.println(String.format("%-36s %12s %12s %8s", "", "bytes/frame", "bytes/packet", "budget"));
+		for (Component component : components) {
+			for (int i=0;i<WARMUP;i++) measure(component, FRAMES/10);
+			Sample shortRun = measure(component, FRAMES);
+			Sample longRun = measure(component, 2*FRAMES);
+			long bytes = longRun.bytes-shortRun.bytes;
+			long packets = longRun.packets-shortRun.packets;
+			double perFrame = (double) bytes/FRAMES, perPacket = packets>0 ? (double) bytes/packets : 0;
+			boolean over = perFrame>=component.budget+1;
+			failed |= over;
+			System.out.println(String.format("%-36s %12.1f %12.1f %8d%s", 
+					component.name, perFrame, perPacket, component.budget, over ? "  OVER BUDGET" : ""));
+			if (component.socket() != null) component.socket().close();
+		}
+		if (failed) {
+			System.err.println("Some components allocate more than their budget in the steady state.");
+			System.exit(1);
+		}
+	}
+
+	/** Runs the component and returns what both its thread and the Thread of its socket allocated. */
+	private static Sample measure(Component component, int frames) throws Exception {
+		Sample sample = new Sample();
+		RtpSocket socket = component.socket();
+		component.prepare(frames);
+		if (socket == null) {
+			long before = sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			component.run();
+			sample.bytes = sThreads.getThreadAllocatedBytes(Thread.currentThread().getId())-before;
+			return sample;
+		}
+		Thread sender = sender(socket);
+		long sent = socket.getMetrics().counter("packets.sent").get();
+		long before = sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long senderBefore = sender != null ? sThreads.getThreadAllocatedBytes(sender.getId()) : 0;
+		component.run();
+		long after = sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		drain(socket);
+		if (sender == null || sender != sender(socket)) {
+			// The Thread of the socket started during the run, the next run will count it
+			sample.bytes = Long.MAX_VALUE/4;
+		} else {
+			sample.bytes = after-before+sThreads.getThreadAllocatedBytes(sender.getId())-senderBefore;
+		}
+		sample.packets = socket.getMetrics().counter("packets.sent").get()-sent;
+		return sample;
+	}
+
+	/** 
+	 * The FIFO of the socket grows when the packetizer outruns the Thread of the socket, which it always
+	 * does here. It has a fixed capacity so that those resizes, that do not happen once a stream has 
+	 * found its bitrate, are not counted.
+	 */
+	private static void pin(RtpSocket socket) {
+		Streams.unpace(socket);
+		socket.setBufferBounds(FIFO_CAPACITY, FIFO_CAPACITY);
+	}
+
+	/** Waits until the Thread of the socket has sent every packet of the FIFO. */
+	private static void drain(RtpSocket socket) throws InterruptedException {
+		while (socket.getFifo().size()>0) Thread.sleep(1);
+		Thread.sleep(10);
+	}
+
+	/** The Thread of the socket is private, the harness gets it by reflection. */
+	private static Thread sender(RtpSocket socket) throws ReflectiveOperationException {
+		Field field = RtpSocket.class.getDeclaredField("mThread");
+		field.setAccessible(true);
+		return (Thread) field.get(socket);
+	}
+
+}
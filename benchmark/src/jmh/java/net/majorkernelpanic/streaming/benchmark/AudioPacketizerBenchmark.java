@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
+import net.majorkernelpanic.streaming.rtp.AMRNBPacketizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.util.Log;
+
+/** Packetizes one second of AAC in ADTS frames and one second of AMR-NB, from the InputStream to the FIFO of the RTP socket. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AudioPacketizerBenchmark {
+
+	@State(Scope.Thread)
+	public static class Aac {
+
+		AACADTSPacketizer packetizer;
+		byte[] stream;
+
+		@Setup
+		public void setup() {
+			Logger.setLevel(Log.ASSERT);
+			// 128 kbit/s at 44.1 kHz, 1024 samples per frame
+			stream = Streams.adts(44100/1024, 128000/8*1024/44100);
+			packetizer = new AACADTSPacketizer();
+			packetizer.setSamplingRate(44100);
+			Streams.unpace(packetizer.getRtpSocket());
+		}
+
+		@TearDown
+		public void tearDown() {
+			packetizer.getRtpSocket().close();
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Amr {
+
+		AMRNBPacketizer packetizer;
+		byte[] stream;
+
+		@Setup
+		public void setup() {
+			Logger.setLevel(Log.ASSERT);
+			// 20 ms per frame
+			stream = Streams.amr(50);
+			packetizer = new AMRNBPacketizer();
+			Streams.unpace(packetizer.getRtpSocket());
+		}
+
+		@TearDown
+		public void tearDown() {
+			packetizer.getRtpSocket().close();
+		}
+
+	}
+
+	@Benchmark
+	public void aacAdts(Aac state) {
+		state.packetizer.setInputStream(new ByteArrayInputStream(state.stream));
+		state.packetizer.run();
+	}
+
+	@Benchmark
+	public void amrNb(Amr state) {
+		state.packetizer.setInputStream(new ByteArrayInputStream(state.stream));
+		state.packetizer.run();
+	}
+
+}
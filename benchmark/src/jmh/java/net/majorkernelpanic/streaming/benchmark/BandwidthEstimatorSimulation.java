@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.BandwidthEstimator;
+import android.util.Log;
+
+/**
+ * Runs the {@link BandwidthEstimator} against a simulated bottleneck whose capacity drops and
+ * recovers, and prints the target bitrate, the queuing delay, and for every step of the capacity, 
+ * the time the target bitrate took to go under it with the queue drained, the worst queuing delay 
+ * and the share of the capacity used.
+ * The bottleneck is a fluid FIFO updated every {@link BandwidthEstimator#UPDATE_INTERVAL} ms, 
+ * like the Thread of the RtpSocket does.
+ */
+public class BandwidthEstimatorSimulation {
+
+	/** Times in ms at which the capacity of the bottleneck changes, and the new capacities in bit/s. */
+	private final static long[][] SCRIPT = {
+		{0, 3000000},
+		{10000, 800000},
+		{30000, 2500000},
+		{45000, 400000},
+		{60000, 4000000},
+		{75000, 0},
+	};
+
+	private static int sTarget;
+
+	public static void main(String[] args) {
+		Logger.setLevel(Log.ASSERT);
+		BandwidthEstimator estimator = new BandwidthEstimator(200000, 1500000, 4000000);
+		sTarget = estimator.getTargetBitrate();
+		estimator.setListener(new BandwidthEstimator.Listener() {
+			@Override
+			public void onTargetBitrate(int bitrate) {
+				sTarget = bitrate;
+			}
+		});
+
+		double queue = 0;
+		long sent = 0;
+		for (int step=0;step<SCRIPT.length-1;step++) {
+			long start = SCRIPT[step][0], end = SCRIPT[step+1][0];
+			double capacity = SCRIPT[step][1];
+			long settled = -1, maxDelay = 0;
+			double used = 0;
+			for (long now=start;now<end;now+=BandwidthEstimator.UPDATE_INTERVAL) {
+				double in = sTarget*BandwidthEstimator.UPDATE_INTERVAL/8000d;
+				double out = Math.min(queue+in, capacity*BandwidthEstimator.UPDATE_INTERVAL/8000d);
+				queue += in-out;
+				sent += out;
+				long delay = (long) (queue*8000/capacity);
+				maxDelay = Math.max(maxDelay, delay);
+				estimator.update(now, delay, sent);
+				used += out;
+				if (settled<0 && sTarget<=capacity && delay<100) settled = now-start;
+				if ((now-start)%2000==0) {
+					System.out.println(String.format("%6.1fs capacity %5d kbit/s target %5d kbit/s delay %5d ms",
+							now/1000f, (int) capacity/1000, sTarget/1000, delay));
+				}
+			}
+			System.out.println(String.format("capacity %d kbit/s: settled after %s, max delay %d ms, %.0f%% used, %d overuses, %d changes", 
+					(int) capacity/1000, settled<0 ? "never" : settled+" ms", maxDelay, used*8000/(capacity*(end-start))*100,
+							estimator.getOveruseCount(), estimator.getChangeCount()));
+		}
+	}
+
+}
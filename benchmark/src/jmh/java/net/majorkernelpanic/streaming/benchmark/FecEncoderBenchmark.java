@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.rtp.FecEncoder;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** XORs a packet of 1200 bytes into the current FEC group, the FEC packet is built every 10 packets. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FecEncoderBenchmark {
+
+	private FecEncoder mFec;
+	private ByteBuffer mPacket;
+	private short mSequence = 0;
+
+	@Setup
+	public void setup() {
+		mFec = new FecEncoder();
+		mFec.setProtection(4, 10);
+		mPacket = ByteBuffer.allocate(RtpSocket.MTU);
+		new Random(42).nextBytes(mPacket.array());
+		mPacket.put(0, (byte) 0x80).put(1, (byte) 96);
+	}
+
+	@Benchmark
+	public boolean add() {
+		mPacket.putShort(2, mSequence++);
+		return mFec.add(mPacket, 1200, false);
+	}
+
+}
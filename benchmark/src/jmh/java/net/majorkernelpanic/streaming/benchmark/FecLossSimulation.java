@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.FecEncoder;
+import net.majorkernelpanic.streaming.rtp.HeaderExtensions;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.util.Log;
+
+/**
+ * Protects a simulated video stream with the {@link FecEncoder}, drops packets at random, 
+ * media and FEC alike, and recovers what the ULPFEC packets allow, by XORing the received 
+ * packets of a group with its FEC packet as a receiver would.
+ * Prints the loss rate before and after recovery, and the overhead of FEC, for several loss rates.
+ * 
+ * Then checks that the packets an {@link RtpSocket} sends with FEC and header extensions
+ * can be recovered as they were received, with the values of their extensions. Exits with 1 if not.
+ */
+public class FecLossSimulation {
+
+	private final static int FRAMES = 30*600;
+	private final static float[] LOSS_RATES = {0.005f, 0.01f, 0.02f, 0.05f, 0.1f};
+
+	public static void main(String[] args) throws Exception {
+		for (float loss : LOSS_RATES) {
+			simulate(loss, new Random(42));
+		}
+		Logger.setLevel(Log.ASSERT);
+		if (!checkSocket()) System.exit(1);
+		System.exit(0);
+	}
+
+	private static void simulate(float lossRate, Random random) {
+		FecEncoder fec = new FecEncoder();
+		fec.setProtection(4, 10);
+		byte[][] media = new byte[65536][];
+		boolean[] lost = new boolean[65536];
+		int seq = 0, ts = 0, count = 0, losses = 0, recovered = 0, failed = 0;
+
+		for (int f=0;f<FRAMES;f++) {
+			boolean keyframe = f%60 == 0;
+			int n = keyframe ? 12 : 1+random.nextInt(4);
+			ts += 3000;
+			for (int i=0;i<n;i++,seq=(seq+1)&0xFFFF,count++) {
+				byte[] packet = new byte[12+8+random.nextInt(1188)];
+				random.nextBytes(packet);
+				ByteBuffer view = ByteBuffer.wrap(packet);
+				view.put(0, (byte) 0x80).put(1, (byte) (96|(i==n-1 ? 0x80 : 0)));
+				view.putShort(2, (short) seq).putInt(4, ts);
+				media[seq] = packet;
+				lost[seq] = random.nextFloat()<lossRate;
+				if (lost[seq]) losses++;
+				if (fec.add(view, packet.length, keyframe) && random.nextFloat()>=lossRate) {
+					// The FEC packet made it, the receiver can recover one missing packet of the group
+					ByteBuffer header = ByteBuffer.wrap(fec.getBuffer(), 0, fec.getLength());
+					int base = header.getShort(14)&0xFFFF, mask = header.getShort(24)&0xFFFF, missing = -1;
+					for (int j=0;j<16;j++) {
+						if ((mask&(0x8000>>>j)) == 0 || !lost[(base+j)&0xFFFF]) continue;
+						missing = missing<0 ? (base+j)&0xFFFF : Integer.MAX_VALUE;
+					}
+					if (missing<0 || missing == Integer.MAX_VALUE) continue;
+					if (Arrays.equals(media[missing], recover(header, missing, media, lost))) {
+						lost[missing] = false;
+						recovered++;
+					} else {
+						failed++;
+					}
+				}
+			}
+		}
+
+		System.out.println(String.format("loss %4.1f%%: residual loss %5.2f%%, recovered %d/%d packets, %d failures, overhead %4.1f%%", 
+				lossRate*100, (losses-recovered)*100f/count, recovered, losses, failed, fec.getOverhead()*100));
+	}
+
+	/** 
+	 * Sends a stream through an RtpSocket with FEC, abs-send-time and transport-wide sequence numbers,
+	 * and rebuilds each media packet from the other packets of its group and the FEC packet.
+	 */
+	private static boolean checkSocket() throws Exception {
+		Random random = new Random(42);
+		FecEncoder fec = new FecEncoder();
+		fec.setProtection(4, 10);
+		HeaderExtensions extensions = new HeaderExtensions();
+
+		RtpSocket socket = new RtpSocket();
+		Streams.unpace(socket);
+		socket.setFecEncoder(fec);
+		socket.setHeaderExtensions(extensions);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InterleavedWriter.get(output).setCapacity(16*1024*1024);
+		socket.setOutputStream(output, (byte) 0);
+		int header = socket.getHeaderLength();
+		long time = 0;
+		for (int f=0;f<600;f++) {
+			int n = f%60 == 0 ? 12 : 1+random.nextInt(4);
+			for (int i=0;i<n;i++) {
+				ByteBuffer packet = socket.requestByteBuffer();
+				int length = header+8+random.nextInt(1000);
+				for (int k=header;k<length;k++) packet.put(k, (byte) random.nextInt());
+				if (f%60 == 0 && i == 0) socket.markSyncPoint();
+				socket.updateTimestamp(time);
+				if (i == n-1) socket.markNextPacket();
+				socket.stageBuffer(length);
+			}
+			socket.commitBuffers();
+			time += 33333333;
+		}
+		while (socket.getFifo().size()>0) Thread.sleep(1);
+		Thread.sleep(50);
+		socket.close();
+		InterleavedWriter.release(output);
+
+		// The packets as the receiver got them
+		byte[] stream = output.toByteArray();
+		byte[][] media = new byte[65536][];
+		boolean[] lost = new boolean[65536];
+		int checked = 0, failed = 0;
+		for (int i=0;i+4<=stream.length;) {
+			int length = (stream[i+2]&0xFF)<<8 | stream[i+3]&0xFF, channel = stream[i+1];
+			byte[] packet = Arrays.copyOfRange(stream, i+4, i+4+length);
+			i += 4+length;
+			if (channel != 0) continue;
+			if ((packet[1]&0x7F) != fec.getPayloadType()) {
+				media[ByteBuffer.wrap(packet).getShort(2)&0xFFFF] = packet;
+				continue;
+			}
+			ByteBuffer view = ByteBuffer.wrap(packet);
+			int base = view.getShort(14)&0xFFFF, mask = view.getShort(24)&0xFFFF;
+			for (int j=0;j<16;j++) {
+				int seq = (base+j)&0xFFFF;
+				if ((mask&(0x8000>>>j)) == 0) continue;
+				checked++;
+				// The extensions must be protected with the values the packets were sent with
+				lost[seq] = true;
+				if (!Arrays.equals(media[seq], recover(view, seq, media, lost))) failed++;
+				lost[seq] = false;
+			}
+		}
+
+		boolean ok = checked>0 && failed == 0;
+		System.out.println(String.format("RtpSocket with header extensions: %d packets recovered, %d differ from the ones sent, %s", 
+				checked, failed, ok ? "OK" : "FAILED"));
+		return ok;
+	}
+
+	/** Rebuilds the packet missing from a group with the FEC packet, as described in RFC 5109. */
+	private static byte[] recover(ByteBuffer fec, int missing, byte[][] media, boolean[] lost) {
+		int base = fec.getShort(14)&0xFFFF, mask = fec.getShort(24)&0xFFFF, length = fec.getShort(22)&0xFFFF;
+		int b0 = fec.get(12), b1 = fec.get(13), ts = fec.getInt(16), lr = fec.getShort(20)&0xFFFF;
+		byte[] payload = Arrays.copyOfRange(fec.array(), 26, 26+length);
+		for (int j=0;j<16;j++) {
+			int seq = (base+j)&0xFFFF;
+			if ((mask&(0x8000>>>j)) == 0 || seq == missing) continue;
+			byte[] packet = media[seq];
+			b0 ^= packet[0];
+			b1 ^= packet[1];
+			ts ^= ByteBuffer.wrap(packet).getInt(4);
+			lr ^= packet.length-12;
+			for (int k=12;k<packet.length;k++) payload[k-12] ^= packet[k];
+		}
+		byte[] packet = new byte[12+lr];
+		ByteBuffer view = ByteBuffer.wrap(packet);
+		view.put(0, (byte) (0x80|(b0&0x3F))).put(1, (byte) b1).putShort(2, (short) missing).putInt(4, ts);
+		// The SSRC is the one of the media stream
+		System.arraycopy(media[missing], 8, packet, 8, 4);
+		System.arraycopy(payload, 0, packet, 12, lr);
+		return packet;
+	}
+
+}
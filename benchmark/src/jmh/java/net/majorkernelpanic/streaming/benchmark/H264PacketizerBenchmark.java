@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Packetizes one second of H.264 at 30 fps, from the output buffers of a MediaCodec in Annex-B
+ * format to the FIFO of the RTP socket. NAL units larger than a packet are split in FU-A units.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class H264PacketizerBenchmark {
+
+	private final static int FRAMES = 30;
+
+	/** Size of the NAL units in bytes. */
+	@Param({"1000", "10000", "60000"})
+	public int nalSize;
+
+	private H264Packetizer mPacketizer;
+	private MediaCodec mCodec;
+	private MediaCodecFrameSource mSource;
+
+	private final Runnable mEnd = new Runnable() {
+		@Override
+		public void run() {
+			mSource.close();
+		}
+	};
+
+	@Setup
+	public void setup() {
+		Logger.setLevel(Log.ASSERT);
+		mCodec = new MediaCodec(Streams.annexB(FRAMES, nalSize), 1000000/FRAMES);
+		mPacketizer = new H264Packetizer();
+		Streams.unpace(mPacketizer.getRtpSocket());
+	}
+
+	@Benchmark
+	public void packetize() {
+		mCodec.rewind(mEnd);
+		mSource = new MediaCodecFrameSource(mCodec);
+		mPacketizer.setFrameSource(mSource);
+		mPacketizer.run();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mPacketizer.getRtpSocket().close();
+	}
+
+}
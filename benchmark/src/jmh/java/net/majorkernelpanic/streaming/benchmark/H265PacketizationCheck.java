@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
+import net.majorkernelpanic.streaming.rtp.NalSplitter;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Packetizes canned H.265 streams with the {@link H265Packetizer}, and puts the NAL units back
+ * together from the RTP packets as a receiver would (RFC 7798): single NAL unit packets, APs and FUs. 
+ * Fails if a NAL unit differs from the one in the stream, if the headers of the APs and of the 
+ * FUs are wrong, if a packet is too large or if the packets of an access unit do not share 
+ * their timestamp and end with the marker bit.
+ */
+public class H265PacketizationCheck {
+
+	private final static int FRAMES = 90;
+
+	/** Largest RTP packet the packetizer may send. */
+	private final static int MAX_PACKET = RtpSocket.MTU-28;
+
+	private static int sFailures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Logger.setLevel(Log.ASSERT);
+
+		check("Single NAL units", Streams.hevc(FRAMES, 1, 1000, true), 0, false);
+		check("APs", Streams.hevc(FRAMES, 4, 150, true), H265Packetizer.DEFAULT_AGGREGATION_THRESHOLD, false);
+		check("FUs", Streams.hevc(FRAMES, 2, 8000, true), H265Packetizer.DEFAULT_AGGREGATION_THRESHOLD, false);
+		check("APs and FUs", Streams.hevc(FRAMES, 6, 1500, true), H265Packetizer.DEFAULT_AGGREGATION_THRESHOLD, false);
+		check("Parameter sets out of band", Streams.hevc(FRAMES, 3, 400, false), H265Packetizer.DEFAULT_AGGREGATION_THRESHOLD, true);
+		checkParameterSets();
+
+		if (sFailures>0) {
+			System.err.println(sFailures+" H.265 packetization checks failed.");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private static void check(String name, ByteBuffer[] frames, int aggregation, boolean outOfBand) throws Exception {
+		System.out.print(String.format("%-28s", name));
+		byte[][] sets = H265Packetizer.findParameterSets(ByteBuffer.wrap(hevcConfig()), 0, hevcConfig().length);
+
+		// What the receiver should get, one list of NAL units per access unit
+		List<List<byte[]>> expected = new ArrayList<List<byte[]>>();
+		NalSplitter splitter = new NalSplitter();
+		for (ByteBuffer frame : frames) {
+			List<byte[]> nals = new ArrayList<byte[]>();
+			int count = splitter.split(frame, 0, frame.capacity());
+			for (int i=0;i<count;i++) {
+				byte[] nal = Arrays.copyOfRange(frame.array(), splitter.getOffset(i), splitter.getOffset(i)+splitter.getLength(i));
+				nals.add(nal);
+			}
+			expected.add(nals);
+		}
+
+		H265Packetizer packetizer = new H265Packetizer();
+		packetizer.setAggregationThreshold(aggregation);
+		if (outOfBand) packetizer.setStreamParameters(sets[0], sets[1], sets[2]);
+		RtpSocket socket = packetizer.getRtpSocket();
+		Streams.unpace(socket);
+		socket.setBufferBounds(4096, 4096);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// The packets are not paced, the whole stream has to fit in the buffer of the writer
+		InterleavedWriter.get(output).setCapacity(16*1024*1024);
+		socket.setOutputStream(output, (byte) 0);
+		MediaCodec codec = new MediaCodec(frames, 33333);
+		final MediaCodecFrameSource source = new MediaCodecFrameSource(codec);
+		codec.rewind(new Runnable() {
+			@Override
+			public void run() {
+				source.close();
+			}
+		});
+		packetizer.setFrameSource(source);
+		packetizer.run();
+		while (socket.getFifo().size()>0) Thread.sleep(1);
+		Thread.sleep(50);
+		socket.close();
+		InterleavedWriter.release(output);
+
+		String error = depacketize(output.toByteArray(), expected, outOfBand ? sets : null);
+		if (error != null) sFailures++;
+		System.out.println(error == null ? "OK" : "FAILED: "+error);
+	}
+
+	/** 
+	 * Reads the RTP packets interleaved in the output of the socket and compares the NAL units 
+	 * they hold with the expected ones. 
+	 * @param sets The parameter sets the packetizer should send before each IRAP picture, or null
+	 * @return What went wrong, or null
+	 */
+	private static String depacketize(byte[] output, List<List<byte[]>> expected, byte[][] sets) {
+		List<List<byte[]>> received = new ArrayList<List<byte[]>>();
+		List<byte[]> nals = new ArrayList<byte[]>();
+		ByteArrayOutputStream fu = null;
+		long timestamp = -1;
+		int packets = 0, aps = 0, fus = 0;
+		boolean marked = true;
+
+		for (int i=0;i+4<=output.length;) {
+			int length = (output[i+2]&0xFF)<<8 | output[i+3]&0xFF, channel = output[i+1];
+			ByteBuffer packet = ByteBuffer.wrap(output, i+4, length).slice();
+			i += 4+length;
+			// RTCP is sent on the next channel
+			if (channel != 0) continue;
+			packets++;
+			if (length>MAX_PACKET) return "Packet of "+length+" bytes";
+
+			boolean marker = (packet.get(1)&0x80) != 0;
+			long ts = packet.getInt(4)&0xFFFFFFFFL;
+			if (marked) {
+				timestamp = ts;
+			} else if (ts != timestamp) {
+				return "Access unit "+received.size()+" ends without marker";
+			}
+			marked = marker;
+
+			int header = packet.getShort(12)&0xFFFF, type = (header>>9)&0x3F;
+			if (type == 48) {
+				aps++;
+				int f = 0, layer = 0x3F, tid = 7, count = 0;
+				for (int j=14;j<length;) {
+					int size = packet.getShort(j)&0xFFFF;
+					byte[] nal = new byte[size];
+					packet.position(j+2);
+					packet.get(nal);
+					nals.add(nal);
+					int h = (nal[0]&0xFF)<<8 | nal[1]&0xFF;
+					f |= h&0x8000;
+					layer = Math.min(layer, (h>>3)&0x3F);
+					tid = Math.min(tid, h&7);
+					j += 2+size;
+					count++;
+				}
+				if (count<2) return "AP with "+count+" NAL unit";
+				if ((header&0x81FF) != (f | layer<<3 | tid)) return "Wrong AP header "+Integer.toHexString(header);
+			} else if (type == 49) {
+				fus++;
+				int fuHeader = packet.get(14)&0xFF;
+				boolean first = (fuHeader&0x80) != 0, last = (fuHeader&0x40) != 0;
+				if (first == (fu != null)) return "FU start bit out of place";
+				if (first) {
+					fu = new ByteArrayOutputStream();
+					int h = header&0x81FF | (fuHeader&0x3F)<<9;
+					fu.write(h>>8);
+					fu.write(h);
+				}
+				fu.write(output, i-length+15, length-15);
+				if (last) {
+					nals.add(fu.toByteArray());
+					fu = null;
+				}
+			} else {
+				nals.add(Arrays.copyOfRange(output, i-length+12, i));
+			}
+
+			if (marker) {
+				if (fu != null) return "Marker bit in the middle of an FU";
+				received.add(nals);
+				nals = new ArrayList<byte[]>();
+			}
+		}
+
+		// The parameter sets added by the packetizer go before the aggregation packet that holds the IRAP picture
+		if (sets != null) {
+			for (int i=0;i<received.size();i++) {
+				List<byte[]> unit = received.get(i);
+				int position = -1;
+				for (int j=unit.size()-1;j>=0;j--) if (Arrays.equals(unit.get(j), sets[0])) position = j;
+				for (int j=0;j<unit.size();j++) {
+					int type = (unit.get(j)[0]>>1)&0x3F;
+					if (type<16 || type>23) continue;
+					if (position<0 || position+3>j) return "No parameter sets before the IRAP picture of access unit "+i;
+					for (int k=0;k<3;k++) {
+						if (!Arrays.equals(unit.get(position+k), sets[k])) return "Wrong parameter sets in access unit "+i;
+					}
+					unit.subList(position, position+3).clear();
+					break;
+				}
+			}
+		}
+
+		if (received.size() != expected.size()) return received.size()+" access units instead of "+expected.size();
+		for (int i=0;i<expected.size();i++) {
+			if (received.get(i).size() != expected.get(i).size()) {
+				return "Access unit "+i+" has "+received.get(i).size()+" NAL units instead of "+expected.get(i).size();
+			}
+			for (int j=0;j<expected.get(i).size();j++) {
+				if (!Arrays.equals(received.get(i).get(j), expected.get(i).get(j))) return "NAL unit "+j+" of access unit "+i+" differs";
+			}
+		}
+		System.out.print(String.format("%5d packets, %4d APs, %4d FUs  ", packets, aps, fus));
+		return null;
+	}
+
+	/** The VPS, SPS and PPS of the canned streams are found in the configuration of the codec. */
+	private static void checkParameterSets() {
+		byte[] config = hevcConfig();
+		byte[][] sets = H265Packetizer.findParameterSets(ByteBuffer.wrap(config), 0, config.length);
+		String error = null;
+		int[] types = {32, 33, 34}, lengths = {24, 40, 8};
+		for (int i=0;i<3;i++) {
+			if (sets[i] == null || ((sets[i][0]>>1)&0x3F) != types[i] || sets[i].length != lengths[i]) error = "parameter set "+types[i]+" not found";
+		}
+		byte[] frame = Streams.hevc(2, 1, 100, true)[1].array();
+		sets = H265Packetizer.findParameterSets(ByteBuffer.wrap(frame), 0, frame.length);
+		if (sets[0] != null || sets[1] != null || sets[2] != null) error = "parameter set found in a picture";
+		if (error != null) sFailures++;
+		System.out.println(String.format("%-28s%s", "Parameter sets", error == null ? "OK" : "FAILED: "+error));
+	}
+
+	private static byte[] hevcConfig() {
+		return Streams.hevc(1, 1, 100, true)[0].array();
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * How the H.264 packetizer used to find the NAL units, kept to measure {@link net.majorkernelpanic.streaming.rtp.NalSplitter}
+ * and {@link net.majorkernelpanic.streaming.rtp.NalStreamReader} against it.
+ */
+final class LegacyNalParsing {
+
+	private LegacyNalParsing() {}
+
+	/** 
+	 * Locates the start codes of an access unit, reading one byte in three where the third byte 
+	 * of a start code can't be. Length-prefixed access units are not understood.
+	 * @return The number of NAL units found
+	 */
+	static int split(ByteBuffer buffer, int offset, int length, int[] offsets, int[] lengths) {
+		int end = offset+length, start = -1, i = offset+2, b, zeros, count = 0;
+		while (i<end) {
+			b = buffer.get(i)&0xFF;
+			if (b>1) {
+				i += 3;
+			} else if (buffer.get(i-1) != 0) {
+				i += 2;
+			} else if (b != 1 || buffer.get(i-2) != 0) {
+				i++;
+			} else {
+				zeros = i-2;
+				while (zeros>(start<0 ? offset : start) && buffer.get(zeros-1) == 0) zeros--;
+				if (start>=0) {
+					offsets[count] = start;
+					lengths[count++] = zeros-start;
+				} else if (zeros>offset) {
+					offsets[count] = offset;
+					lengths[count++] = zeros-offset;
+				}
+				start = i+1;
+				i += 3;
+			}
+		}
+		if (start<0) {
+			offsets[count] = offset;
+			lengths[count++] = length;
+		} else if (start<end) {
+			offsets[count] = start;
+			lengths[count++] = end-start;
+		}
+		return count;
+	}
+
+	/** 
+	 * Reads the length-prefixed NAL units of a stream: a blocking read of the 5 bytes that precede 
+	 * the payload of a NAL unit, the payload read straight into the packets, and when a length 
+	 * makes no sense, the stream read again one byte at a time until one does. 
+	 */
+	static class Reader {
+
+		private final InputStream mInputStream;
+		private final byte[] mHeader = new byte[5];
+
+		Reader(InputStream is) {
+			mInputStream = is;
+		}
+
+		/** Reads the next NAL unit into the packet, one payload at a time, and returns its length. */
+		int next(byte[] packet, int payload) throws IOException {
+			fill(mHeader, 0, 5);
+			int naluLength = length();
+			if (naluLength>100000 || naluLength<0) naluLength = resync();
+			for (int sum=1, len;sum<naluLength;sum+=len) {
+				len = Math.min(payload, naluLength-sum);
+				fill(packet, 0, len);
+			}
+			return naluLength;
+		}
+
+		private int length() {
+			return mHeader[3]&0xFF | (mHeader[2]&0xFF)<<8 | (mHeader[1]&0xFF)<<16 | (mHeader[0]&0xFF)<<24;
+		}
+
+		private void fill(byte[] buffer, int offset, int length) throws IOException {
+			int sum = 0, len;
+			while (sum<length) {
+				len = mInputStream.read(buffer, offset+sum, length-sum);
+				if (len<0) throw new IOException("End of stream");
+				sum += len;
+			}
+		}
+
+		/** The end of the stream is checked, the packetizer used to read it forever. */
+		private int resync() throws IOException {
+			int type, b, naluLength;
+			while (true) {
+				mHeader[0] = mHeader[1];
+				mHeader[1] = mHeader[2];
+				mHeader[2] = mHeader[3];
+				mHeader[3] = mHeader[4];
+				if ((b = mInputStream.read())<0) throw new IOException("End of stream");
+				mHeader[4] = (byte) b;
+				type = mHeader[4]&0x1F;
+				if (type == 5 || type == 1) {
+					naluLength = length();
+					if (naluLength>0 && naluLength<100000) return naluLength;
+				}
+			}
+		}
+
+	}
+
+}
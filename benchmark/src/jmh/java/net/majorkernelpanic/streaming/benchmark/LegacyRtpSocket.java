@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import android.os.SystemClock;
+
+/**
+ * How {@link net.majorkernelpanic.streaming.rtp.RtpSocket} used to hand packets over to its Thread,
+ * kept to measure the FIFO against it: two semaphores, acquired and released for each packet, 
+ * and a Thread that wakes up for each packet and sends it with a {@link MulticastSocket}.
+ */
+final class LegacyRtpSocket implements Runnable {
+
+	private final static int MTU = 1300;
+
+	private final MulticastSocket mSocket;
+	private final byte[][] mBuffers;
+	private final DatagramPacket[] mPackets;
+	private final int[] mLengths;
+	private long[] mTimestamps;
+
+	private Semaphore mBufferRequested, mBufferCommitted;
+	private volatile Thread mThread;
+
+	private long mClock = 90000;
+	private long mOldTimestamp = 0;
+	private int mSeq = 0;
+	private int mBufferCount, mBufferIn, mBufferOut;
+	private int mCount = 0;
+
+	private final AverageBitrate mAverageBitrate = new AverageBitrate();
+
+	LegacyRtpSocket(InetAddress dest, int dport) throws IOException {
+		mBufferCount = 300;
+		mSocket = new MulticastSocket();
+		mBuffers = new byte[mBufferCount][];
+		mPackets = new DatagramPacket[mBufferCount];
+		mLengths = new int[mBufferCount];
+		for (int i=0; i<mBufferCount; i++) {
+			mBuffers[i] = new byte[MTU];
+			mPackets[i] = new DatagramPacket(mBuffers[i], 1, dest, dport);
+			mBuffers[i][0] = (byte) 0x80;
+			mBuffers[i][1] = (byte) 96;
+		}
+		resetFifo();
+	}
+
+	private void resetFifo() {
+		mCount = 0;
+		mBufferIn = 0;
+		mBufferOut = 0;
+		mTimestamps = new long[mBufferCount];
+		mBufferRequested = new Semaphore(mBufferCount);
+		mBufferCommitted = new Semaphore(0);
+		mAverageBitrate.reset();
+	}
+
+	/** Stops the Thread and closes the socket. */
+	void close() {
+		Thread thread = mThread;
+		if (thread != null) thread.interrupt();
+		mSocket.close();
+	}
+
+	/** Returns an available buffer from the FIFO, it can then be modified. */
+	byte[] requestBuffer() throws InterruptedException {
+		mBufferRequested.acquire();
+		mBuffers[mBufferIn][1] &= 0x7F;
+		return mBuffers[mBufferIn];
+	}
+
+	/** Hands the packet over to the Thread. */
+	void commitBuffer(int length) {
+		updateSequence();
+		mLengths[mBufferIn] = length;
+		mPackets[mBufferIn].setLength(length);
+
+		mAverageBitrate.push(length);
+
+		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
+		mBufferCommitted.release();
+
+		if (mThread == null) {
+			mThread = new Thread(this);
+			mThread.start();
+		}
+	}
+
+	private void updateSequence() {
+		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+	}
+
+	/** Overwrites the timestamp in the packet, in ns. */
+	void updateTimestamp(long timestamp) {
+		mTimestamps[mBufferIn] = timestamp;
+		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+	}
+
+	/** Sets the marker in the RTP packet. */
+	void markNextPacket() {
+		mBuffers[mBufferIn][1] |= 0x80;
+	}
+
+	/** The Thread takes the packets out of the FIFO one by one and sends them. */
+	@Override
+	public void run() {
+		Statistics stats = new Statistics(50,3000);
+		long sent = 0;
+		try {
+			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
+				if (mOldTimestamp != 0 && (mTimestamps[mBufferOut]-mOldTimestamp)>0) {
+					stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
+					stats.average();
+				}
+				mOldTimestamp = mTimestamps[mBufferOut];
+				if (mCount++>30) {
+					mSocket.send(mPackets[mBufferOut]);
+					sent += mLengths[mBufferOut];
+				}
+				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+				mBufferRequested.release();
+			}
+		} catch (InterruptedException e) {
+			// The socket was closed
+		} catch (IOException e) {
+			// The socket was closed
+		}
+		mThread = null;
+		resetFifo();
+	}
+
+	private void setLong(byte[] buffer, long n, int begin, int end) {
+		for (end--; end >= begin; end--) {
+			buffer[end] = (byte) (n % 256);
+			n >>= 8;
+		}
+	}
+
+	/** Computes an average bit rate. */
+	private static class AverageBitrate {
+
+		private final static long RESOLUTION = 200;
+
+		private long mOldNow, mNow, mDelta;
+		private long[] mElapsed, mSum;
+		private int mCount, mIndex, mTotal;
+		private int mSize = 5000/((int)RESOLUTION);
+
+		void reset() {
+			mSum = new long[mSize];
+			mElapsed = new long[mSize];
+			mNow = SystemClock.elapsedRealtime();
+			mOldNow = mNow;
+			mCount = 0;
+			mDelta = 0;
+			mTotal = 0;
+			mIndex = 0;
+		}
+
+		void push(int length) {
+			mNow = SystemClock.elapsedRealtime();
+			if (mCount>0) {
+				mDelta += mNow - mOldNow;
+				mTotal += length;
+				if (mDelta>RESOLUTION) {
+					mSum[mIndex] = mTotal;
+					mTotal = 0;
+					mElapsed[mIndex] = mDelta;
+					mDelta = 0;
+					mIndex++;
+					if (mIndex>=mSize) mIndex = 0;
+				}
+			}
+			mOldNow = mNow;
+			mCount++;
+		}
+
+	}
+
+	/** Computes the rate at which packets were sent. */
+	private static class Statistics {
+
+		private int count=500, c = 0;
+		private float m = 0, q = 0;
+		private long elapsed = 0;
+		private long start = 0;
+		private long duration = 0;
+		private long period = 6000000000L;
+		private boolean initoffset = false;
+
+		Statistics(int count, long period) {
+			this.count = count;
+			this.period = period*1000000L;
+		}
+
+		void push(long value) {
+			duration += value;
+			elapsed += value;
+			if (elapsed>period) {
+				elapsed = 0;
+				long now = System.nanoTime();
+				if (!initoffset || (now - start < 0)) {
+					start = now;
+					duration = 0;
+					initoffset = true;
+				}
+				value -= (now - start) - duration;
+			}
+			if (c<40) {
+				c++;
+				m = value;
+			} else {
+				m = (m*q+value)/(q+1);
+				if (q<count) q++;
+			}
+		}
+
+		long average() {
+			long l = (long)m-2000000;
+			return l>0 ? l : 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.mp4.MP4Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.util.Log;
+
+/** 
+ * Parses a fragmented MP4 file and reads the SPS of its H.264 track, as H264Stream does with the file 
+ * recorded to test the phone. Every fragment holds 64 kB of media, the file is sparse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MP4ParserBenchmark {
+
+	/** Number of fragments in the file. */
+	@Param({"10", "1000"})
+	public int fragments;
+
+	private File mFile;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.setLevel(Log.ASSERT);
+		mFile = File.createTempFile("libstreaming", ".mp4");
+		Streams.mp4(mFile.getPath(), fragments, 65536);
+	}
+
+	@Benchmark
+	public String parse() throws IOException {
+		return new MP4Config(mFile.getPath()).getB64SPS();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+}
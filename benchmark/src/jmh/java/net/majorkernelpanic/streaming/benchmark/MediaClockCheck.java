@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.math.BigInteger;
+import java.util.Random;
+import net.majorkernelpanic.streaming.rtp.MediaClock;
+
+/**
+ * Feeds the {@link MediaClock} synthetic timelines and checks the timestamps it gives:
+ * RTP timestamps that count audio samples exactly, no drift of the RTP timestamps of a video 
+ * track over a month of capture times, and NTP timestamps that count from 1900.
+ * The expected values are computed independently with BigInteger. Exits with 1 if one differs.
+ */
+public class MediaClockCheck {
+
+	private final static long NANOS = 1000000000L;
+
+	/** Seconds between 1900 and 1970. */
+	private final static long NTP_EPOCH_OFFSET = 2208988800L;
+
+	private final static BigInteger MASK = BigInteger.valueOf(0xFFFFFFFFL);
+
+	private static int sFailures = 0;
+
+	public static void main(String[] args) {
+		checkSamples(8000, 160);
+		checkSamples(16000, 1024);
+		checkSamples(22050, 1024);
+		checkSamples(44100, 1024);
+		checkSamples(48000, 960);
+		checkDrift(90000, 30);
+		checkDrift(90000, 24000, 1001);
+		checkNtp();
+
+		if (sFailures>0) {
+			System.err.println(sFailures+" MediaClock checks failed.");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/** 
+	 * Audio frames of a fixed number of samples, a day long: the RTP timestamp of each 
+	 * frame must be the number of samples before it plus the offset of the track. 
+	 */
+	private static void checkSamples(int rate, int samples) {
+		Random random = new Random(rate);
+		long anchor = random.nextLong();
+		int offset = random.nextInt();
+		MediaClock clock = new MediaClock(1767225600L*NANOS, anchor);
+		MediaClock.Track track = clock.createTrack(rate, offset);
+		String error = null;
+		long frames = 86400L*rate/samples;
+		for (long i=0;i<frames && error == null;i++) {
+			long count = i*samples;
+			long expected = (offset+count)&0xFFFFFFFFL;
+			long rtp = track.getRtpTimestamp(anchor+MediaClock.toNanos(count, rate));
+			if (rtp != expected) error = "frame "+i+": "+rtp+" instead of "+expected;
+		}
+		report(String.format("%d Hz, %d samples per frame", rate, samples), frames+" frames", error);
+	}
+
+	private static void checkDrift(int rate, int fps) {
+		checkDrift(rate, fps, 1);
+	}
+
+	/** 
+	 * Video frames captured at fps/divisor for a month, their capture times are rounded to the ns:
+	 * the RTP timestamp of each frame must be the exact one rounded down, and never off by more than a tick. 
+	 */
+	private static void checkDrift(int rate, int fps, int divisor) {
+		long anchor = -123456789L;
+		int offset = 0x7FFFFF00;
+		MediaClock clock = new MediaClock(1767225600L*NANOS, anchor);
+		MediaClock.Track track = clock.createTrack(rate, offset);
+		BigInteger billion = BigInteger.valueOf(NANOS), r = BigInteger.valueOf(rate);
+		String error = null;
+		long frames = 30L*86400L*fps/divisor, worst = 0;
+		for (long i=0;i<frames && error == null;i+=1+i/1000) {
+			// Capture time of frame i, rounded down to the ns
+			BigInteger elapsed = BigInteger.valueOf(i).multiply(billion).multiply(BigInteger.valueOf(divisor)).divide(BigInteger.valueOf(fps));
+			long expected = elapsed.multiply(r).divide(billion).add(BigInteger.valueOf(offset)).and(MASK).longValue();
+			long rtp = track.getRtpTimestamp(anchor+elapsed.longValue());
+			if (rtp != expected) error = "frame "+i+": "+rtp+" instead of "+expected;
+			// The exact timestamp of the frame, without the rounding of its capture time
+			long exact = BigInteger.valueOf(i).multiply(r).multiply(BigInteger.valueOf(divisor)).divide(BigInteger.valueOf(fps)).add(BigInteger.valueOf(offset)).and(MASK).longValue();
+			worst = Math.max(worst, Math.abs(((exact-rtp)<<32)>>32));
+			if (worst>1) error = "frame "+i+" is "+worst+" ticks away from its exact timestamp";
+		}
+		report(String.format("%d Hz, %s fps, 30 days", rate, divisor == 1 ? String.valueOf(fps) : fps+"/"+divisor), "drift "+worst+" tick", error);
+	}
+
+	/** NTP timestamps of known dates, and of random capture times before and after the anchor. */
+	private static void checkNtp() {
+		String error = null;
+		// Anchored to the Unix epoch
+		MediaClock clock = new MediaClock(0, 1000);
+		if (clock.getNtpTime(1000) != NTP_EPOCH_OFFSET<<32) error = "the Unix epoch is not "+NTP_EPOCH_OFFSET+" s after 1900";
+		if (clock.getNtpTime(1000+NANOS/2) != (NTP_EPOCH_OFFSET<<32 | 0x80000000L)) error = "half a second is not 0x80000000";
+		if (clock.getNtpTime(1000-NANOS/4) != ((NTP_EPOCH_OFFSET-1)<<32 | 0xC0000000L)) error = "a time before the anchor is wrong";
+
+		// 2026-01-01T00:00:00Z
+		long wall = 1767225600L*NANOS, anchor = 987654321L;
+		clock = new MediaClock(wall, anchor);
+		if (clock.getNtpTime(anchor)>>>32 != 3976214400L) error = "2026-01-01 is not 3976214400 s after 1900";
+		Random random = new Random(42);
+		BigInteger billion = BigInteger.valueOf(NANOS);
+		for (int i=0;i<1000000 && error == null;i++) {
+			// Up to ten years around the anchor
+			long time = anchor+(random.nextLong()%(3650L*86400L*NANOS));
+			BigInteger since1900 = BigInteger.valueOf(wall).add(BigInteger.valueOf(time-anchor)).add(BigInteger.valueOf(NTP_EPOCH_OFFSET).multiply(billion));
+			BigInteger[] parts = since1900.divideAndRemainder(billion);
+			long expected = parts[0].shiftLeft(32).or(parts[1].shiftLeft(32).divide(billion)).longValue();
+			long ntp = clock.getNtpTime(time);
+			if (ntp != expected) error = "capture time "+time+": "+Long.toHexString(ntp)+" instead of "+Long.toHexString(expected);
+		}
+		report("NTP timestamps", "", error);
+	}
+
+	private static void report(String name, String detail, String error) {
+		if (error != null) sFailures++;
+		System.out.println(String.format("%-34s %-20s %s", name, detail, error == null ? "OK" : "FAILED: "+error));
+	}
+
+}
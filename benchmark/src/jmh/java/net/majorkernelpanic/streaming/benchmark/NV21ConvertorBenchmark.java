@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import android.media.MediaCodecInfo.CodecCapabilities;
+
+/** Converts a picture of the camera to the color format of the encoder, and copies it to an input buffer. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NV21ConvertorBenchmark {
+
+	@Param({"1280x720", "1920x1080"})
+	public String resolution;
+
+	/** COLOR_FormatYUV420SemiPlanar or COLOR_FormatYUV420Planar. */
+	@Param({""+CodecCapabilities.COLOR_FormatYUV420SemiPlanar, ""+CodecCapabilities.COLOR_FormatYUV420Planar})
+	public int colorFormat;
+
+	private NV21Convertor mConvertor;
+	private byte[] mPicture;
+	private ByteBuffer mBuffer;
+
+	@Setup
+	public void setup() {
+		int width = Integer.parseInt(resolution.split("x")[0]);
+		int height = Integer.parseInt(resolution.split("x")[1]);
+		mConvertor = new NV21Convertor();
+		mConvertor.setSize(width, height);
+		mConvertor.setEncoderColorFormat(colorFormat);
+		mPicture = Streams.nv21(width, height);
+		mBuffer = ByteBuffer.allocateDirect(mConvertor.getBufferSize());
+	}
+
+	@Benchmark
+	public ByteBuffer convert() {
+		mBuffer.clear();
+		mConvertor.convert(mPicture, mBuffer);
+		return mBuffer;
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.rtp.NalSplitter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Splits an access unit of 8 slices in NAL units, as the H.264 packetizer does with the output 
+ * buffers of a MediaCodec: the start code scan that reads one byte in three against the 
+ * {@link NalSplitter}, and the {@link NalSplitter} on the same slices preceded by their length.
+ * 
+ * Pass a recording in Annex-B format with -p recording=file.h264 to split it all at once instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NalSplitterBenchmark {
+
+	private final static int SLICES = 8;
+
+	/** Size of the slices in bytes. */
+	@Param({"1000", "10000", "60000"})
+	public int nalSize;
+
+	/** An H.264 file in Annex-B format, or nothing for random slices. */
+	@Param({""})
+	public String recording;
+
+	private ByteBuffer mAnnexB, mLengthPrefixed;
+	private int[] mOffsets, mLengths;
+	private final NalSplitter mSplitter = new NalSplitter();
+
+	@Setup
+	public void setup() throws IOException {
+		byte[][] nals = Streams.slices(SLICES, nalSize, recording);
+		mAnnexB = ByteBuffer.wrap(Streams.annexB(nals));
+		mLengthPrefixed = ByteBuffer.wrap(Streams.lengthPrefixed(nals));
+		mOffsets = new int[nals.length+1];
+		mLengths = new int[nals.length+1];
+	}
+
+	@Benchmark
+	public int legacy() {
+		return LegacyNalParsing.split(mAnnexB, 0, mAnnexB.capacity(), mOffsets, mLengths);
+	}
+
+	@Benchmark
+	public int splitter() {
+		return mSplitter.split(mAnnexB, 0, mAnnexB.capacity());
+	}
+
+	@Benchmark
+	public int splitterLengthPrefixed() {
+		return mSplitter.split(mLengthPrefixed, 0, mLengthPrefixed.capacity());
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.NalStreamReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.util.Log;
+
+/**
+ * Reads 300 length-prefixed NAL units from a file, as the H.264 packetizer reads the stream of 
+ * the MediaRecorder from a local socket: every read is a system call. The NAL units are copied 
+ * in packets of 1400 bytes. The old way, with blocking reads of 5 bytes and a byte-at-a-time 
+ * resync, against the {@link NalStreamReader}. 
+ * 
+ * Some lengths are replaced by 0xFFFFFFFF in the corrupted streams, the reader then has to find 
+ * the next NAL unit. Pass a recording in Annex-B format with -p recording=file.h264 to read its 
+ * NAL units instead of random ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NalStreamReaderBenchmark {
+
+	private final static int NALS = 300;
+	private final static int PAYLOAD = 1400;
+
+	/** Size of the NAL units in bytes. */
+	@Param({"1000", "10000"})
+	public int nalSize;
+
+	/** Number of corrupted lengths in the stream. */
+	@Param({"0", "10"})
+	public int corrupted;
+
+	/** An H.264 file in Annex-B format, or nothing for random NAL units. */
+	@Param({""})
+	public String recording;
+
+	private File mFile;
+	private final byte[] mPacket = new byte[PAYLOAD];
+	private final ByteBuffer mPacketBuffer = ByteBuffer.wrap(mPacket);
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.setLevel(Log.ASSERT);
+		byte[][] nals = Streams.slices(NALS, nalSize, recording);
+		byte[] stream = Streams.lengthPrefixed(nals);
+		for (int i=0, offset=0;i<nals.length;offset+=4+nals[i++].length) {
+			if (corrupted>0 && i%(nals.length/corrupted) == nals.length/corrupted/2) {
+				stream[offset] = stream[offset+1] = stream[offset+2] = stream[offset+3] = (byte) 0xFF;
+			}
+		}
+		mFile = File.createTempFile("libstreaming", ".h264");
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(stream);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Benchmark
+	public long legacy() throws IOException {
+		InputStream is = new FileInputStream(mFile);
+		LegacyNalParsing.Reader reader = new LegacyNalParsing.Reader(is);
+		long sum = 0;
+		try {
+			while (true) sum += reader.next(mPacket, PAYLOAD);
+		} catch (IOException e) {
+			return sum;
+		} finally {
+			is.close();
+		}
+	}
+
+	@Benchmark
+	public long reader() throws IOException {
+		InputStream is = new FileInputStream(mFile);
+		NalStreamReader reader = new NalStreamReader(is);
+		long sum = 0;
+		try {
+			while (true) {
+				reader.next();
+				ByteBuffer data = reader.getBuffer();
+				int end = reader.getOffset()+reader.getLength();
+				for (int i=reader.getOffset()+1, len;i<end;i+=len) {
+					len = Math.min(PAYLOAD, end-i);
+					data.limit(i+len).position(i);
+					mPacketBuffer.clear();
+					mPacketBuffer.put(data);
+				}
+				sum += reader.getLength();
+			}
+		} catch (IOException e) {
+			return sum;
+		} finally {
+			is.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.util.Log;
+
+/**
+ * Stops a {@link SenderReport} with a BYE while the RtcpScheduler sends its reports, as 
+ * MediaStream.stop() does, with intervals of a few ms so that the scheduler fires all the time.
+ * Checks that neither thread hangs, that no report follows the BYE, and that the reports start 
+ * again with the next RTP packet. Exits with 1 if one fails.
+ */
+public class RtcpSchedulerCheck {
+
+	private final static int ROUNDS = 500;
+
+	/** How long a round may take before the threads are considered stuck, in ms. */
+	private final static long TIMEOUT = 10000;
+
+	private static int sFailures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Logger.setLevel(Log.ASSERT);
+		checkConcurrentBye();
+		checkReportsAfterBye();
+
+		if (sFailures>0) {
+			System.err.println(sFailures+" RTCP scheduler checks failed.");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/** A thread sends RTP packets while another one keeps stopping the reports. */
+	private static void checkConcurrentBye() throws Exception {
+		final SenderReport report = createReport(9);
+		final Random random = new Random(42);
+		final int[] byes = new int[1];
+		Thread stream = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (long ts=0;!Thread.interrupted();ts+=3000) {
+						report.update(1200, ts);
+						Thread.sleep(0, 200000);
+					}
+				} catch (InterruptedException ignore) {
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "Stream");
+		Thread stopper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0;i<ROUNDS;i++) {
+						Thread.sleep(random.nextInt(3));
+						report.sendBye();
+						byes[0]++;
+					}
+				} catch (InterruptedException ignore) {}
+			}
+		}, "Stopper");
+		stream.setDaemon(true);
+		stopper.setDaemon(true);
+		stream.start();
+		stopper.start();
+		stopper.join(TIMEOUT);
+		stream.interrupt();
+		stream.join(TIMEOUT);
+		String error = null;
+		if (stopper.isAlive() || stream.isAlive()) {
+			error = "stuck after "+byes[0]+" BYE";
+			dumpThreads();
+		}
+		report("BYE while reports are sent", report.getByeCount()+" BYE, "+report.getReportCount()+" reports", error);
+		report.close();
+	}
+
+	/** 
+	 * Each round sends a packet, leaves the scheduler some time to send reports, sends a BYE and 
+	 * checks that nothing follows it, then that the next packet starts the reports again.
+	 */
+	private static void checkReportsAfterBye() throws Exception {
+		DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final SenderReport report = createReport(receiver.getLocalPort());
+		Random random = new Random(7);
+		byte[] buffer = new byte[1500];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		String error = null;
+		long ts = 0;
+		for (int i=0;i<ROUNDS && error == null;i++) {
+			report.update(1200, ts += 3000);
+			long end = System.nanoTime()+random.nextInt(3000000);
+			while (System.nanoTime()<end) {}
+			report.sendBye();
+			// Everything up to the BYE
+			receiver.setSoTimeout((int) TIMEOUT);
+			boolean bye = false;
+			while (!bye) {
+				receive(receiver, packet);
+				bye = hasBye(buffer, packet.getLength());
+			}
+			receiver.setSoTimeout(30);
+			try {
+				receive(receiver, packet);
+				error = "round "+i+": a report was sent after the BYE";
+			} catch (SocketTimeoutException ignore) {}
+			if (error != null) break;
+			// The reports start again with the next RTP packet
+			report.update(1200, ts += 3000);
+			receiver.setSoTimeout(1000);
+			try {
+				receive(receiver, packet);
+			} catch (SocketTimeoutException e) {
+				error = "round "+i+": no report after the BYE and a new RTP packet";
+			}
+			report.sendBye();
+			// Drains the reports sent before that BYE
+			receiver.setSoTimeout((int) TIMEOUT);
+			while (!hasBye(buffer, packet.getLength())) receive(receiver, packet);
+		}
+		report("No report after a BYE", report.getByeCount()+" BYE", error);
+		report.close();
+		receiver.close();
+	}
+
+	private static SenderReport createReport(int port) throws IOException {
+		SenderReport report = new SenderReport(42);
+		report.setInterval(2);
+		report.setSessionBandwidth(1000000000L);
+		report.setDestination(InetAddress.getLoopbackAddress(), port);
+		return report;
+	}
+
+	private static void receive(DatagramSocket socket, DatagramPacket packet) throws IOException {
+		packet.setLength(packet.getData().length);
+		socket.receive(packet);
+	}
+
+	/** Whether a compound RTCP packet ends with a BYE. */
+	private static boolean hasBye(byte[] buffer, int length) {
+		for (int offset=0;offset+4<=length;offset+=4*(1+((buffer[offset+2]&0xFF)<<8|buffer[offset+3]&0xFF))) {
+			if ((buffer[offset+1]&0xFF) == 203) return true;
+		}
+		return false;
+	}
+
+	private static void dumpThreads() {
+		for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+			System.err.print(info);
+		}
+	}
+
+	private static void report(String name, String detail, String error) {
+		if (error != null) sFailures++;
+		System.out.println(String.format("%-34s %-20s %s", name, detail, error == null ? "OK" : "FAILED: "+error));
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.util.Log;
+
+/**
+ * Sends packets through the RTP socket to the discard port of the loopback interface, as fast 
+ * as it can. Once the FIFO is full the packetizer waits for the Thread of the socket, so the 
+ * time per operation is the cost of a packet: the hand-over and the send loop, system call included.
+ * The legacy variant hands them over one by one through the semaphores the socket used 
+ * before, see {@link LegacyRtpSocket}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RtpSocketBenchmark {
+
+	/** Packets go to the discard port. */
+	private final static int PORT = 9;
+
+	/** Number of packets published at once, as the packets of an access unit. */
+	@Param({"1", "8"})
+	public int batch;
+
+	private RtpSocket mSocket;
+	private long mTime;
+	private int mCount;
+
+	@Setup
+	public void setup() {
+		Logger.setLevel(Log.ASSERT);
+		mSocket = new RtpSocket();
+		mSocket.setDestination(InetAddress.getLoopbackAddress(), PORT, PORT);
+		Streams.unpace(mSocket);
+		mTime = System.nanoTime();
+		mCount = 0;
+	}
+
+	@Benchmark
+	public void enqueue() throws IOException, InterruptedException {
+		mSocket.requestByteBuffer();
+		mSocket.updateTimestamp(mTime);
+		if (++mCount%batch != 0) {
+			mSocket.stageBuffer(1200);
+			return;
+		}
+		mSocket.markNextPacket();
+		mSocket.stageBuffer(1200);
+		mSocket.commitBuffers();
+		mTime += 33333333;
+	}
+
+	@Benchmark
+	public void enqueueLegacy(Legacy legacy) throws InterruptedException {
+		legacy.socket.requestBuffer();
+		legacy.socket.updateTimestamp(legacy.time);
+		// Each packet was committed on its own, the batch only decides where the marker goes
+		if (++legacy.count%batch == 0) {
+			legacy.socket.markNextPacket();
+			legacy.time += 33333333;
+		}
+		legacy.socket.commitBuffer(1200);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mSocket.close();
+	}
+
+	@State(Scope.Thread)
+	public static class Legacy {
+
+		LegacyRtpSocket socket;
+		long time;
+		int count;
+
+		@Setup
+		public void setup() throws IOException {
+			socket = new LegacyRtpSocket(InetAddress.getLoopbackAddress(), PORT);
+			time = System.nanoTime();
+			count = 0;
+		}
+
+		@TearDown
+		public void tearDown() {
+			socket.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import android.util.Log;
+
+/** Counts a packet in the RTCP sender report, as the socket does for every packet sent. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SenderReportBenchmark {
+
+	private SenderReport mReport;
+	private long mTimestamp;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.setLevel(Log.ASSERT);
+		mReport = new SenderReport(42);
+		// Reports go to the discard port
+		mReport.setDestination(InetAddress.getLoopbackAddress(), 9);
+		mTimestamp = 0;
+	}
+
+	@Benchmark
+	public void update() throws IOException {
+		mReport.update(1200, mTimestamp += 3000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mReport.close();
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.SrtpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encrypts and authenticates RTP packets in place with AES_CM_128_HMAC_SHA1_80, and an RTCP report.
+ * A 4 Mbit/s stream sends about 420 packets of 1200 bytes per second, so the cost of SRTP for such
+ * a stream is about 420 times the time of {@link #protect()} per second of media.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SrtpBenchmark {
+
+	/** Size of the RTP packets in bytes, header included. */
+	@Param({"200", "1200"})
+	public int length;
+
+	private SrtpContext mSrtp;
+	private ByteBuffer mPacket;
+	private byte[] mReport;
+	private short mSequence = 0;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		byte[] key = new byte[30];
+		Random random = new Random(42);
+		random.nextBytes(key);
+		mSrtp = new SrtpContext(key);
+		mPacket = ByteBuffer.allocate(RtpSocket.MTU+SrtpContext.TAG_LENGTH);
+		random.nextBytes(mPacket.array());
+		mPacket.put(0, (byte) 0x80).put(1, (byte) 96).putInt(8, 0x12345678);
+		// A sender report with one SDES CNAME chunk
+		mReport = new byte[52+SrtpContext.SRTCP_INDEX_LENGTH+SrtpContext.TAG_LENGTH];
+		random.nextBytes(mReport);
+		mReport[0] = (byte) 0x80;
+		mReport[1] = (byte) 200;
+	}
+
+	@Benchmark
+	public int protect() {
+		mPacket.putShort(2, mSequence++);
+		return mSrtp.protect(mPacket, length);
+	}
+
+	@Benchmark
+	public int protectRtcp() {
+		return mSrtp.protectRtcp(mReport, 52);
+	}
+
+}
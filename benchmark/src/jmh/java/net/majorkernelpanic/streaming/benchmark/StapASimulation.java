@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Packetizes a minute of low bitrate H.264 at 15 fps with and without STAP-A aggregation, 
+ * and prints the number of RTP packets sent and the bytes they take on the wire, IP and 
+ * UDP headers included. Every access unit starts with an AUD and an SEI, there is an IDR 
+ * preceded by an SPS and a PPS every two seconds, and the pictures are split in slices.
+ */
+public class StapASimulation {
+
+	private final static int FPS = 15;
+	private final static int FRAMES = FPS*60;
+	private final static int GOP = 2*FPS;
+	private final static int[] BITRATES = {32000, 64000, 128000, 256000, 512000};
+	private final static int[] SLICES = {1, 4};
+	private final static int[] THRESHOLDS = {0, H264Packetizer.DEFAULT_AGGREGATION_THRESHOLD, 1300};
+
+	/** IPv4 and UDP headers. */
+	private final static int IP_UDP = 28;
+
+	public static void main(String[] args) throws Exception {
+		Logger.setLevel(Log.ASSERT);
+		StringBuilder header = new StringBuilder(String.format("%-9s %6s", "kbit/s", "slices"));
+		for (int threshold : THRESHOLDS) header.append(String.format(" %16s", "threshold "+threshold));
+		System.out.println(header.append(String.format(" %10s %10s", "packets", "bytes")));
+		for (int bitrate : BITRATES) {
+			for (int slices : SLICES) {
+				ByteBuffer[] frames = frames(bitrate, slices, new Random(42));
+				StringBuilder line = new StringBuilder(String.format("%-9d %6d", bitrate/1000, slices));
+				long[][] samples = new long[THRESHOLDS.length][];
+				for (int i=0;i<THRESHOLDS.length;i++) {
+					samples[i] = packetize(frames, THRESHOLDS[i]);
+					line.append(String.format(" %7d %8d", samples[i][0], samples[i][1]));
+				}
+				// What the default threshold saves
+				long[] none = samples[0], some = samples[1];
+				line.append(String.format(" %9.1f%% %9.1f%%", 100f*(none[0]-some[0])/none[0], 100f*(none[1]-some[1])/none[1]));
+				System.out.println(line);
+			}
+		}
+		System.out.println("Packets and bytes sent in a minute for each threshold, and what the default threshold saves.");
+		System.exit(0);
+	}
+
+	/** Returns the number of packets sent, and the number of bytes they take on the wire. */
+	private static long[] packetize(ByteBuffer[] frames, int threshold) throws Exception {
+		MediaCodec codec = new MediaCodec(frames, 1000000/FPS);
+		H264Packetizer packetizer = new H264Packetizer();
+		packetizer.setAggregationThreshold(threshold);
+		RtpSocket socket = packetizer.getRtpSocket();
+		Streams.unpace(socket);
+		socket.setBufferBounds(4096, 4096);
+		socket.setOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}, (byte) 0);
+		final MediaCodecFrameSource source = new MediaCodecFrameSource(codec);
+		codec.rewind(new Runnable() {
+			@Override
+			public void run() {
+				source.close();
+			}
+		});
+		packetizer.setFrameSource(source);
+		packetizer.run();
+		while (socket.getFifo().size()>0) Thread.sleep(1);
+		Thread.sleep(10);
+		long packets = socket.getMetrics().counter("packets.sent").get();
+		long bytes = socket.getMetrics().counter("bytes.sent").get()+IP_UDP*packets;
+		socket.close();
+		return new long[] {packets, bytes};
+	}
+
+	/** Access units in Annex-B format, an IDR takes as much as 5 other pictures. */
+	private static ByteBuffer[] frames(int bitrate, int slices, Random random) throws IOException {
+		ByteBuffer[] frames = new ByteBuffer[FRAMES];
+		int picture = bitrate/8/FPS*GOP/(GOP+4);
+		for (int i=0;i<FRAMES;i++) {
+			boolean idr = i%GOP == 0;
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			nal(frame, 0x09, 2, random);
+			nal(frame, 0x06, 12, random);
+			if (idr) {
+				nal(frame, 0x67, 13, random);
+				nal(frame, 0x68, 4, random);
+			}
+			// Slices vary by 50% around their average size
+			int size = (idr ? 5*picture : picture)/slices;
+			for (int j=0;j<slices;j++) {
+				nal(frame, idr ? 0x65 : 0x41, Math.max(8, size/2+random.nextInt(size+1)), random);
+			}
+			frames[i] = ByteBuffer.wrap(frame.toByteArray());
+		}
+		return frames;
+	}
+
+	/** Writes a start code and a NAL unit of the given size, its payload is random and holds no start code. */
+	private static void nal(ByteArrayOutputStream frame, int header, int size, Random random) {
+		frame.write(0);
+		frame.write(0);
+		frame.write(0);
+		frame.write(1);
+		frame.write(header);
+		for (int i=1;i<size;i++) frame.write(1+random.nextInt(255));
+	}
+
+}
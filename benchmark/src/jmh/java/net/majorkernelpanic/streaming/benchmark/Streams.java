@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.majorkernelpanic.streaming.rtp.NalSplitter;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+/** Canned streams for the benchmarks, generated with a fixed seed so that every run sees the same data. */
+final class Streams {
+
+	private Streams() {}
+
+	/** Makes the socket send its packets as fast as it can, to no destination. */
+	static void unpace(RtpSocket socket) {
+		socket.setStartGate(RtpSocket.GATE_NONE);
+		socket.getPacer().setFrameSpread(0);
+	}
+
+	/**
+	 * H.264 NAL units in Annex-B format, one per buffer as MediaCodec outputs them:
+	 * an IDR followed by non-IDR slices.
+	 */
+	static ByteBuffer[] annexB(int count, int nalSize) {
+		Random random = new Random(42);
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		for (int i=0;i<count;i++) {
+			byte[] nal = new byte[4+nalSize];
+			random.nextBytes(nal);
+			nal[0] = nal[1] = nal[2] = 0;
+			nal[3] = 1;
+			nal[4] = (byte) (i == 0 ? 0x65 : 0x41);
+			buffers[i] = ByteBuffer.wrap(nal);
+		}
+		return buffers;
+	}
+
+	/**
+	 * H.264 slices without start code nor length, an IDR followed by non-IDR slices. Their payload 
+	 * is random with emulation prevention bytes, as in a real bitstream: compressed data is about 
+	 * as likely to hold a zero byte as random data, and never holds a start code.
+	 * @param recording An H.264 file in Annex-B format whose NAL units are used instead, or an empty string
+	 */
+	static byte[][] slices(int count, int nalSize, String recording) throws IOException {
+		if (recording.length()>0) return nals(recording);
+		Random random = new Random(42);
+		byte[][] nals = new byte[count][];
+		for (int i=0;i<count;i++) {
+			ByteArrayOutputStream nal = new ByteArrayOutputStream(nalSize+nalSize/128);
+			nal.write(i == 0 ? 0x65 : 0x41);
+			for (int j=1, zeros=0, b;j<nalSize;j++) {
+				b = random.nextInt(256);
+				if (zeros == 2 && b<=3) {
+					nal.write(3);
+					zeros = 0;
+				}
+				nal.write(b);
+				zeros = b == 0 ? zeros+1 : 0;
+			}
+			nals[i] = nal.toByteArray();
+		}
+		return nals;
+	}
+
+	/** Puts NAL units one after the other, each preceded by a four bytes start code. */
+	static byte[] annexB(byte[][] nals) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (byte[] nal : nals) {
+			stream.write(0);
+			stream.write(0);
+			stream.write(0);
+			stream.write(1);
+			stream.write(nal, 0, nal.length);
+		}
+		return stream.toByteArray();
+	}
+
+	/** Puts NAL units one after the other, each preceded by its length, as in the mdat box the MediaRecorder writes. */
+	static byte[] lengthPrefixed(byte[][] nals) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stream);
+		for (byte[] nal : nals) {
+			out.writeInt(nal.length);
+			out.write(nal);
+		}
+		return stream.toByteArray();
+	}
+
+	/** Reads the NAL units of an H.264 file in Annex-B format. */
+	private static byte[][] nals(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+		byte[] data = new byte[(int) file.length()];
+		try {
+			file.readFully(data);
+		} finally {
+			file.close();
+		}
+		NalSplitter splitter = new NalSplitter();
+		int count = splitter.split(ByteBuffer.wrap(data), 0, data.length);
+		List<byte[]> nals = new ArrayList<byte[]>(count);
+		for (int i=0;i<count;i++) {
+			if (splitter.getLength(i) == 0) continue;
+			byte[] nal = new byte[splitter.getLength(i)];
+			System.arraycopy(data, splitter.getOffset(i), nal, 0, nal.length);
+			nals.add(nal);
+		}
+		return nals.toArray(new byte[nals.size()][]);
+	}
+
+	/**
+	 * H.265 access units in Annex-B format, as a MediaCodec outputs them: a buffer with the VPS, 
+	 * the SPS and the PPS, then an IDR every 30 pictures. Each picture starts with an AUD and 
+	 * an SEI, one picture in two is a sub-layer non-reference picture of the temporal layer 1. 
+	 * Slices vary by 50% around their size, their payload holds no zero byte.
+	 * @param parameterSets Whether the first buffer holds the parameter sets
+	 */
+	static ByteBuffer[] hevc(int count, int slices, int sliceSize, boolean parameterSets) {
+		Random random = new Random(42);
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		int start = 0;
+		if (parameterSets) {
+			ByteArrayOutputStream config = new ByteArrayOutputStream();
+			hevcNal(config, 32, 0, 24, random);
+			hevcNal(config, 33, 0, 40, random);
+			hevcNal(config, 34, 0, 8, random);
+			buffers[start++] = ByteBuffer.wrap(config.toByteArray());
+		}
+		for (int i=start;i<count;i++) {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			boolean idr = (i-start)%30 == 0, reference = idr || (i-start)%2 == 0;
+			hevcNal(frame, 35, 0, 3, random);
+			hevcNal(frame, 39, 0, 14, random);
+			for (int j=0;j<slices;j++) {
+				// IDR_W_RADL, TRAIL_R or TRAIL_N
+				hevcNal(frame, idr ? 19 : reference ? 1 : 0, reference ? 0 : 1, Math.max(8, sliceSize/2+random.nextInt(sliceSize+1)), random);
+			}
+			buffers[i] = ByteBuffer.wrap(frame.toByteArray());
+		}
+		return buffers;
+	}
+
+	/** Writes a start code and an H.265 NAL unit of the given type, temporal id and size, its header included. */
+	private static void hevcNal(ByteArrayOutputStream stream, int type, int tid, int size, Random random) {
+		stream.write(0);
+		stream.write(0);
+		stream.write(0);
+		stream.write(1);
+		stream.write(type<<1);
+		stream.write(tid+1);
+		for (int i=2;i<size;i++) stream.write(1+random.nextInt(255));
+	}
+
+	/** AAC frames in ADTS format, 44.1 kHz stereo, without CRC. */
+	static byte[] adts(int count, int frameLength) {
+		Random random = new Random(42);
+		int length = 7+frameLength;
+		byte[] stream = new byte[count*length];
+		random.nextBytes(stream);
+		for (int i=0;i<count;i++) {
+			int o = i*length;
+			stream[o] = (byte) 0xFF;
+			stream[o+1] = (byte) 0xF1;
+			// AAC LC, 44.1 kHz (index 4), 2 channels
+			stream[o+2] = (byte) (1<<6 | 4<<2);
+			stream[o+3] = (byte) (2<<6 | (length>>11)&0x03);
+			stream[o+4] = (byte) (length>>3);
+			stream[o+5] = (byte) ((length&0x07)<<5 | 0x1F);
+			stream[o+6] = (byte) 0xFC;
+		}
+		return stream;
+	}
+
+	/** AMR-NB frames at 12.2 kbit/s, after the header of the AMR file format. */
+	static byte[] amr(int count) {
+		Random random = new Random(42);
+		byte[] header = "#!AMR\n".getBytes();
+		int length = 1+31;
+		byte[] stream = new byte[header.length+count*length];
+		random.nextBytes(stream);
+		System.arraycopy(header, 0, stream, 0, header.length);
+		for (int i=0;i<count;i++) {
+			stream[header.length+i*length] = (byte) (7<<3 | 0x04);
+		}
+		return stream;
+	}
+
+	/** Raw AAC frames, one per buffer as MediaCodec outputs them. */
+	static ByteBuffer[] aac(int count, int frameLength) {
+		Random random = new Random(42);
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		for (int i=0;i<count;i++) {
+			byte[] frame = new byte[frameLength];
+			random.nextBytes(frame);
+			buffers[i] = ByteBuffer.wrap(frame);
+		}
+		return buffers;
+	}
+
+	/** 
+	 * H.263 pictures as the MediaRecorder outputs them, each starts with a picture start code. 
+	 * The first one is an INTRA picture, the bytes that follow the start codes are never zero.
+	 */
+	static byte[] h263(int count, int frameLength) {
+		Random random = new Random(42);
+		byte[] stream = new byte[count*frameLength];
+		random.nextBytes(stream);
+		for (int i=0;i<stream.length;i++) {
+			if (stream[i] == 0) stream[i] = 1;
+		}
+		for (int i=0;i<count;i++) {
+			int o = i*frameLength;
+			stream[o] = stream[o+1] = 0;
+			stream[o+2] = (byte) 0x80;
+			stream[o+3] = (byte) 0x02;
+			stream[o+4] = (byte) (i == 0 ? 0x08 : 0x0A);
+		}
+		return stream;
+	}
+
+	/** A random picture in NV21, as the camera outputs them. */
+	static byte[] nv21(int width, int height) {
+		byte[] picture = new byte[width*height*3/2];
+		new Random(42).nextBytes(picture);
+		return picture;
+	}
+
+	/**
+	 * Writes a fragmented MP4 file: ftyp, a moov box that describes an H.264 track, and fragments
+	 * made of a moof box and of a sparse mdat box.
+	 */
+	static void mp4(String path, int fragments, int fragmentLength) throws IOException {
+		byte[] sps = {0x67, 0x42, (byte) 0x80, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80, (byte) 0xF6, (byte) 0x80, 0x6D, 0x0A, 0x13, 0x50};
+		byte[] pps = {0x68, (byte) 0xCE, 0x06, (byte) 0xE2};
+		ByteBuffer avcc = ByteBuffer.allocate(11+sps.length+pps.length);
+		avcc.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xFF).put((byte) 0xE1);
+		avcc.putShort((short) sps.length).put(sps).put((byte) 1).putShort((short) pps.length).put(pps);
+		byte[] avc1 = box("avc1", new byte[78], box("avcC", avcc.array()));
+		byte[] stsd = box("stsd", new byte[8], avc1);
+		byte[] stbl = box("stbl", stsd, box("stts", new byte[16]), box("stsz", new byte[20]), box("stco", new byte[16]));
+		byte[] minf = box("minf", box("vmhd", new byte[12]), stbl);
+		byte[] mdia = box("mdia", box("mdhd", new byte[24]), box("hdlr", new byte[25]), minf);
+		byte[] moov = box("moov", box("mvhd", new byte[100]), box("trak", box("tkhd", new byte[84]), mdia));
+		byte[] moof = box("moof", box("mfhd", new byte[8]), box("traf", box("tfhd", new byte[8]), box("trun", new byte[64])));
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.write(box("ftyp", "isom".getBytes(), new byte[4], "isomavc1".getBytes()));
+			file.write(moov);
+			for (int i=0;i<fragments;i++) {
+				file.write(moof);
+				file.writeInt(8+fragmentLength);
+				file.write("mdat".getBytes());
+				file.seek(file.getFilePointer()+fragmentLength);
+			}
+			file.setLength(file.getFilePointer());
+		} finally {
+			file.close();
+		}
+	}
+
+	private static byte[] box(String type, byte[]... content) {
+		int length = 8;
+		for (byte[] part : content) length += part.length;
+		ByteBuffer box = ByteBuffer.allocate(length);
+		box.putInt(length).put(type.getBytes());
+		for (byte[] part : content) box.put(part);
+		return box.array();
+	}
+
+}
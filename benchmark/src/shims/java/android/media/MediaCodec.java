@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shim of the Android MediaCodec for the benchmarks on the JVM: it replays canned output buffers,
+ * one per call to {@link #dequeueOutputBuffer(BufferInfo, long)}, as an encoder would output them.
+ * Once all the buffers have been dequeued, the listener given to {@link #rewind(Runnable)} is 
+ * called and no buffer is available anymore. With {@link #replay(int, Runnable)}, the buffers
+ * are output over and over until the number of buffers asked for is reached.
+ */
+public final class MediaCodec {
+
+	public static final int INFO_TRY_AGAIN_LATER = -1;
+	public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+	public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+	public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+	public static final int BUFFER_FLAG_KEY_FRAME = 1;
+	public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+	public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+	public static final class BufferInfo {
+		public int offset, size, flags;
+		public long presentationTimeUs;
+
+		public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+			offset = newOffset;
+			size = newSize;
+			presentationTimeUs = newTimeUs;
+			flags = newFlags;
+		}
+	}
+
+	private final ByteBuffer[] mBuffers;
+	private final long mInterval;
+	private int mNext = 0, mCount = 0;
+	private long mTime = 0;
+	private Runnable mOnEnd = null;
+
+	/**
+	 * @param buffers The buffers output by the codec, in that order
+	 * @param interval The time between two buffers, in us
+	 */
+	public MediaCodec(ByteBuffer[] buffers, long interval) {
+		mBuffers = buffers;
+		mInterval = interval;
+	}
+
+	/** Outputs the buffers again, the listener is called once they have all been dequeued. */
+	public void rewind(Runnable onEnd) {
+		replay(mBuffers.length, onEnd);
+	}
+
+	/** Outputs count buffers, going through the canned ones as many times as needed. */
+	public void replay(int count, Runnable onEnd) {
+		mNext = 0;
+		mCount = count;
+		mOnEnd = onEnd;
+	}
+
+	public ByteBuffer[] getOutputBuffers() {
+		return mBuffers;
+	}
+
+	public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+		if (mNext>=mCount) {
+			if (mOnEnd != null) mOnEnd.run();
+			return INFO_TRY_AGAIN_LATER;
+		}
+		int index = mNext++%mBuffers.length;
+		mTime += mInterval;
+		info.set(0, mBuffers[index].capacity(), mTime, index == 0 ? BUFFER_FLAG_KEY_FRAME : 0);
+		return index;
+	}
+
+	public void releaseOutputBuffer(int index, boolean render) {}
+
+	public MediaFormat getOutputFormat() {
+		return new MediaFormat();
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.media;
+
+/** Shim of the Android codec information for the benchmarks on the JVM, no codec is available. */
+public final class MediaCodecInfo {
+
+	public static final class CodecCapabilities {
+		public static final int COLOR_FormatYUV420Planar = 19;
+		public static final int COLOR_FormatYUV420PackedPlanar = 20;
+		public static final int COLOR_FormatYUV420SemiPlanar = 21;
+		public static final int COLOR_FormatYUV420PackedSemiPlanar = 39;
+		public static final int COLOR_TI_FormatYUV420PackedSemiPlanar = 0x7f000100;
+		public static final int COLOR_FormatSurface = 0x7F000789;
+		public int[] colorFormats = new int[0];
+	}
+
+	public String getName() {
+		return "";
+	}
+
+	public boolean isEncoder() {
+		return false;
+	}
+
+	public String[] getSupportedTypes() {
+		return new String[0];
+	}
+
+	public CodecCapabilities getCapabilitiesForType(String type) {
+		return new CodecCapabilities();
+	}
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.os;
+
+/** Shim of the Android clocks for the benchmarks on the JVM. */
+public final class SystemClock {
+
+	private SystemClock() {}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime()/1000000;
+	}
+
+	public static long uptimeMillis() {
+		return System.nanoTime()/1000000;
+	}
+
+}
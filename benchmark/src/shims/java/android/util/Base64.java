@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.util;
+
+
+/** Shim of the Android Base64 codec for the benchmarks on the JVM, only NO_WRAP is supported. */
+public class Base64 {
+
+	public static final int DEFAULT = 0;
+	public static final int NO_WRAP = 2;
+
+	public static byte[] decode(String str, int flags) {
+		return java.util.Base64.getDecoder().decode(str);
+	}
+
+	public static String encodeToString(byte[] input, int flags) {
+		return encodeToString(input, 0, input.length, flags);
+	}
+
+	public static String encodeToString(byte[] input, int offset, int len, int flags) {
+		byte[] copy = new byte[len];
+		System.arraycopy(input, offset, copy, 0, len);
+		return java.util.Base64.getEncoder().encodeToString(copy);
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.util;
+
+/** Shim of the Android logger for the benchmarks on the JVM, warnings and errors go to stderr. */
+public final class Log {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	private Log() {}
+
+	public static int v(String tag, String msg) { return println(VERBOSE, tag, msg); }
+	public static int d(String tag, String msg) { return println(DEBUG, tag, msg); }
+	public static int i(String tag, String msg) { return println(INFO, tag, msg); }
+	public static int w(String tag, String msg) { return println(WARN, tag, msg); }
+	public static int e(String tag, String msg) { return println(ERROR, tag, msg); }
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg+'\n'+getStackTraceString(tr));
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg+'\n'+getStackTraceString(tr));
+	}
+
+	public static int wtf(String tag, Throwable tr) {
+		return println(ASSERT, tag, getStackTraceString(tr));
+	}
+
+	public static String getStackTraceString(Throwable tr) {
+		if (tr == null) return "";
+		java.io.StringWriter writer = new java.io.StringWriter();
+		tr.printStackTrace(new java.io.PrintWriter(writer));
+		return writer.toString();
+	}
+
+	public static int println(int priority, String tag, String msg) {
+		if (priority>=WARN) System.err.println(tag+": "+msg);
+		return 0;
+	}
+
+}
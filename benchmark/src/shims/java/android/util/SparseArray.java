@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.util;
+
+import java.util.TreeMap;
+
+/** Shim of the Android SparseArray for the benchmarks on the JVM. */
+public class SparseArray<E> {
+
+	private final TreeMap<Integer, E> mMap = new TreeMap<Integer, E>();
+
+	public E get(int key) {
+		return mMap.get(key);
+	}
+
+	public void put(int key, E value) {
+		mMap.put(key, value);
+	}
+
+	public int size() {
+		return mMap.size();
+	}
+
+	public int keyAt(int index) {
+		int i = 0;
+		for (Integer key : mMap.keySet()) {
+			if (i++ == index) return key;
+		}
+		throw new ArrayIndexOutOfBoundsException(index);
+	}
+
+	public E valueAt(int index) {
+		return mMap.get(keyAt(index));
+	}
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.audio;
+
+/**
+ * Stands in for the AACStream of the library, which needs the Android media APIs,
+ * so that the {@link net.majorkernelpanic.streaming.rtp.AACADTSPacketizer} can be benchmarked on the JVM.
+ */
+public class AACStream {
+
+	/** There are 13 supported frequencies by ADTS. **/
+	public static final int[] AUDIO_SAMPLING_RATES = {
+		96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350, -1, -1, -1
+	};
+
+}
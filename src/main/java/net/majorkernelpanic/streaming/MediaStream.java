@@ -23,7 +23,17 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.util.Random;
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.BandwidthEstimator;
+import net.majorkernelpanic.streaming.rtp.FecEncoder;
+import net.majorkernelpanic.streaming.rtp.FrameTracer;
+import net.majorkernelpanic.streaming.rtp.HeaderExtensions;
+import net.majorkernelpanic.streaming.rtp.MediaClock;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.RtxSender;
+import net.majorkernelpanic.streaming.rtp.SrtpContext;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -33,6 +43,7 @@ import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -79,6 +90,17 @@ public abstract class MediaStream implements Stream {
 	protected byte mChannelIdentifier = 0;
 	protected OutputStream mOutputStream = null;
 	protected InetAddress mDestination;
+	private long mStartTime = 0;
+
+	// Given to the packetizer when the stream is configured and started, it may be replaced by configure()
+	private MediaClock mMediaClock = null;
+	private FrameTracer mFrameTracer = null;
+	private HeaderExtensions mHeaderExtensions = null;
+	private FecEncoder mFecEncoder = null;
+	private RtxSender mRtxSender = null;
+	private SrtpContext mSrtp = null;
+	private BandwidthEstimator mEstimator = null;
+	private RtcpReceiver.Callback mRtcpCallback = null;
 	
 	protected ParcelFileDescriptor[] mParcelFileDescriptors;
 	protected ParcelFileDescriptor mParcelRead;
@@ -236,6 +258,172 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate(); 
 	}
 
+	/**
+	 * Traces each access unit of the stream from the encoder to the network, see {@link FrameTracer}.
+	 * @param tracer The tracer, or null to stop tracing
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setFrameTracer(FrameTracer tracer) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mFrameTracer = tracer;
+		if (mPacketizer != null) mPacketizer.setFrameTracer(tracer);
+	}
+
+	/** Returns the tracer of the stream, null if tracing is disabled. */
+	public FrameTracer getFrameTracer() {
+		return mFrameTracer;
+	}
+
+	/** 
+	 * Returns the metrics of the stream, see {@link RtpSocket#getMetrics()}. 
+	 * They are those of the current packetizer, empty if the stream has none yet.
+	 */
+	public MetricsRegistry getMetrics() {
+		return mPacketizer != null ? mPacketizer.getRtpSocket().getMetrics() : new MetricsRegistry();
+	}
+
+	/**
+	 * Adds RTP header extensions (abs-send-time, transport-wide sequence numbers) to the packets of the stream.
+	 * @param extensions The extensions, or null to remove them
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setHeaderExtensions(HeaderExtensions extensions) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mHeaderExtensions = extensions;
+		if (mPacketizer != null) mPacketizer.setHeaderExtensions(extensions);
+	}
+
+	/** 
+	 * Called by the Thread of the RTP socket with the bitrate the network can take, in bit per second. 
+	 * Audio encoders keep their bitrate, see {@link VideoStream}.
+	 */
+	protected void onTargetBitrate(int bitrate) {}
+
+	/** Returns the extmap attributes of the stream that go in its media description. */
+	public String getHeaderExtensionsDescription() {
+		return mHeaderExtensions != null ? mHeaderExtensions.getSessionDescription() : "";
+	}
+
+	/**
+	 * Protects the packets of the stream with ULPFEC (RFC 5109).
+	 * @param fec The FEC encoder, or null to disable FEC
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setFecEncoder(FecEncoder fec) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mFecEncoder = fec;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setFecEncoder(fec);
+	}
+
+	/**
+	 * Retransmits the packets of the stream that receivers report lost (RFC 4588).
+	 * @param rtx The RTX sender, or null to disable retransmissions
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setRtxSender(RtxSender rtx) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mRtxSender = rtx;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setRtxSender(rtx);
+	}
+
+	/**
+	 * Sets the clock that gives the RTP and NTP timestamps of the stream. The {@link Session}
+	 * gives the same clock to all its tracks, so that receivers can synchronize them.
+	 * @param clock The clock, or null to let the stream use its own
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setMediaClock(MediaClock clock) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mMediaClock = clock;
+		if (mPacketizer != null && clock != null) mPacketizer.getRtpSocket().setMediaClock(clock);
+	}
+
+	/**
+	 * Encrypts and authenticates the RTP and RTCP packets of the stream (RFC 3711).
+	 * The master key goes in the media description, see {@link #getSrtpDescription()}.
+	 * @param srtp The SRTP context, or null to send plain RTP packets
+	 * @throws IllegalStateException If the stream is streaming
+	 */
+	public void setSrtp(SrtpContext srtp) {
+		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
+		mSrtp = srtp;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setSrtp(srtp);
+	}
+
+	/** Returns the SRTP context of the stream, null if its packets are not protected. */
+	public SrtpContext getSrtp() {
+		return mSrtp;
+	}
+
+	/** Returns the crypto attribute of the stream that goes in its media description, if SRTP is enabled. */
+	public String getSrtpDescription() {
+		SrtpContext srtp = getSrtp();
+		return srtp != null ? srtp.getSessionDescription() : "";
+	}
+
+	/**
+	 * Adapts the bitrate of the encoder to what the network can take. The target bitrates of the
+	 * estimator are given to {@link #onTargetBitrate(int)}, only video streams encoded with a 
+	 * MediaCodec follow them, from Android 4.4.
+	 * @param estimator The estimator, or null to keep the bitrate of the encoder fixed
+	 */
+	public void setBandwidthEstimator(BandwidthEstimator estimator) {
+		if (estimator != null) {
+			estimator.setListener(new BandwidthEstimator.Listener() {
+				@Override
+				public void onTargetBitrate(int bitrate) {
+					MediaStream.this.onTargetBitrate(bitrate);
+				}
+			});
+		}
+		mEstimator = estimator;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setBandwidthEstimator(estimator);
+	}
+
+	/**
+	 * Sets the callback told about the RTCP feedback (reception reports, NACKs, keyframe
+	 * requests, REMB) of the receivers of the stream.
+	 */
+	public void setRtcpCallback(RtcpReceiver.Callback callback) {
+		mRtcpCallback = callback;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setRtcpCallback(callback);
+	}
+
+	/** 
+	 * Returns the RTCP receiver of the destination of the stream, null if the stream is not configured yet. 
+	 * When TCP is used, the packets of the RTCP channel must be handed over to it.
+	 */
+	public RtcpReceiver getRtcpReceiver() {
+		return mPacketizer != null ? mPacketizer.getRtpSocket().getPrimaryDestination().getReceiver() : null;
+	}
+
+	/** Returns the payload types sent in addition to the one of the media, each one preceded by a space, to be appended to the media description line. */
+	public String getExtraPayloadTypes() {
+		String payloadTypes = "";
+		if (mRtxSender != null) payloadTypes += " "+mRtxSender.getPayloadType();
+		if (mFecEncoder != null) payloadTypes += " "+mFecEncoder.getPayloadType();
+		return payloadTypes;
+	}
+
+	/** Returns the rtpmap and fmtp attributes of the payload types listed by {@link #getExtraPayloadTypes()}. */
+	public String getExtraPayloadTypesDescription() {
+		String description = "";
+		// The clock rate of the stream is known once it is configured
+		if (mRtxSender != null && mPacketizer != null) description += mRtxSender.getSessionDescription(mPacketizer.getRtpSocket().getClockFrequency());
+		if (mFecEncoder != null) description += mFecEncoder.getSessionDescription();
+		return description;
+	}
+
+	/**
+	 * Returns the time in ms between the call to {@link #start()} and the moment the first 
+	 * decodable frame of the stream was sent, or -1 if it was not sent yet.
+	 */
+	public long getTimeToFirstFrame() {
+		if (mPacketizer == null) return -1;
+		long first = mPacketizer.getRtpSocket().getFirstFrameTime();
+		return first>0 && mStartTime>0 ? first-mStartTime : -1;
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -255,10 +443,29 @@ public abstract class MediaStream implements Stream {
 		if (mPacketizer != null) {
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+			applySettings();
 		}
 		mMode = mRequestedMode;
 		mConfigured = true;
 	}
+
+	/** 
+	 * Gives the settings of the stream to its packetizer. A subclass that replaces 
+	 * the packetizer when it is configured should call it again.
+	 * The socket ignores the settings that did not change, so this can be called while 
+	 * it still sends the last packets of a stream that was just stopped.
+	 */
+	protected void applySettings() {
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		if (mMediaClock != null) socket.setMediaClock(mMediaClock);
+		mPacketizer.setFrameTracer(mFrameTracer);
+		mPacketizer.setHeaderExtensions(mHeaderExtensions);
+		socket.setFecEncoder(mFecEncoder);
+		socket.setRtxSender(mRtxSender);
+		socket.setSrtp(mSrtp);
+		socket.setBandwidthEstimator(mEstimator);
+		socket.setRtcpCallback(mRtcpCallback);
+	}
 	
 	/** Starts the stream. */
 	public synchronized void start() throws IllegalStateException, IOException {
@@ -270,6 +477,9 @@ public abstract class MediaStream implements Stream {
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
+		// The packetizer may have been replaced when the stream was configured
+		applySettings();
+		mStartTime = SystemClock.elapsedRealtime();
 		
 		if (mMode != MODE_MEDIARECORDER_API) {
 			encodeWithMediaCodec();
@@ -299,6 +509,8 @@ public abstract class MediaStream implements Stream {
 			} catch (Exception e) {
 				e.printStackTrace();
 			}	
+			// Receivers are told that the stream ended
+			mPacketizer.getRtpSocket().sendBye();
 			mStreaming = false;
 		}
 	}
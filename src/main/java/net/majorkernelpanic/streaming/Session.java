@@ -29,6 +29,9 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import net.majorkernelpanic.streaming.rtp.HeaderExtensions;
+import net.majorkernelpanic.streaming.rtp.MediaClock;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -106,6 +109,9 @@ public class Session {
 	private AudioStream mAudioStream = null;
 	private VideoStream mVideoStream = null;
 
+	/** Shared by the tracks, so that their sender reports agree on the time. */
+	private final MediaClock mMediaClock = new MediaClock();
+
 	private Callback mCallback;
 	private Handler mMainHandler;
 
@@ -135,6 +141,7 @@ public class Session {
 		/** 
 		 * Called periodically to inform you on the bandwidth 
 		 * consumption of the streams when streaming. 
+		 * More is available with {@link Session#getMetrics()}.
 		 */
 		public void onBitrateUpdate(long bitrate);
 
@@ -176,12 +183,14 @@ public class Session {
 	void addAudioTrack(AudioStream track) {
 		removeAudioTrack();
 		mAudioStream = track;
+		track.setMediaClock(mMediaClock);
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void addVideoTrack(VideoStream track) {
 		removeVideoTrack();
 		mVideoStream = track;
+		track.setMediaClock(mMediaClock);
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
@@ -200,6 +209,11 @@ public class Session {
 		}
 	}
 
+	/** Returns the clock that gives the RTP and NTP timestamps of the tracks of the session. */
+	public MediaClock getMediaClock() {
+		return mMediaClock;
+	}
+
 	/** Returns the underlying {@link AudioStream} used by the {@link Session}. */
 	public AudioStream getAudioTrack() {
 		return mAudioStream;
@@ -305,6 +319,16 @@ public class Session {
 		return mCallback;
 	}	
 
+	/**
+	 * Adds RTP header extensions to the packets of all the tracks of the session, they share
+	 * the same transport-wide sequence numbers. Must be called while the session is not streaming.
+	 * @param extensions The extensions, or null to remove them
+	 */
+	public void setHeaderExtensions(HeaderExtensions extensions) {
+		if (mAudioStream != null) mAudioStream.setHeaderExtensions(extensions);
+		if (mVideoStream != null) mVideoStream.setHeaderExtensions(extensions);
+	}
+
 	/** 
 	 * Returns a Session Description that can be stored in a file or sent to a client with RTSP.
 	 * @return The Session Description.
@@ -326,16 +350,31 @@ public class Session {
 		sessionDescription.append("a=recvonly\r\n");
 		// Prevents two different sessions from using the same peripheral at the same time
 		if (mAudioStream != null) {
-			sessionDescription.append(mAudioStream.getSessionDescription());
+			sessionDescription.append(describe(mAudioStream));
 			sessionDescription.append("a=control:trackID="+0+"\r\n");
 		}
 		if (mVideoStream != null) {
-			sessionDescription.append(mVideoStream.getSessionDescription());
+			sessionDescription.append(describe(mVideoStream));
 			sessionDescription.append("a=control:trackID="+1+"\r\n");
 		}			
 		return sessionDescription.toString();
 	}
 
+	/** Returns the media description of a stream, with its extra payload types, its header extensions and its SRTP key. */
+	private String describe(MediaStream stream) {
+		String description = stream.getSessionDescription();
+		if (stream.getSrtp() != null) {
+			description = description.replaceFirst(" RTP/AVP ", " RTP/SAVP ");
+		}
+		String payloadTypes = stream.getExtraPayloadTypes();
+		if (payloadTypes.length()>0) {
+			// The extra payload types go at the end of the m= line
+			int eol = description.indexOf("\r\n");
+			description = description.substring(0, eol)+payloadTypes+description.substring(eol);
+		}
+		return description+stream.getExtraPayloadTypesDescription()+stream.getHeaderExtensionsDescription()+stream.getSrtpDescription();
+	}
+
 	/** Returns the destination set with {@link #setDestination(String)}. */
 	public String getDestination() {
 		return mDestination;
@@ -349,6 +388,28 @@ public class Session {
 		return sum;
 	}
 
+	/** 
+	 * Returns the metrics of the session, those of its tracks are under "audio" and "video".
+	 * Take a snapshot with {@link MetricsRegistry#snapshot()}, from any thread.
+	 */
+	public MetricsRegistry getMetrics() {
+		MetricsRegistry metrics = new MetricsRegistry();
+		if (mAudioStream != null) metrics.addChild("audio", mAudioStream.getMetrics());
+		if (mVideoStream != null) metrics.addChild("video", mVideoStream.getMetrics());
+		return metrics;
+	}
+
+	/** 
+	 * Returns the time in ms it took for the first decodable frame of the session to be sent 
+	 * once the video track was started, the audio track is used if there is no video track. 
+	 * Returns -1 if nothing was sent yet.
+	 */
+	public long getTimeToFirstFrame() {
+		if (mVideoStream != null) return mVideoStream.getTimeToFirstFrame();
+		if (mAudioStream != null) return mAudioStream.getTimeToFirstFrame();
+		return -1;
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		return (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming());
@@ -644,47 +705,19 @@ public class Session {
 	}
 
 	private void postPreviewStarted() {
-		mMainHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				if (mCallback != null) {
-					mCallback.onPreviewStarted(); 
-				}
-			}
-		});
+		mMainHandler.post(mPreviewStarted);
 	}
 
 	private void postSessionConfigured() {
-		mMainHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				if (mCallback != null) {
-					mCallback.onSessionConfigured(); 
-				}
-			}
-		});
+		mMainHandler.post(mSessionConfigured);
 	}
 
 	private void postSessionStarted() {
-		mMainHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				if (mCallback != null) {
-					mCallback.onSessionStarted(); 
-				}
-			}
-		});
+		mMainHandler.post(mSessionStarted);
 	}		
 
 	private void postSessionStopped() {
-		mMainHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				if (mCallback != null) {
-					mCallback.onSessionStopped(); 
-				}
-			}
-		});
+		mMainHandler.post(mSessionStopped);
 	}	
 
 	private void postError(final int reason, final int streamType,final Exception e) {
@@ -698,17 +731,59 @@ public class Session {
 		});
 	}	
 
-	private void postBitRate(final long bitrate) {
-		mMainHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				if (mCallback != null) {
-					mCallback.onBitrateUpdate(bitrate);
-				}
-			}
-		});
+	private void postBitRate(long bitrate) {
+		mBitrate = bitrate;
+		mMainHandler.post(mBitrateUpdated);
 	}		
 
+	// The callbacks are posted with Runnables created once, the bitrate is posted twice a second while streaming
+	private volatile long mBitrate = 0;
+
+	private final Runnable mBitrateUpdated = new Runnable() {
+		@Override
+		public void run() {
+			if (mCallback != null) {
+				mCallback.onBitrateUpdate(mBitrate);
+			}
+		}
+	};
+
+	private final Runnable mPreviewStarted = new Runnable() {
+		@Override
+		public void run() {
+			if (mCallback != null) {
+				mCallback.onPreviewStarted(); 
+			}
+		}
+	};
+
+	private final Runnable mSessionConfigured = new Runnable() {
+		@Override
+		public void run() {
+			if (mCallback != null) {
+				mCallback.onSessionConfigured(); 
+			}
+		}
+	};
+
+	private final Runnable mSessionStarted = new Runnable() {
+		@Override
+		public void run() {
+			if (mCallback != null) {
+				mCallback.onSessionStarted(); 
+			}
+		}
+	};
+
+	private final Runnable mSessionStopped = new Runnable() {
+		@Override
+		public void run() {
+			if (mCallback != null) {
+				mCallback.onSessionStopped(); 
+			}
+		}
+	};
+
 	private Runnable mUpdateBitrate = new Runnable() {
 		@Override
 		public void run() {
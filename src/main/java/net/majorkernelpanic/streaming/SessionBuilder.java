@@ -27,6 +27,7 @@ import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.content.Context;
@@ -49,6 +50,9 @@ public class SessionBuilder {
 	/** Can be used with {@link #setVideoEncoder}. */
 	public final static int VIDEO_H263 = 2;
 
+	/** Can be used with {@link #setVideoEncoder}, needs an H.265 encoder and Android 5.0. */
+	public final static int VIDEO_H265 = 3;
+
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_NONE = 0;
 
@@ -130,6 +134,12 @@ public class SessionBuilder {
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
 			session.addVideoTrack(stream);
 			break;
+		case VIDEO_H265:
+			H265Stream hevc = new H265Stream(mCamera);
+			if (mContext!=null) 
+				hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
+			session.addVideoTrack(hevc);
+			break;
 		}
 
 		if (session.getVideoTrack()!=null) {
@@ -27,7 +27,7 @@ import java.nio.ByteBuffer;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -150,6 +150,7 @@ public class AACStream extends AudioStream {
 			}
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+			applySettings();
 		}
 
 		if (mMode == MODE_MEDIARECORDER_API) {
@@ -208,7 +209,7 @@ public class AACStream extends AudioStream {
 		mAudioRecord.startRecording();
 		mMediaCodec.start();
 
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
+		final MediaCodecFrameSource source = new MediaCodecFrameSource(mMediaCodec);
 		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
 
 		mThread = new Thread(new Runnable() {
@@ -238,7 +239,7 @@ public class AACStream extends AudioStream {
 		mThread.start();
 
 		// The packetizer encapsulates this stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(inputStream);
+		mPacketizer.setFrameSource(source);
 		mPacketizer.start();
 
 		mStreaming = true;
@@ -19,6 +19,7 @@
 package net.majorkernelpanic.streaming.hw;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import android.annotation.SuppressLint;
@@ -39,10 +40,11 @@ public class CodecManager {
 		MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar
 	};		
 
-	private static Codec[] sEncoders = null;
-	private static Codec[] sDecoders = null;
+	// The codecs found for each mime type
+	private static HashMap<String, Codec[]> sEncoders = new HashMap<String, Codec[]>();
+	private static HashMap<String, Codec[]> sDecoders = new HashMap<String, Codec[]>();
 
-	static class Codec {
+	public static class Codec {
 		public Codec(String name, Integer[] formats) {
 			this.name = name;
 			this.formats = formats;
@@ -57,7 +59,7 @@ public class CodecManager {
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findEncodersForMimeType(String mimeType) {
-		if (sEncoders != null) return sEncoders;
+		if (sEncoders.containsKey(mimeType)) return sEncoders.get(mimeType);
 
 		ArrayList<Codec> encoders = new ArrayList<Codec>();
 
@@ -93,8 +95,9 @@ public class CodecManager {
 			}
 		}
 
-		sEncoders = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
-		return sEncoders;
+		Codec[] codecs = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
+		sEncoders.put(mimeType, codecs);
+		return codecs;
 
 	}
 
@@ -104,7 +107,7 @@ public class CodecManager {
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findDecodersForMimeType(String mimeType) {
-		if (sDecoders != null) return sDecoders;
+		if (sDecoders.containsKey(mimeType)) return sDecoders.get(mimeType);
 		ArrayList<Codec> decoders = new ArrayList<Codec>();
 
 		// We loop through the decoders, apparently this can take up to a sec (testes on a GS3)
@@ -139,18 +142,19 @@ public class CodecManager {
 			}
 		}
 
-		sDecoders = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
+		Codec[] codecs = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
 
 		// We will use the decoder from google first, it seems to work properly on many phones
-		for (int i=0;i<sDecoders.length;i++) {
-			if (sDecoders[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
-				Codec codec = sDecoders[0];
-				sDecoders[0] = sDecoders[i];
-				sDecoders[i] = codec;
+		for (int i=0;i<codecs.length;i++) {
+			if (codecs[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
+				Codec codec = codecs[0];
+				codecs[0] = codecs[i];
+				codecs[i] = codec;
 			} 
 		}
 
-		return sDecoders;
+		sDecoders.put(mimeType, codecs);
+		return codecs;
 	}
 
 }
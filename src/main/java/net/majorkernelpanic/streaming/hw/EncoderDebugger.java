@@ -23,6 +23,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import net.majorkernelpanic.streaming.hw.CodecManager.Codec;
+import net.majorkernelpanic.streaming.log.Logger;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -34,7 +35,6 @@ import android.media.MediaFormat;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Base64;
-import android.util.Log;
 
 /**
  * 
@@ -183,7 +183,7 @@ public class EncoderDebugger {
 			return;
 		}
 
-		if (VERBOSE) Log.d(TAG, ">>>> Testing the phone for resolution "+mWidth+"x"+mHeight);
+		if (VERBOSE) Logger.d(TAG, ">>>> Testing the phone for resolution {}x{}", mWidth, mHeight);
 		
 		// Builds a list of available encoders and decoders we may be able to use
 		// because they support some nice color formats
@@ -203,7 +203,7 @@ public class EncoderDebugger {
 				mEncoderName = encoders[i].name;
 				mEncoderColorFormat = encoders[i].formats[j];
 
-				if (VERBOSE) Log.v(TAG, ">> Test "+(n++)+"/"+count+": "+mEncoderName+" with color format "+mEncoderColorFormat+" at "+mWidth+"x"+mHeight);
+				if (VERBOSE) Logger.v(TAG, ">> Test "+(n++)+"/"+count+": "+mEncoderName+" with color format "+mEncoderColorFormat+" at "+mWidth+"x"+mHeight);
 				
 				// Converts from NV21 to YUV420 with the specified parameters
 				mNV21.setSize(mWidth, mHeight);
@@ -222,7 +222,7 @@ public class EncoderDebugger {
 					configureEncoder();
 					searchSPSandPPS();
 					
-					if (VERBOSE) Log.v(TAG, "SPS and PPS in b64: SPS="+mB64SPS+", PPS="+mB64PPS);
+					if (VERBOSE) Logger.v(TAG, "SPS and PPS in b64: SPS={}, PPS={}", mB64SPS, mB64PPS);
 
 					// Feeds the encoder with an image repeatedly to produce some NAL units
 					encode();
@@ -236,16 +236,16 @@ public class EncoderDebugger {
 							try {
 								configureDecoder();
 							} catch (Exception e) {
-								if (VERBOSE) Log.d(TAG, mDecoderName+" can't be used with "+mDecoderColorFormat+" at "+mWidth+"x"+mHeight);
+								if (VERBOSE) Logger.d(TAG, mDecoderName+" can't be used with "+mDecoderColorFormat+" at "+mWidth+"x"+mHeight);
 								releaseDecoder();
 								break;
 							}
 							try {
 								decode(true);
-								if (VERBOSE) Log.d(TAG, mDecoderName+" successfully decoded the NALs (color format "+mDecoderColorFormat+")");
+								if (VERBOSE) Logger.d(TAG, "{} successfully decoded the NALs (color format {})", mDecoderName, mDecoderColorFormat);
 								decoded = true;
 							} catch (Exception e) {
-								if (VERBOSE) Log.e(TAG, mDecoderName+" failed to decode the NALs");
+								if (VERBOSE) Logger.e(TAG, "{} failed to decode the NALs", mDecoderName);
 								e.printStackTrace();
 							} finally {
 								releaseDecoder();
@@ -265,7 +265,7 @@ public class EncoderDebugger {
 					int padding;
 					if ((padding = checkPaddingNeeded())>0) {
 						if (padding<4096) {
-							if (VERBOSE) Log.d(TAG, "Some padding is needed: "+padding);
+							if (VERBOSE) Logger.d(TAG, "Some padding is needed: {}", padding);
 							mNV21.setYPadding(padding);
 							createTestImage();
 							mData = mNV21.convert(mInitialImage);
@@ -281,14 +281,14 @@ public class EncoderDebugger {
 					if (!compareChromaPanes(false)) {
 						if (compareChromaPanes(true)) {
 							mNV21.setColorPanesReversed(true);
-							if (VERBOSE) Log.d(TAG, "U and V pane are reversed");
+							if (VERBOSE) Logger.d(TAG, "U and V pane are reversed");
 						} else {
 							throw new RuntimeException("Incorrect U or V pane...");
 						}
 					}
 
 					saveTestResult(true);
-					Log.v(TAG, "The encoder "+mEncoderName+" is usable with resolution "+mWidth+"x"+mHeight);
+					Logger.v(TAG, "The encoder {} is usable with resolution {}x{}", mEncoderName, mWidth, mHeight);
 					return;
 
 				} catch (Exception e) {
@@ -296,7 +296,7 @@ public class EncoderDebugger {
 					PrintWriter pw = new PrintWriter(sw); e.printStackTrace(pw);
 					String stack = sw.toString();
 					String str = "Encoder "+mEncoderName+" cannot be used with color format "+mEncoderColorFormat;
-					if (VERBOSE) Log.e(TAG, str, e);
+					if (VERBOSE) Logger.e(TAG, str, e);
 					mErrorLog += str + "\n" + stack;
 					e.printStackTrace();
 				} finally {
@@ -307,7 +307,7 @@ public class EncoderDebugger {
 		}
 
 		saveTestResult(false);
-		Log.e(TAG,"No usable encoder were found on the phone for resolution "+mWidth+"x"+mHeight);
+		Logger.e(TAG, "No usable encoder were found on the phone for resolution {}x{}", mWidth, mHeight);
 		throw new RuntimeException("No usable encoder were found on the phone for resolution "+mWidth+"x"+mHeight);
 
 	}
@@ -409,9 +409,9 @@ public class EncoderDebugger {
 				if (i>0) {
 					r[k] = ((i>>6)<<6);
 					max = r[k]>max ? r[k] : max;
-					if (VERBOSE) Log.e(TAG,"Padding needed: "+r[k]);
+					if (VERBOSE) Logger.e(TAG, "Padding needed: {}", r[k]);
 				} else {
-					if (VERBOSE) Log.v(TAG,"No padding needed.");
+					if (VERBOSE) Logger.v(TAG, "No padding needed.");
 				}
 			}
 		}
@@ -572,7 +572,7 @@ public class EncoderDebugger {
 			decInputBuffers[decInputIndex].put(mSPS);
 			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
 		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
+			if (VERBOSE) Logger.e(TAG, "No buffer available !");
 		}
 
 		decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
@@ -582,7 +582,7 @@ public class EncoderDebugger {
 			decInputBuffers[decInputIndex].put(mPPS);
 			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
 		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
+			if (VERBOSE) Logger.e(TAG, "No buffer available !");
 		}
 
 
@@ -621,7 +621,7 @@ public class EncoderDebugger {
 				inputBuffers[bufferIndex].put(mData, 0, mData.length);
 				mEncoder.queueInputBuffer(bufferIndex, 0, mData.length, timestamp(), 0);
 			} else {
-				if (VERBOSE) Log.e(TAG,"No buffer available !");
+				if (VERBOSE) Logger.e(TAG, "No buffer available !");
 			}
 
 			// We are looking for the SPS and the PPS here. As always, Android is very inconsistent, I have observed that some
@@ -699,7 +699,7 @@ public class EncoderDebugger {
 				encInputBuffers[encInputIndex].put(mData, 0, mData.length);
 				mEncoder.queueInputBuffer(encInputIndex, 0, mData.length, timestamp(), 0);
 			} else {
-				if (VERBOSE) Log.d(TAG,"No buffer available !");
+				if (VERBOSE) Logger.d(TAG, "No buffer available !");
 			}
 
 			// Tries to get a NAL unit
@@ -761,7 +761,7 @@ public class EncoderDebugger {
 					mDecoder.queueInputBuffer(decInputIndex, 0, l2, timestamp(), 0);
 					i++;
 				} else {
-					if (VERBOSE) Log.d(TAG,"No buffer available !");
+					if (VERBOSE) Logger.d(TAG, "No buffer available !");
 				}
 			}
 
@@ -782,7 +782,7 @@ public class EncoderDebugger {
 					convertToNV21(j);
 					if (j>=NB_DECODED-1) {
 						flushMediaCodec(mDecoder);
-						if (VERBOSE) Log.v(TAG, "Decoding "+n+" frames took "+elapsed/1000+" ms");
+						if (VERBOSE) Logger.v(TAG, "Decoding {} frames took {} ms", n, elapsed/1000);
 						return elapsed;
 					}
 					j++;
@@ -831,7 +831,7 @@ public class EncoderDebugger {
 
 	private void check(boolean cond, String message) {
 		if (!cond) {
-			if (VERBOSE) Log.e(TAG,message);
+			if (VERBOSE) Logger.e(TAG, message);
 			throw new IllegalStateException(message);
 		}
 	}
@@ -104,28 +104,30 @@ public class NV21Convertor {
 	
 	public void convert(byte[] data, ByteBuffer buffer) {
 		byte[] result = convert(data);
-		int min = buffer.capacity() < data.length?buffer.capacity() : data.length;
+		// The result is longer than data when the encoder expects some padding after the Y plane
+		int min = buffer.capacity() < result.length?buffer.capacity() : result.length;
 		buffer.put(result, 0, min);
 	}
 	
+	/**
+	 * Converts the picture, in place when possible.
+	 * @return The picture converted, either data or an internal buffer reused from one call to the next
+	 */
 	public byte[] convert(byte[] data) {
-
-		// A buffer large enough for every case
-		if (mBuffer==null || mBuffer.length != 3*mSliceHeight*mStride/2+mYPadding) {
-			mBuffer = new byte[3*mSliceHeight*mStride/2+mYPadding];
-		}
+		byte tmp;
 		
 		if (!mPlanar) {
 			if (mSliceHeight==mHeight && mStride==mWidth) {
 				// Swaps U and V
 				if (!mPanesReversed) {
 					for (int i = mSize; i < mSize+mSize/2; i += 2) {
-						mBuffer[0] = data[i+1];
+						tmp = data[i+1];
 						data[i+1] = data[i];
-						data[i] = mBuffer[0]; 
+						data[i] = tmp; 
 					}
 				}
 				if (mYPadding>0) {
+					buffer();
 					System.arraycopy(data, 0, mBuffer, 0, mSize);
 					System.arraycopy(data, mSize, mBuffer, mSize+mYPadding, mSize/2);
 					return mBuffer;
@@ -135,6 +137,7 @@ public class NV21Convertor {
 		} else {
 			if (mSliceHeight==mHeight && mStride==mWidth) {
 				// De-interleave U and V
+				buffer();
 				if (!mPanesReversed) {
 					for (int i = 0; i < mSize/4; i+=1) {
 						mBuffer[i] = data[mSize+2*i+1];
@@ -159,5 +162,15 @@ public class NV21Convertor {
 		
 		return data;
 	}	
+
+	/** 
+	 * Allocates the buffer used by the conversions that can't be done in place, large enough for every case. 
+	 * It is only allocated again when the size of the pictures changes.
+	 */
+	private void buffer() {
+		if (mBuffer==null || mBuffer.length != 3*mSliceHeight*mStride/2+mYPadding) {
+			mBuffer = new byte[3*mSliceHeight*mStride/2+mYPadding];
+		}
+	}
 	
 }
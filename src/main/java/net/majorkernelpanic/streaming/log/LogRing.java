@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import android.util.Log;
+
+/**
+ * Keeps the last messages of the {@link Logger} in memory, to dump them when something goes wrong.
+ *
+ * Entries are preallocated, a message is stored with its format and its arguments and is only
+ * built when the ring is dumped. Any thread can log without taking a lock: each message claims
+ * an entry with an atomic increment, and the entry is published once written. Entries that are
+ * being rewritten while the ring is dumped are skipped.
+ */
+public class LogRing {
+
+	public final static String TAG = "LogRing";
+
+	private final static char[] LEVELS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+	private final int mMask, mLevel;
+	private final AtomicLong mNext = new AtomicLong(0);
+
+	// The entries, the sequence number of an entry plus one is set once it is written
+	private final AtomicLongArray mSequences;
+	private final long[] mTimes, mLongs;
+	private final int[] mLevels, mCounts, mMasks;
+	private final String[] mTags, mFormats;
+	private final Object[] mObjects;
+	private final Throwable[] mThrowables;
+
+	/**
+	 * @param capacity The number of messages kept, rounded up to a power of 2
+	 * @param level The minimal level of the messages kept, one of the levels of {@link Log}
+	 */
+	public LogRing(int capacity, int level) {
+		if (capacity<1 || capacity>1<<16) throw new IllegalArgumentException("Invalid capacity: "+capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size<capacity) size <<= 1;
+		mMask = size-1;
+		mLevel = level;
+		mSequences = new AtomicLongArray(size);
+		mTimes = new long[size];
+		mLongs = new long[3*size];
+		mLevels = new int[size];
+		mCounts = new int[size];
+		mMasks = new int[size];
+		mTags = new String[size];
+		mFormats = new String[size];
+		mObjects = new Object[2*size];
+		mThrowables = new Throwable[size];
+	}
+
+	/** Returns the minimal level of the messages kept. */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/** Returns the number of messages logged since the ring was created, some of them were overwritten. */
+	public long getCount() {
+		return mNext.get();
+	}
+
+	void add(int level, String tag, String format, int count, int longs, 
+			Object a, Object b, long la, long lb, long lc, Throwable throwable) {
+		long sequence = mNext.getAndIncrement();
+		int i = (int) (sequence&mMask);
+		mSequences.set(i, 0);
+		mTimes[i] = System.nanoTime();
+		mLevels[i] = level;
+		mTags[i] = tag;
+		mFormats[i] = format;
+		mCounts[i] = count;
+		mMasks[i] = longs;
+		mObjects[2*i] = a;
+		mObjects[2*i+1] = b;
+		mLongs[3*i] = la;
+		mLongs[3*i+1] = lb;
+		mLongs[3*i+2] = lc;
+		mThrowables[i] = throwable;
+		mSequences.lazySet(i, sequence+1);
+	}
+
+	/**
+	 * Writes the messages in the ring, oldest first, one per line: the time in ms on the timeline 
+	 * of {@link System#nanoTime()}, the level, the tag and the message.
+	 */
+	public void dump(Writer writer) throws IOException {
+		StringBuilder line = new StringBuilder(128);
+		long last = mNext.get();
+		for (long sequence=Math.max(0, last-mMask-1);sequence<last;sequence++) {
+			int i = (int) (sequence&mMask);
+			if (mSequences.get(i) != sequence+1) continue;
+			line.setLength(0);
+			long time = mTimes[i];
+			int level = mLevels[i];
+			long micros = time/1000%1000;
+			line.append(time/1000000).append(micros<100 ? ".0" : ".");
+			line.append(micros<10 ? "0" : "").append(micros);
+			line.append(' ').append(level>=0 && level<LEVELS.length ? LEVELS[level] : '?').append('/').append(mTags[i]).append(": ");
+			Logger.format(line, mFormats[i], mCounts[i], mMasks[i], mObjects[2*i], mObjects[2*i+1], mLongs[3*i], mLongs[3*i+1], mLongs[3*i+2]);
+			Throwable throwable = mThrowables[i];
+			if (throwable != null) line.append('\n').append(Log.getStackTraceString(throwable));
+			// The entry was overwritten while it was read
+			if (mSequences.get(i) != sequence+1) continue;
+			writer.write(line.append('\n').toString());
+		}
+		writer.flush();
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.log;
+
+import android.util.Log;
+
+/**
+ * The logging facade of the library, for the code that runs while streaming.
+ *
+ * Messages are parameterized: each "{}" in the format is replaced by an argument, and the message
+ * is only built if its level is enabled. Arguments are either objects or longs, so that numbers are
+ * not boxed, and at most three are taken so that no array is created. A disabled statement costs
+ * a volatile read and a comparison, and allocates nothing.
+ *
+ * Messages at or above {@link #setLevel(int) the level} go to logcat. They can also be kept in
+ * memory by a {@link LogRing}, with its own level, see {@link #setRing(LogRing)}.
+ * Statements that would run for every packet are guarded with {@link #TRACE}, the compiler
+ * removes them from the library when it is false.
+ */
+public final class Logger {
+
+	public final static String TAG = "Logger";
+
+	/** Set to true to compile the statements that trace every packet. */
+	public final static boolean TRACE = false;
+
+	/** Arguments whose bit is set in the mask are longs, the others are objects. */
+	final static int LONG_A = 1, LONG_B = 2, LONG_C = 4;
+
+	private static volatile int sLevel = Log.INFO;
+	private static volatile LogRing sRing = null;
+	private static volatile int sThreshold = Log.INFO;
+
+	private Logger() {}
+
+	/** 
+	 * Sets the minimal level of the messages sent to logcat, {@link Log#INFO} by default.
+	 * @param level One of the levels of {@link Log}, {@link Log#ASSERT} to send nothing
+	 */
+	public static synchronized void setLevel(int level) {
+		sLevel = level;
+		update();
+	}
+
+	/** Returns the minimal level of the messages sent to logcat. */
+	public static int getLevel() {
+		return sLevel;
+	}
+
+	/** Keeps the messages in a ring, or stops keeping them if null. */
+	public static synchronized void setRing(LogRing ring) {
+		sRing = ring;
+		update();
+	}
+
+	/** Returns the ring in which messages are kept, null if there is none. */
+	public static LogRing getRing() {
+		return sRing;
+	}
+
+	/** Returns true if messages of that level go somewhere, to guard statements whose arguments are costly to compute. */
+	public static boolean isLoggable(int level) {
+		return level>=sThreshold;
+	}
+
+	private static void update() {
+		LogRing ring = sRing;
+		sThreshold = ring != null ? Math.min(sLevel, ring.getLevel()) : sLevel;
+	}
+
+	/** Logs a verbose message, the overloads take up to three arguments for the "{}" of the format. */
+	public static void v(String tag, String message) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, message, 0, 0, null, null, 0, 0, 0, null);
+	}
+
+	public static void v(String tag, String format, Object a) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 1, 0, a, null, 0, 0, 0, null);
+	}
+
+	public static void v(String tag, String format, Object a, Object b) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 2, 0, a, b, 0, 0, 0, null);
+	}
+
+	public static void v(String tag, String format, long a) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 1, LONG_A, null, null, a, 0, 0, null);
+	}
+
+	public static void v(String tag, String format, long a, long b) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 2, LONG_A|LONG_B, null, null, a, b, 0, null);
+	}
+
+	public static void v(String tag, String format, long a, long b, long c) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 3, LONG_A|LONG_B|LONG_C, null, null, a, b, c, null);
+	}
+
+	public static void v(String tag, String format, Object a, long b, long c) {
+		if (Log.VERBOSE>=sThreshold) log(Log.VERBOSE, tag, format, 3, LONG_B|LONG_C, a, null, 0, b, c, null);
+	}
+
+	/** Logs a debug message, the overloads take up to three arguments for the "{}" of the format. */
+	public static void d(String tag, String message) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, message, 0, 0, null, null, 0, 0, 0, null);
+	}
+
+	public static void d(String tag, String format, Object a) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 1, 0, a, null, 0, 0, 0, null);
+	}
+
+	public static void d(String tag, String format, Object a, Object b) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 2, 0, a, b, 0, 0, 0, null);
+	}
+
+	public static void d(String tag, String format, long a) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 1, LONG_A, null, null, a, 0, 0, null);
+	}
+
+	public static void d(String tag, String format, long a, long b) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 2, LONG_A|LONG_B, null, null, a, b, 0, null);
+	}
+
+	public static void d(String tag, String format, long a, long b, long c) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 3, LONG_A|LONG_B|LONG_C, null, null, a, b, c, null);
+	}
+
+	public static void d(String tag, String format, Object a, long b, long c) {
+		if (Log.DEBUG>=sThreshold) log(Log.DEBUG, tag, format, 3, LONG_B|LONG_C, a, null, 0, b, c, null);
+	}
+
+	/** Logs an info message, the overloads take up to three arguments for the "{}" of the format. */
+	public static void i(String tag, String message) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, message, 0, 0, null, null, 0, 0, 0, null);
+	}
+
+	public static void i(String tag, String format, Object a) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 1, 0, a, null, 0, 0, 0, null);
+	}
+
+	public static void i(String tag, String format, Object a, Object b) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 2, 0, a, b, 0, 0, 0, null);
+	}
+
+	public static void i(String tag, String format, long a) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 1, LONG_A, null, null, a, 0, 0, null);
+	}
+
+	public static void i(String tag, String format, long a, long b) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 2, LONG_A|LONG_B, null, null, a, b, 0, null);
+	}
+
+	public static void i(String tag, String format, long a, long b, long c) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 3, LONG_A|LONG_B|LONG_C, null, null, a, b, c, null);
+	}
+
+	public static void i(String tag, String format, Object a, long b, long c) {
+		if (Log.INFO>=sThreshold) log(Log.INFO, tag, format, 3, LONG_B|LONG_C, a, null, 0, b, c, null);
+	}
+
+	/** Logs a warning message, the overloads take up to three arguments for the "{}" of the format. */
+	public static void w(String tag, String message) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, message, 0, 0, null, null, 0, 0, 0, null);
+	}
+
+	public static void w(String tag, String format, Object a) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 1, 0, a, null, 0, 0, 0, null);
+	}
+
+	public static void w(String tag, String format, Object a, Object b) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 2, 0, a, b, 0, 0, 0, null);
+	}
+
+	public static void w(String tag, String format, long a) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 1, LONG_A, null, null, a, 0, 0, null);
+	}
+
+	public static void w(String tag, String format, long a, long b) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 2, LONG_A|LONG_B, null, null, a, b, 0, null);
+	}
+
+	public static void w(String tag, String format, long a, long b, long c) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 3, LONG_A|LONG_B|LONG_C, null, null, a, b, c, null);
+	}
+
+	public static void w(String tag, String format, Object a, long b, long c) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, format, 3, LONG_B|LONG_C, a, null, 0, b, c, null);
+	}
+
+	public static void w(String tag, String message, Throwable throwable) {
+		if (Log.WARN>=sThreshold) log(Log.WARN, tag, message, 0, 0, null, null, 0, 0, 0, throwable);
+	}
+
+	/** Logs an error message, the overloads take up to three arguments for the "{}" of the format. */
+	public static void e(String tag, String message) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, message, 0, 0, null, null, 0, 0, 0, null);
+	}
+
+	public static void e(String tag, String format, Object a) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 1, 0, a, null, 0, 0, 0, null);
+	}
+
+	public static void e(String tag, String format, Object a, Object b) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 2, 0, a, b, 0, 0, 0, null);
+	}
+
+	public static void e(String tag, String format, long a) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 1, LONG_A, null, null, a, 0, 0, null);
+	}
+
+	public static void e(String tag, String format, long a, long b) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 2, LONG_A|LONG_B, null, null, a, b, 0, null);
+	}
+
+	public static void e(String tag, String format, long a, long b, long c) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 3, LONG_A|LONG_B|LONG_C, null, null, a, b, c, null);
+	}
+
+	public static void e(String tag, String format, Object a, long b, long c) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, format, 3, LONG_B|LONG_C, a, null, 0, b, c, null);
+	}
+
+	public static void e(String tag, String message, Throwable throwable) {
+		if (Log.ERROR>=sThreshold) log(Log.ERROR, tag, message, 0, 0, null, null, 0, 0, 0, throwable);
+	}
+
+	private static void log(int level, String tag, String format, int count, int longs, 
+			Object a, Object b, long la, long lb, long lc, Throwable throwable) {
+		if (level>=sLevel && count == 0 && throwable == null) {
+			Log.println(level, tag, format);
+		} else if (level>=sLevel) {
+			StringBuilder builder = new StringBuilder(format.length()+32);
+			format(builder, format, count, longs, a, b, la, lb, lc);
+			if (throwable != null) builder.append('\n').append(Log.getStackTraceString(throwable));
+			Log.println(level, tag, builder.toString());
+		}
+		LogRing ring = sRing;
+		if (ring != null && level>=ring.getLevel()) {
+			ring.add(level, tag, format, count, longs, a, b, la, lb, lc, throwable);
+		}
+	}
+
+	/** Replaces each "{}" of the format by the next argument, the remaining arguments are ignored. */
+	static void format(StringBuilder builder, String format, int count, int longs, 
+			Object a, Object b, long la, long lb, long lc) {
+		int start = 0, arg = 0, i;
+		while (arg<count && (i = format.indexOf("{}", start))>=0) {
+			builder.append(format, start, i);
+			int bit = 1<<arg;
+			if ((longs&bit) != 0) {
+				builder.append(arg == 0 ? la : arg == 1 ? lb : lc);
+			} else {
+				builder.append(arg == 0 ? a : b);
+			}
+			start = i+2;
+			arg++;
+		}
+		builder.append(format, start, format.length());
+	}
+
+}
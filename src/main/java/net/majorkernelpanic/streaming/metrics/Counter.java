@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that any thread can add to.
+ * The count is striped over a few cells, one per group of threads and each on its own cache line,
+ * so that threads that share a counter do not contend. Reading sums the cells.
+ */
+public final class Counter implements Metric {
+
+	private final static int STRIPES = 4;
+
+	/** 8 longs, 64 bytes between two cells. */
+	private final static int SPACING = 8;
+
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPES*SPACING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long n) {
+		int cell = ((int) Thread.currentThread().getId()&(STRIPES-1))*SPACING;
+		mCells.addAndGet(cell, n);
+	}
+
+	@Override
+	public long get() {
+		long sum = 0;
+		for (int i=0;i<STRIPES;i++) sum += mCells.get(i*SPACING);
+		return sum;
+	}
+
+	/** Sets the counter back to 0, the additions made meanwhile by other threads may be lost. */
+	public void reset() {
+		for (int i=0;i<STRIPES;i++) mCells.set(i*SPACING, 0);
+	}
+
+}
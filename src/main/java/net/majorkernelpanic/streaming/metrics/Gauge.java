@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A value set by one thread and read by any other.
+ * The write is ordered but not fenced, it costs about as much as writing a plain field.
+ */
+public final class Gauge implements Metric {
+
+	private final static AtomicLongFieldUpdater<Gauge> VALUE = AtomicLongFieldUpdater.newUpdater(Gauge.class, "mValue");
+
+	private volatile long mValue = 0;
+
+	/** Only one thread may set the gauge. */
+	public void set(long value) {
+		VALUE.lazySet(this, value);
+	}
+
+	@Override
+	public long get() {
+		return mValue;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Counts what one thread produces, and the rate at which it does.
+ *
+ * {@link #mark(long)} only adds to a total, it does not read the time. The thread that marks
+ * the meter calls {@link #tick(long)} from time to time with the current time, the rate is
+ * then computed over the interval since the previous tick, if it lasted long enough.
+ * {@link #get()} returns that rate, any thread can read it.
+ */
+public final class Meter implements Metric {
+
+	private final static AtomicLongFieldUpdater<Meter> TOTAL = AtomicLongFieldUpdater.newUpdater(Meter.class, "mTotal");
+	private final static AtomicLongFieldUpdater<Meter> RATE = AtomicLongFieldUpdater.newUpdater(Meter.class, "mRate");
+
+	private final long mInterval;
+	private volatile long mTotal = 0, mRate = 0;
+	private long mLastTick = -1, mLastTotal = 0;
+
+	/** @param interval The minimum interval over which the rate is computed (ms) */
+	public Meter(long interval) {
+		mInterval = interval;
+	}
+
+	/** Adds to the total, only one thread may mark the meter. */
+	public void mark(long n) {
+		TOTAL.lazySet(this, mTotal+n);
+	}
+
+	/**
+	 * Updates the rate if the previous update is older than the interval of the meter.
+	 * Called by the thread that marks the meter.
+	 * @param now The current time in ms
+	 */
+	public void tick(long now) {
+		if (mLastTick<0) {
+			mLastTick = now;
+			mLastTotal = mTotal;
+			return;
+		}
+		long elapsed = now-mLastTick;
+		if (elapsed<mInterval) return;
+		long total = mTotal;
+		RATE.lazySet(this, (total-mLastTotal)*1000/elapsed);
+		mLastTick = now;
+		mLastTotal = total;
+	}
+
+	/** Returns the total. */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	/** Returns the rate computed by the last {@link #tick(long)}, per second. */
+	@Override
+	public long get() {
+		return mRate;
+	}
+
+	/** Clears the total and the rate, called by the thread that marks the meter. */
+	public void reset() {
+		mTotal = mRate = 0;
+		mLastTick = -1;
+		mLastTotal = 0;
+	}
+
+}
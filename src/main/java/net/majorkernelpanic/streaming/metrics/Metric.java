@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+/**
+ * A value read by {@link MetricsRegistry#snapshot()}.
+ * Implemented by {@link Counter}, {@link Gauge} and {@link Meter}, or by values sampled
+ * when the snapshot is taken, such as the depth of a FIFO.
+ * Implementations must not block: snapshots are taken while the streams are running.
+ */
+public interface Metric {
+
+	/** Returns the current value of the metric. */
+	public long get();
+
+}
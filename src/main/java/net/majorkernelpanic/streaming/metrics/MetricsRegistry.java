@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.LinkedHashMap;
+
+/**
+ * The metrics of a stream, or of a destination of a stream, by name.
+ *
+ * Metrics are registered once, when the objects they measure are created, and recorded
+ * without involving the registry. The registry is copied on write: {@link #snapshot()} never
+ * locks, it can be called from any thread while the streams are running.
+ * A registry can contain other registries, their metrics appear in the snapshot under their scope,
+ * for instance "destination0.packets.sent".
+ */
+public class MetricsRegistry {
+
+	public final static String TAG = "MetricsRegistry";
+
+	private volatile Entry[] mEntries = new Entry[0];
+
+	/** Returns the counter with that name, it is created if needed. */
+	public synchronized Counter counter(String name) {
+		Metric metric = find(name);
+		if (metric instanceof Counter) return (Counter) metric;
+		Counter counter = new Counter();
+		register(name, counter);
+		return counter;
+	}
+
+	/** Returns the gauge with that name, it is created if needed. */
+	public synchronized Gauge gauge(String name) {
+		Metric metric = find(name);
+		if (metric instanceof Gauge) return (Gauge) metric;
+		Gauge gauge = new Gauge();
+		register(name, gauge);
+		return gauge;
+	}
+
+	/**
+	 * Registers a metric, it replaces the one that had the same name.
+	 * Values that already exist elsewhere are registered that way, and read when snapshots are taken.
+	 */
+	public synchronized void register(String name, Metric metric) {
+		add(new Entry(name, metric, null));
+	}
+
+	/** Adds the metrics of another registry, under a scope. */
+	public synchronized void addChild(String scope, MetricsRegistry child) {
+		add(new Entry(scope, null, child));
+	}
+
+	/** Removes a metric or a child registry. */
+	public synchronized void remove(String name) {
+		Entry[] entries = mEntries;
+		int n = 0;
+		Entry[] copy = new Entry[entries.length];
+		for (Entry entry : entries) {
+			if (!entry.name.equals(name)) copy[n++] = entry;
+		}
+		Entry[] result = new Entry[n];
+		System.arraycopy(copy, 0, result, 0, n);
+		mEntries = result;
+	}
+
+	/** Removes a child registry. */
+	public synchronized void removeChild(MetricsRegistry child) {
+		for (Entry entry : mEntries) {
+			if (entry.child == child) {
+				remove(entry.name);
+				return;
+			}
+		}
+	}
+
+	/** Reads every metric of the registry and of its children. */
+	public MetricsSnapshot snapshot() {
+		LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+		collect("", values);
+		return new MetricsSnapshot(System.nanoTime()/1000000, values);
+	}
+
+	private void collect(String prefix, LinkedHashMap<String, Long> values) {
+		for (Entry entry : mEntries) {
+			if (entry.child != null) {
+				entry.child.collect(prefix+entry.name+".", values);
+			} else {
+				values.put(prefix+entry.name, entry.metric.get());
+			}
+		}
+	}
+
+	private Metric find(String name) {
+		for (Entry entry : mEntries) {
+			if (entry.name.equals(name)) return entry.metric;
+		}
+		return null;
+	}
+
+	private void add(Entry added) {
+		Entry[] entries = mEntries;
+		for (int i=0;i<entries.length;i++) {
+			if (entries[i].name.equals(added.name)) {
+				Entry[] copy = entries.clone();
+				copy[i] = added;
+				mEntries = copy;
+				return;
+			}
+		}
+		Entry[] copy = new Entry[entries.length+1];
+		System.arraycopy(entries, 0, copy, 0, entries.length);
+		copy[entries.length] = added;
+		mEntries = copy;
+	}
+
+	private static class Entry {
+
+		final String name;
+		final Metric metric;
+		final MetricsRegistry child;
+
+		Entry(String name, Metric metric, MetricsRegistry child) {
+			this.name = name;
+			this.metric = metric;
+			this.child = child;
+		}
+
+	}
+
+}
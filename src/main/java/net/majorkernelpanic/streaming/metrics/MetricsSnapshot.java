@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values of the metrics of a {@link MetricsRegistry} at some point in time.
+ * Snapshots do not change, counters can be turned into rates by comparing two of them.
+ */
+public class MetricsSnapshot {
+
+	private final long mTime;
+	private final Map<String, Long> mValues;
+
+	MetricsSnapshot(long time, Map<String, Long> values) {
+		mTime = time;
+		mValues = Collections.unmodifiableMap(values);
+	}
+
+	/** Returns the time at which the snapshot was taken, in ms. */
+	public long getTime() {
+		return mTime;
+	}
+
+	/** Returns the names of the metrics, in the order in which they were registered. */
+	public Set<String> getNames() {
+		return mValues.keySet();
+	}
+
+	/** Returns the value of a metric, 0 if there is no metric with that name. */
+	public long get(String name) {
+		Long value = mValues.get(name);
+		return value != null ? value : 0;
+	}
+
+	public boolean contains(String name) {
+		return mValues.containsKey(name);
+	}
+
+	/**
+	 * Returns how fast a counter grew since a previous snapshot, per second.
+	 * @param name The name of the counter
+	 * @param previous An older snapshot of the same registry
+	 */
+	public long rate(String name, MetricsSnapshot previous) {
+		long elapsed = mTime-previous.mTime;
+		return elapsed>0 ? (get(name)-previous.get(name))*1000/elapsed : 0;
+	}
+
+	/** Returns the values as a map, by name. */
+	public Map<String, Long> asMap() {
+		return mValues;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Long> entry : mValues.entrySet()) {
+			builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		return builder.toString();
+	}
+
+}
@@ -20,8 +20,8 @@ package net.majorkernelpanic.streaming.mp4;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import net.majorkernelpanic.streaming.log.Logger;
 import android.util.Base64;
-import android.util.Log;
 
 /**
  * Finds SPS & PPS parameters in mp4 file.
@@ -83,12 +83,12 @@ public class MP4Config {
 	}
 
 	public String getB64PPS() {
-		Log.d(TAG, "PPS: "+mPPS);
+		Logger.d(TAG, "PPS: {}", mPPS);
 		return mPPS;
 	}
 
 	public String getB64SPS() {
-		Log.d(TAG, "SPS: "+mSPS);
+		Logger.d(TAG, "SPS: {}", mSPS);
 		return mSPS;
 	}
 
@@ -24,8 +24,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import net.majorkernelpanic.streaming.log.Logger;
 import android.util.Base64;
-import android.util.Log;
 
 /**
  * Parse an mp4 file.
@@ -108,7 +108,7 @@ public class MP4Parser {
 				// "wide" atom would produce a newlen == 0, and we shouldn't throw an exception because of that
 				if (newlen < 0 || newlen == 1061109559) throw new IOException();
 				
-				Log.d(TAG, "Atom -> name: "+name+" position: "+mPos+", length: "+newlen);
+				Logger.d(TAG, "Atom -> name: {} position: {}, length: {}", name, mPos, newlen);
 				sum += newlen;
 				parse(path+'/'+name,newlen);
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * What a receiver of a stream reported about it in its RTCP packets.
+ * Updated by the Thread of an {@link RtcpReceiver}, can be read from any thread.
+ */
+public class ReceiverStats {
+
+	final int mSsrc;
+	volatile String mCname = null;
+	volatile int mFractionLost = 0, mCumulativeLost = 0, mHighestSequence = 0, mJitter = 0;
+	volatile long mRtt = -1, mLastReport = 0, mReports = 0;
+	volatile long mNacks = 0, mNackedPackets = 0, mPlis = 0, mFirs = 0;
+	volatile long mEstimatedBitrate = -1;
+	volatile boolean mBye = false;
+	int mFirSequence = -1;
+
+	ReceiverStats(int ssrc) {
+		mSsrc = ssrc;
+	}
+
+	/** Returns the SSRC of the receiver. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the CNAME of the receiver, null if it did not send one. */
+	public String getCname() {
+		return mCname;
+	}
+
+	/** Returns the fraction of packets lost since the previous report, between 0 and 1. */
+	public float getFractionLost() {
+		return mFractionLost/256f;
+	}
+
+	/** Returns the number of packets lost since the beginning of the reception. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the extended highest sequence number received. */
+	public int getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Returns the interarrival jitter, in units of the clock of the stream. */
+	public int getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the round trip time in ms, computed from the last report, or -1 if it is not known yet. */
+	public long getRtt() {
+		return mRtt;
+	}
+
+	/** Returns the time ({@link android.os.SystemClock#elapsedRealtime()}) of the last report, 0 if none was received. */
+	public long getLastReportTime() {
+		return mLastReport;
+	}
+
+	/** Returns the number of reception reports received. */
+	public long getReportCount() {
+		return mReports;
+	}
+
+	/** Returns the number of Generic NACKs received. */
+	public long getNackCount() {
+		return mNacks;
+	}
+
+	/** Returns the number of packets reported lost in Generic NACKs. */
+	public long getNackedPackets() {
+		return mNackedPackets;
+	}
+
+	/** Returns the number of Picture Loss Indications received. */
+	public long getPliCount() {
+		return mPlis;
+	}
+
+	/** Returns the number of Full Intra Requests received. */
+	public long getFirCount() {
+		return mFirs;
+	}
+
+	/** Returns the last bitrate estimated by the receiver (REMB) in bit per second, -1 if it never sent one. */
+	public long getEstimatedBitrate() {
+		return mEstimatedBitrate;
+	}
+
+	/** Returns true if the receiver left the session. */
+	public boolean hasLeft() {
+		return mBye;
+	}
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.SrtpContext;
+import android.os.SystemClock;
+
+/**
+ * Reads the RTCP packets sent back by the receivers of a stream.
+ *
+ * Over UDP, the packets are received on the socket of a {@link SenderReport}, which is the RTCP
+ * port advertised to the receivers. With TCP, they come interleaved in the connection and must be
+ * handed over with {@link #receive(byte[], int, int)}.
+ *
+ * Compound packets are parsed: reception reports (SR and RR), SDES (CNAME), BYE, Generic NACKs
+ * (RFC 4585), PLI, FIR (RFC 5104) and REMB. What each receiver reports is kept in a
+ * {@link ReceiverStats}, and a {@link Callback} is told about it so that retransmissions,
+ * keyframe requests and bitrate control can react. Only feedback about the stream of the
+ * sender report is considered. When the sender report has an {@link SrtpContext}, packets
+ * are authenticated and decrypted first, and dropped if they are not authentic.
+ */
+public class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	private final static int PT_SR = 200, PT_RR = 201, PT_SDES = 202, PT_BYE = 203, PT_RTPFB = 205, PT_PSFB = 206;
+
+	/**
+	 * Tells the other layers about the feedback of the receivers.
+	 * Methods are called by the Thread that reads the RTCP packets, they should return quickly.
+	 * The receiver is not locked when they are called.
+	 */
+	public interface Callback {
+
+		/** A receiver sent a reception report about the stream. */
+		public void onReceiverReport(ReceiverStats receiver);
+
+		/** A receiver reported packets lost with a Generic NACK: pid and the 16 packets after it set in blp. */
+		public void onNack(ReceiverStats receiver, int pid, int blp);
+
+		/** A receiver sent a PLI or a FIR, it needs a keyframe. */
+		public void onKeyframeRequest(ReceiverStats receiver);
+
+		/** A receiver estimated the bitrate it can receive (REMB), in bit per second. */
+		public void onEstimatedBitrate(ReceiverStats receiver, long bitrate);
+
+		/** A receiver left the session. */
+		public void onBye(ReceiverStats receiver);
+
+	}
+
+	private final static int EVENT_REPORT = 0, EVENT_NACK = 1, EVENT_KEYFRAME = 2, EVENT_BITRATE = 3, EVENT_BYE = 4;
+
+	/** Feedback found in a packet, the callback is told about it once the receiver is unlocked. */
+	private static class Event {
+		final int type;
+		final ReceiverStats receiver;
+		final long value;
+		final int blp;
+		Event next = null;
+
+		Event(int type, ReceiverStats receiver, long value, int blp) {
+			this.type = type;
+			this.receiver = receiver;
+			this.value = value;
+			this.blp = blp;
+		}
+	}
+
+	private final SenderReport mReport;
+	private final HashMap<Integer, ReceiverStats> mReceivers = new HashMap<Integer, ReceiverStats>();
+	/** The receivers, copied when one is added so that they can be read without locking. */
+	private volatile ReceiverStats[] mMembers = new ReceiverStats[0];
+	private final byte[] mBuffer = new byte[SenderReport.MTU];
+	private volatile Callback mCallback = null;
+	private Event mFirstEvent = null, mLastEvent = null;
+	private Thread mThread = null;
+
+	/**
+	 * @param report The sender report of the stream, its socket is used over UDP and
+	 * its SSRC tells which feedback concerns the stream
+	 */
+	public RtcpReceiver(SenderReport report) {
+		mReport = report;
+		report.setReceiver(this);
+	}
+
+	/** Sets the callback told about the feedback of the receivers, null removes it. */
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/** Starts receiving RTCP packets on the socket of the sender report, until it is closed. */
+	public synchronized void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+	}
+
+	/** Returns what each receiver reported so far, this does not lock the receiver. */
+	public List<ReceiverStats> getReceivers() {
+		return Arrays.asList(mMembers.clone());
+	}
+
+	/** Returns the number of receivers that did not leave, they slow down the reports of the sender report. */
+	int getMemberCount() {
+		int count = 0;
+		for (ReceiverStats receiver : mMembers) {
+			if (!receiver.mBye) count++;
+		}
+		return count;
+	}
+
+	/** Forgets the receivers. */
+	public void reset() {
+		synchronized (mReceivers) {
+			mReceivers.clear();
+			mMembers = new ReceiverStats[0];
+		}
+	}
+
+	@Override
+	public void run() {
+		MulticastSocket socket = mReport.getSocket();
+		DatagramPacket packet = new DatagramPacket(mBuffer, mBuffer.length);
+		try {
+			while (!socket.isClosed()) {
+				packet.setLength(mBuffer.length);
+				socket.receive(packet);
+				receive(mBuffer, 0, packet.getLength());
+			}
+		} catch (IOException e) {
+			// The socket was closed
+		}
+		synchronized (this) {
+			mThread = null;
+		}
+	}
+
+	/**
+	 * Parses a compound RTCP packet.
+	 * @param buffer The buffer that contains the packet
+	 * @param offset The offset of the packet in the buffer
+	 * @param length The length of the packet
+	 */
+	public void receive(byte[] buffer, int offset, int length) {
+		Event event;
+		synchronized (this) {
+			parse(buffer, offset, length);
+			event = mFirstEvent;
+			mFirstEvent = mLastEvent = null;
+		}
+		// The callback may lock the RTP socket, the receiver must not be locked then
+		for (;event != null;event = event.next) {
+			Callback callback = mCallback;
+			if (callback == null) break;
+			switch (event.type) {
+			case EVENT_REPORT:
+				callback.onReceiverReport(event.receiver);
+				break;
+			case EVENT_NACK:
+				callback.onNack(event.receiver, (int) event.value, event.blp);
+				break;
+			case EVENT_KEYFRAME:
+				callback.onKeyframeRequest(event.receiver);
+				break;
+			case EVENT_BITRATE:
+				callback.onEstimatedBitrate(event.receiver, event.value);
+				break;
+			case EVENT_BYE:
+				callback.onBye(event.receiver);
+				break;
+			}
+		}
+	}
+
+	private void parse(byte[] buffer, int offset, int length) {
+		SrtpContext srtp = mReport.getSrtp();
+		if (srtp != null) {
+			length = srtp.unprotectRtcp(buffer, offset, length);
+			if (length<0) {
+				Logger.w(TAG, "SRTCP packet not authentic.");
+				return;
+			}
+		}
+		// Their size counts in the interval between two reports
+		mReport.onPacket(length);
+		int end = offset+length;
+		while (end-offset>=8) {
+			if ((buffer[offset]&0xC0) != 0x80) {
+				Logger.w(TAG, "Invalid RTCP packet.");
+				return;
+			}
+			int count = buffer[offset]&0x1F;
+			int type = buffer[offset+1]&0xFF;
+			int size = (getShort(buffer, offset+2)+1)*4;
+			if (offset+size>end) {
+				Logger.w(TAG, "Truncated RTCP packet.");
+				return;
+			}
+			switch (type) {
+			case PT_SR:
+				// Every member that sends RTCP packets counts, even if it did not receive anything yet
+				// The sender info takes 20 bytes after the SSRC
+				if (size<28) break;
+				getReceiver(getInt(buffer, offset+4));
+				parseReports(buffer, offset+28, offset+size, count, getInt(buffer, offset+4));
+				break;
+			case PT_RR:
+				getReceiver(getInt(buffer, offset+4));
+				parseReports(buffer, offset+8, offset+size, count, getInt(buffer, offset+4));
+				break;
+			case PT_SDES:
+				parseSdes(buffer, offset, offset+size, count);
+				break;
+			case PT_BYE:
+				for (int i=0;i<count && 8+i*4<=size;i++) {
+					ReceiverStats receiver = getReceiver(getInt(buffer, offset+4+i*4));
+					receiver.mBye = true;
+					post(EVENT_BYE, receiver, 0, 0);
+				}
+				break;
+			case PT_RTPFB:
+				if (count == 1) parseNack(buffer, offset, size);
+				break;
+			case PT_PSFB:
+				parsePayloadFeedback(buffer, offset, size, count);
+				break;
+			}
+			offset += size;
+		}
+	}
+
+	/** Parses the reception report blocks of an SR or an RR, from offset to the end of the packet. */
+	private void parseReports(byte[] buffer, int offset, int end, int count, int ssrc) {
+		int ours = mReport.getSSRC();
+		long now = SystemClock.elapsedRealtime();
+		// The count of a malformed packet may not match its size
+		count = Math.min(count, (end-offset)/24);
+		for (int i=0;i<count;i++, offset+=24) {
+			if (getInt(buffer, offset) != ours) continue;
+			ReceiverStats receiver = getReceiver(ssrc);
+			receiver.mFractionLost = buffer[offset+4]&0xFF;
+			// 24 bits signed
+			receiver.mCumulativeLost = (getInt(buffer, offset+4)<<8)>>8;
+			receiver.mHighestSequence = getInt(buffer, offset+8);
+			receiver.mJitter = getInt(buffer, offset+12);
+			long lsr = getInt(buffer, offset+16)&0xFFFFFFFFL;
+			long dlsr = getInt(buffer, offset+20)&0xFFFFFFFFL;
+			if (lsr != 0) {
+				// RTT in units of 1/65536 s, from the middle 32 bits of the NTP timestamps
+				long rtt = (mReport.getCompactNtpTime(System.nanoTime())-lsr-dlsr)&0xFFFFFFFFL;
+				if (rtt<0x80000000L) receiver.mRtt = rtt*1000/65536;
+			}
+			receiver.mLastReport = now;
+			receiver.mReports++;
+			post(EVENT_REPORT, receiver, 0, 0);
+		}
+	}
+
+	/** Looks for the CNAME of each chunk of an SDES packet, the packet starts at start. */
+	private void parseSdes(byte[] buffer, int start, int end, int count) {
+		int offset = start+4;
+		for (int i=0;i<count && offset+4<=end;i++) {
+			ReceiverStats receiver = getReceiver(getInt(buffer, offset));
+			offset += 4;
+			while (offset<end && buffer[offset] != 0) {
+				int type = buffer[offset];
+				int length = offset+1<end ? buffer[offset+1]&0xFF : 0;
+				if (offset+2+length>end) return;
+				if (type == 1) receiver.mCname = new String(buffer, offset+2, length);
+				offset += 2+length;
+			}
+			// The chunk ends with a null item and is padded to 32 bits from the start of the packet
+			offset = start+((offset-start+4)&~3);
+		}
+	}
+
+	private void parseNack(byte[] buffer, int offset, int size) {
+		if (size<12 || getInt(buffer, offset+8) != mReport.getSSRC()) return;
+		ReceiverStats receiver = getReceiver(getInt(buffer, offset+4));
+		receiver.mNacks++;
+		for (int i=offset+12;i+4<=offset+size;i+=4) {
+			int pid = getShort(buffer, i);
+			int blp = getShort(buffer, i+2);
+			receiver.mNackedPackets += 1+Integer.bitCount(blp);
+			post(EVENT_NACK, receiver, pid, blp);
+		}
+	}
+
+	/** Parses a PLI, a FIR or a REMB. */
+	private void parsePayloadFeedback(byte[] buffer, int offset, int size, int fmt) {
+		if (size<12) return;
+		int ours = mReport.getSSRC();
+		ReceiverStats receiver = getReceiver(getInt(buffer, offset+4));
+		if (fmt == 1) {
+			// PLI
+			if (getInt(buffer, offset+8) != ours) return;
+			receiver.mPlis++;
+			post(EVENT_KEYFRAME, receiver, 0, 0);
+		} else if (fmt == 4) {
+			// FIR, the request is repeated with the same sequence number until it is answered
+			for (int i=offset+12;i+8<=offset+size;i+=8) {
+				if (getInt(buffer, i) != ours) continue;
+				int seq = buffer[i+4]&0xFF;
+				if (seq == receiver.mFirSequence) continue;
+				receiver.mFirSequence = seq;
+				receiver.mFirs++;
+				post(EVENT_KEYFRAME, receiver, 0, 0);
+			}
+		} else if (fmt == 15 && size>=20 && buffer[offset+12] == 'R' && buffer[offset+13] == 'E'
+				&& buffer[offset+14] == 'M' && buffer[offset+15] == 'B') {
+			int count = buffer[offset+16]&0xFF;
+			for (int i=0;i<count && offset+24+i*4<=offset+size;i++) {
+				if (getInt(buffer, offset+20+i*4) != ours) continue;
+				int exponent = (buffer[offset+17]&0xFC)>>2;
+				long mantissa = (buffer[offset+17]&0x03)<<16 | getShort(buffer, offset+18);
+				// The 6 bits exponent can shift the 18 bits mantissa out of a long, the bitrate saturates
+				receiver.mEstimatedBitrate = mantissa == 0 ? 0 : exponent>=Long.numberOfLeadingZeros(mantissa) ? Long.MAX_VALUE : mantissa<<exponent;
+				post(EVENT_BITRATE, receiver, receiver.mEstimatedBitrate, 0);
+				break;
+			}
+		}
+	}
+
+	/** Queues feedback for the callback, it is told about it once the packet is parsed. */
+	private void post(int type, ReceiverStats receiver, long value, int blp) {
+		if (mCallback == null) return;
+		Event event = new Event(type, receiver, value, blp);
+		if (mLastEvent == null) mFirstEvent = event; else mLastEvent.next = event;
+		mLastEvent = event;
+	}
+
+	private ReceiverStats getReceiver(int ssrc) {
+		synchronized (mReceivers) {
+			ReceiverStats receiver = mReceivers.get(ssrc);
+			if (receiver == null) {
+				receiver = new ReceiverStats(ssrc);
+				mReceivers.put(ssrc, receiver);
+				mMembers = mReceivers.values().toArray(new ReceiverStats[mReceivers.size()]);
+			}
+			return receiver;
+		}
+	}
+
+	private static int getShort(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<8 | (buffer[offset+1]&0xFF);
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+}
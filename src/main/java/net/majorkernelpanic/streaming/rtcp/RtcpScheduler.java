@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.util.ArrayList;
+import android.os.SystemClock;
+
+/**
+ * Sends the RTCP reports of every {@link SenderReport} when they are due.
+ *
+ * One Thread serves all the reports, it sleeps until the next one is due and stops when no
+ * report is scheduled anymore. Reports are sent on time whether RTP packets are sent or not,
+ * each {@link SenderReport} computes when its next report is due (RFC 3550, section 6.3).
+ */
+class RtcpScheduler implements Runnable {
+
+	public final static String TAG = "RtcpScheduler";
+
+	private static RtcpScheduler sInstance = null;
+
+	private final ArrayList<SenderReport> mReports = new ArrayList<SenderReport>();
+	private Thread mThread = null;
+
+	static synchronized RtcpScheduler getInstance() {
+		if (sInstance == null) sInstance = new RtcpScheduler();
+		return sInstance;
+	}
+
+	/** Adds a report, its first packet is sent at {@link SenderReport#getNextReportTime()}. */
+	synchronized void schedule(SenderReport report) {
+		if (!mReports.contains(report)) mReports.add(report);
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+		notifyAll();
+	}
+
+	synchronized void cancel(SenderReport report) {
+		mReports.remove(report);
+		notifyAll();
+	}
+
+	synchronized boolean isScheduled(SenderReport report) {
+		return mReports.contains(report);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				SenderReport due = null;
+				synchronized (this) {
+					while (due == null) {
+						if (mReports.isEmpty()) {
+							mThread = null;
+							return;
+						}
+						long now = SystemClock.elapsedRealtime(), next = Long.MAX_VALUE;
+						// Never takes the lock of a report under this one, reports call us with theirs released
+						for (SenderReport report : mReports) {
+							long time = report.getNextReportTime();
+							if (time<next) {
+								next = time;
+								due = report;
+							}
+						}
+						if (next>now) {
+							due = null;
+							wait(next-now);
+						}
+					}
+				}
+				// Sent outside of the lock, reports can be added or removed in the meantime
+				due.onTimer(SystemClock.elapsedRealtime());
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				mThread = null;
+			}
+		}
+	}
+
+}
@@ -26,38 +26,73 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.nio.channels.IllegalSelectorException;
+import java.util.Random;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.MediaClock;
+import net.majorkernelpanic.streaming.rtp.SrtpContext;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * 
+ * Reports are sent by the {@link RtcpScheduler} as compound packets, an SR followed by an SDES
+ * with the CNAME of the session, or an RR instead of the SR when no RTP packet was sent during 
+ * the last two intervals. The interval between two reports follows RFC 3550 (section 6.3): 
+ * RTCP gets 5% of the bandwidth of the session, and the interval grows with the number of 
+ * receivers so that large multicast sessions are not flooded. A BYE ends the reports.
  */
 public class SenderReport {
 
+	public final static String TAG = "SenderReport";
+
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
+
+	/** Length of the IP and UDP headers, counted in the average size of RTCP packets. */
+	private static final int UDP_OVERHEAD = 28;
+
+	/** RFC 3550: e-3/2, compensates the timer reconsideration algorithm. */
+	private static final double COMPENSATION = 2.71828-1.5;
 	
 	private MulticastSocket usock;
 	private DatagramPacket upack;
 
 	private int mTransport;
-	private OutputStream mOutputStream = null;
+	private InterleavedWriter mWriter = null;
+	private byte mChannel;
 	private byte[] mBuffer = new byte[MTU];
+	private byte[] mOutput = new byte[MTU];
+	private volatile SrtpContext mSrtp = null;
+	private volatile MediaClock.Track mTrack = null;
+	private RtcpReceiver mReceiver = null;
+	private String mCname = null;
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
-	private long interval, delta, now, oldnow;
-	private byte mTcpHeader[];
+	private long interval;
+	private long mRtpTimestamp = 0;
+
+	// Scheduling, RFC 3550 section 6.3
+	private final Random mRandom = new Random();
+	private long mBandwidth = 0;
+	private double mAverageSize = 0;
+	private long mLastReport = 0, mLastOctets = 0;
+	// Read by the RtcpScheduler without the lock of the report, 0 when no report is scheduled
+	private volatile long mNextReport = 0;
+	private int mLastPackets = -1, mIdleReports = 0;
+	private boolean mInitial = true;
+
+	private volatile long mReports = 0, mRtcpOctets = 0, mByes = 0, mLastInterval = 0;
 
 	public SenderReport(int ssrc) throws IOException {
-		super();
-		this.mSSRC = ssrc;
+		this();
+		setSSRC(ssrc);
 	}
 	
 	public SenderReport() {
 
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
 		
 		/*							     Version(2)  Padding(0)					 					*/
 		/*									 ^		  ^			PT = 0	    						*/
@@ -89,50 +124,201 @@ public class SenderReport {
 		}
 		upack = new DatagramPacket(mBuffer, 1);
 
-		// By default we sent one report every 3 secconde
-		interval = 3000;
+		// The minimum interval of RFC 3550
+		interval = 5000;
 		
 	}
 
 	public void close() {
+		stop();
 		usock.close();
 	}
 
 	/**
-	 * Sets the temporal interval between two RTCP Sender Reports.
-	 * Default interval is set to 3 seconds.
+	 * Sets the minimum interval between two RTCP reports, the actual interval depends on the 
+	 * bandwidth of the session and on the number of receivers.
+	 * Default interval is set to 5 seconds, as recommended by RFC 3550.
 	 * Set 0 to disable RTCP.
 	 * @param interval The interval in milliseconds
 	 */
 	public void setInterval(long interval) {
 		this.interval = interval;
+		if (interval<=0) stop();
 	}	
 
+	/**
+	 * Sets the bandwidth of the session, 5% of it is shared by the RTCP packets of all its members.
+	 * @param bandwidth The bandwidth in bit per second, 0 (the default) to use the bitrate of the stream
+	 */
+	public synchronized void setSessionBandwidth(long bandwidth) {
+		mBandwidth = bandwidth;
+	}
+
+	/** Sets the CNAME sent in the SDES packets, by default the one of the {@link MediaClock} of the track. */
+	public synchronized void setCname(String cname) {
+		MediaClock.encodeCname(cname);
+		mCname = cname;
+	}
+
+	/** Returns the CNAME sent in the SDES packets. */
+	public synchronized String getCname() {
+		if (mCname != null) return mCname;
+		MediaClock.Track track = mTrack;
+		if (track != null) return track.getClock().getCname();
+		mCname = MediaClock.createCname();
+		return mCname;
+	}
+
+	/** Returns the number of reports sent, BYE included. */
+	public long getReportCount() {
+		return mReports;
+	}
+
+	/** Returns the number of BYE packets sent. */
+	public long getByeCount() {
+		return mByes;
+	}
+
+	/** Returns the number of bytes of RTCP packets sent. */
+	public long getRtcpOctetCount() {
+		return mRtcpOctets;
+	}
+
+	/** Returns the interval before the last report that was scheduled, in ms. */
+	public long getLastInterval() {
+		return mLastInterval;
+	}
+
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
 	 * @param length The length of the packet 
 	 * @param rtpts
-	 *            The RTP timestamp.
+	 *            The RTP timestamp of the packet, only used if the report has no track.
 	 * @throws IOException 
 	 **/
 	public void update(int length, long rtpts) throws IOException {
-		mPacketCount += 1;
-		mOctetCount += length;
-		setLong(mPacketCount, 20, 24);
-		setLong(mOctetCount, 24, 28);
+		boolean first;
+		synchronized (this) {
+			mPacketCount += 1;
+			mOctetCount += length;
+			mRtpTimestamp = rtpts;
+			// We are a sender again
+			mIdleReports = 0;
+			setLong(mPacketCount, 20, 24);
+			setLong(mOctetCount, 24, 28);
+			first = mNextReport == 0 && interval>0;
+			if (first) {
+				// The first report goes out after half the minimum interval
+				mInitial = true;
+				mLastReport = SystemClock.elapsedRealtime();
+				mNextReport = mLastReport+computeInterval(mLastReport);
+			}
+		}
+		if (first) RtcpScheduler.getInstance().schedule(this);
+	}
 
-		now = SystemClock.elapsedRealtime();
-		delta += oldnow != 0 ? now-oldnow : 0;
-		oldnow = now;
-		if (interval>0 && delta>=interval) {
-			// We send a Sender Report
-			send(System.nanoTime(), rtpts);
-			delta = 0;
+	/** Sends the report that is due, and schedules the next one. Called by the {@link RtcpScheduler}. */
+	synchronized void onTimer(long now) {
+		// Stopped or rescheduled since the RtcpScheduler picked the report
+		if (mNextReport == 0 || mNextReport>now) return;
+		try {
+			send(false);
+		} catch (IOException e) {
+			Logger.e(TAG, "Report not sent: {}", e.getMessage());
+		}
+		mInitial = false;
+		mNextReport = now+computeInterval(now);
+		mLastReport = now;
+	}
+
+	/** Returns the time ({@link SystemClock#elapsedRealtime()}) at which the next report is due. */
+	long getNextReportTime() {
+		return mNextReport;
+	}
+
+	/**
+	 * Sends a BYE right away, in a compound packet with a last report, and stops the reports.
+	 * They start again with the next RTP packet.
+	 */
+	public void sendBye() {
+		if (!stop()) return;
+		synchronized (this) {
+			try {
+				send(true);
+				mByes++;
+			} catch (IOException e) {
+				Logger.e(TAG, "BYE not sent: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops the reports, they start again with the next RTP packet. 
+	 * The RtcpScheduler is called without the lock of the report, it takes its own lock first.
+	 * @return false if they were stopped already
+	 */
+	private boolean stop() {
+		RtcpScheduler.getInstance().cancel(this);
+		synchronized (this) {
+			boolean running = mNextReport != 0;
+			mNextReport = 0;
+			return running;
 		}
-		
 	}
 
-	public void setSSRC(int ssrc) {
+	/**
+	 * Computes the interval before the next report (RFC 3550, section 6.3.1): the members of 
+	 * the session share 5% of its bandwidth, a quarter of it goes to senders.
+	 */
+	private long computeInterval(long now) {
+		long minimum = mInitial ? interval/2 : interval;
+
+		// Bit per second
+		double bandwidth = mBandwidth;
+		if (bandwidth<=0 && now>mLastReport) {
+			bandwidth = (mOctetCount-mLastOctets)*8000.0/(now-mLastReport);
+		}
+		mLastOctets = mOctetCount;
+
+		// We are the only sender, everyone else receives
+		int members = 1+(mReceiver != null ? mReceiver.getMemberCount() : 0);
+		boolean sender = mIdleReports<2;
+		double rtcp = bandwidth/8*0.05;
+		double share;
+		int n;
+		if (members>=4) {
+			share = sender ? rtcp*0.25 : rtcp*0.75;
+			n = sender ? 1 : members-1;
+		} else {
+			share = rtcp;
+			n = members;
+		}
+		if (mAverageSize == 0) mAverageSize = estimateSize();
+		double td = share>0 ? Math.max(minimum, 1000*n*mAverageSize/share) : minimum;
+
+		// Randomized so that the reports of the members do not synchronize
+		long t = (long) (td*(0.5+mRandom.nextDouble())/COMPENSATION);
+		mLastInterval = t;
+		return t;
+	}
+
+	/** The size of a report, before the first one is sent. */
+	private int estimateSize() {
+		return PACKET_LENGTH+sdesLength(MediaClock.encodeCname(getCname()).length)+UDP_OVERHEAD;
+	}
+
+	/** Updates the average size of RTCP packets with a packet sent or received. */
+	synchronized void onPacket(int length) {
+		if (mAverageSize == 0) mAverageSize = estimateSize();
+		mAverageSize += (length+UDP_OVERHEAD-mAverageSize)/16;
+	}
+
+	/** Called by the {@link RtcpReceiver} of the report, it gives the number of receivers. */
+	synchronized void setReceiver(RtcpReceiver receiver) {
+		mReceiver = receiver;
+	}
+
+	public synchronized void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
 		setLong(ssrc,4,8);
 		mPacketCount = 0;
@@ -155,8 +341,8 @@ public class SenderReport {
 	 */ 
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
-		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mWriter = InterleavedWriter.get(os);
+		mChannel = channelIdentifier;
 	}	
 	
 	public int getPort() {
@@ -171,49 +357,160 @@ public class SenderReport {
 		return mSSRC;
 	}
 
+	/** 
+	 * Sends SRTCP packets protected with that context, and expects the same from receivers.
+	 * @param srtp The SRTP context of the stream, or null to send plain RTCP packets
+	 */
+	public void setSrtp(SrtpContext srtp) {
+		mSrtp = srtp;
+	}
+
+	public SrtpContext getSrtp() {
+		return mSrtp;
+	}
+
+	/**
+	 * Sets the RTP timeline of the stream. The reports then carry the wall clock time given by
+	 * its {@link MediaClock} and the matching RTP timestamp, so that receivers can synchronize
+	 * the tracks of a session.
+	 */
+	public void setTrack(MediaClock.Track track) {
+		mTrack = track;
+	}
+
+	public MediaClock.Track getTrack() {
+		return mTrack;
+	}
+
+	/** The socket on which receivers send their RTCP packets over UDP. */
+	MulticastSocket getSocket() {
+		return usock;
+	}
+
+	/** 
+	 * Returns the middle 32 bits of the NTP timestamp written in reports at that time, 
+	 * receivers echo them as LSR in their reception reports.
+	 * @param time A time given by {@link System#nanoTime()}
+	 */
+	long getCompactNtpTime(long time) {
+		return (getNtpTime(time)>>>16)&0xFFFFFFFFL;
+	}
+
+	/** Returns the 64 bits NTP timestamp of a time given by {@link System#nanoTime()}. */
+	private long getNtpTime(long time) {
+		MediaClock.Track track = mTrack;
+		if (track != null) return track.getNtpTime(time);
+		long hb = time/1000000000;
+		long lb = ( ( time - hb*1000000000 ) * 4294967296L )/1000000000;
+		return hb<<32 | lb;
+	}
+
 	/**
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
-	public void reset() {
+	public synchronized void reset() {
 		mPacketCount = 0;
 		mOctetCount = 0;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
-		delta = now = oldnow = 0;
+		mLastOctets = 0;
+		mLastPackets = -1;
+		mIdleReports = 0;
 	}
 	
 	private void setLong(long n, int begin, int end) {
+		setLong(mBuffer, n, begin, end);
+	}	
+
+	private static void setLong(byte[] buffer, long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
-			mBuffer[end] = (byte) (n % 256);
+			buffer[end] = (byte) (n % 256);
 			n >>= 8;
 		}
-	}	
+	}
+
+	/** Length of an SDES packet with one chunk that only has a CNAME, of that many bytes in UTF-8. */
+	private static int sdesLength(int cname) {
+		// SSRC, type and length of the item, at least one null byte, padded to 32 bits
+		return 4+((4+2+cname+1+3)&~3);
+	}
 
 	/**
-	 * Sends the RTCP packet over the network.
-	 * 
-	 * @param ntpts
-	 *            the NTP timestamp.
-	 * @param rtpts
-	 *            the RTP timestamp.
+	 * Sends a compound RTCP packet over the network: an SR, or an RR if no RTP packet was sent
+	 * recently, followed by an SDES, and by a BYE if asked.
 	 */
-	private void send(long ntpts, long rtpts) throws IOException {
-		long hb = ntpts/1000000000;
-		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
-		setLong(rtpts, 16, 20);
+	private void send(boolean bye) throws IOException {
+		if (mPacketCount == mLastPackets) {
+			mIdleReports++;
+		} else {
+			mIdleReports = 0;
+			mLastPackets = mPacketCount;
+		}
+
+		byte[] buffer = mOutput;
+		int length;
+		if (mIdleReports<2) {
+			MediaClock.Track track = mTrack;
+			long ntpts, rtpts;
+			if (track != null) {
+				// The NTP and RTP timestamps of the report correspond to the same instant
+				long time = track.getClock().now();
+				ntpts = track.getNtpTime(time);
+				rtpts = track.getRtpTimestamp(time);
+			} else {
+				ntpts = getNtpTime(System.nanoTime());
+				rtpts = mRtpTimestamp;
+			}
+			setLong(ntpts>>>32, 8, 12);
+			setLong(ntpts&0xFFFFFFFFL, 12, 16);
+			setLong(rtpts, 16, 20);
+			// The counters keep being updated in mBuffer
+			System.arraycopy(mBuffer, 0, buffer, 0, PACKET_LENGTH);
+			length = PACKET_LENGTH;
+		} else {
+			// Empty Receiver Report, we are no longer a sender
+			buffer[0] = (byte) 0x80;
+			buffer[1] = (byte) 201;
+			setLong(buffer, 1, 2, 4);
+			setLong(buffer, mSSRC, 4, 8);
+			length = 8;
+		}
+
+		// SDES with the CNAME
+		byte[] cname = MediaClock.encodeCname(getCname());
+		int sdes = sdesLength(cname.length);
+		buffer[length] = (byte) 0x81;
+		buffer[length+1] = (byte) 202;
+		setLong(buffer, sdes/4-1, length+2, length+4);
+		setLong(buffer, mSSRC, length+4, length+8);
+		buffer[length+8] = 1;
+		buffer[length+9] = (byte) cname.length;
+		System.arraycopy(cname, 0, buffer, length+10, cname.length);
+		for (int i=length+10+cname.length;i<length+sdes;i++) buffer[i] = 0;
+		length += sdes;
+
+		if (bye) {
+			buffer[length] = (byte) 0x81;
+			buffer[length+1] = (byte) 203;
+			setLong(buffer, 1, length+2, length+4);
+			setLong(buffer, mSSRC, length+4, length+8);
+			length += 8;
+		}
+
+		SrtpContext srtp = mSrtp;
+		if (srtp != null) length = srtp.protectRtcp(buffer, length);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
+			if (upack.getAddress() == null) return;
+			upack.setData(buffer, 0, length);
 			usock.send(upack);		
 		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
-			}
+			if (mWriter == null) return;
+			mWriter.write(mChannel, buffer, 0, length, false);
+			mWriter.flush();
 		}
+		mReports++;
+		mRtcpOctets += length;
+		mAverageSize += (length+UDP_OVERHEAD-mAverageSize)/16;
 	}
 		
 	
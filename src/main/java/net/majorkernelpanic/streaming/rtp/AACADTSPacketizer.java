@@ -20,8 +20,8 @@ package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
 import net.majorkernelpanic.streaming.audio.AACStream;
+import net.majorkernelpanic.streaming.log.Logger;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  *   
@@ -71,7 +71,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	public void run() {
 
-		Log.d(TAG,"AAC ADTS packetizer started !");
+		Logger.d(TAG, "AAC ADTS packetizer started !");
 
 		// "A packet SHALL carry either one or more complete Access Units, or a
 		// single fragment of an Access Unit.  Fragments of the same Access Unit
@@ -83,6 +83,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		boolean protection;
 		int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
 		long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
+		long start = System.nanoTime(), samples = 0;
 		byte[] header = new byte[8]; 
 
 		try {
@@ -119,7 +120,9 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
 				// We update the RTP timestamp
-				ts +=  1024L*1000000000L/samplingRate; //stats.average();
+				// The count of samples does not drift, unlike a sum of rounded frame durations
+				samples += 1024;
+				ts = start+MediaClock.toNanos(samples, samplingRate);
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
@@ -154,19 +157,22 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 					buffer[rtphl+3] &= 0xF8;
 					buffer[rtphl+3] |= 0x00;
 
-					send(rtphl+4+length);
+					stage(rtphl+4+length);
 
 				}
 
+				// All the fragments of the ADTS frame are sent at once
+				flush();
+
 			}
 		} catch (IOException e) {
 			// Ignore
 		} catch (ArrayIndexOutOfBoundsException e) {
-			Log.e(TAG,"ArrayIndexOutOfBoundsException: "+(e.getMessage()!=null?e.getMessage():"unknown error"));
+			Logger.e(TAG, "ArrayIndexOutOfBoundsException: {}", e.getMessage()!=null?e.getMessage():"unknown error");
 			e.printStackTrace();
 		} catch (InterruptedException ignore) {}
 
-		Log.d(TAG,"AAC ADTS packetizer stopped !");
+		Logger.d(TAG, "AAC ADTS packetizer stopped !");
 
 	}
 
@@ -19,17 +19,18 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.log.Logger;
 import android.annotation.SuppressLint;
-import android.media.MediaCodec.BufferInfo;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * RFC 3640.  
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
  * This packetizer is used by the AACStream class in conjunction with the 
- * MediaCodec API introduced in Android 4.1 (API Level 16).       
+ * MediaCodec API introduced in Android 4.1 (API Level 16), it is fed with 
+ * an {@link EncodedFrameSource}.
  * 
  */
 @SuppressLint("NewApi")
@@ -53,9 +54,7 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	public void stop() {
 		if (t != null) {
-			try {
-				is.close();
-			} catch (IOException ignore) {}
+			closeInput();
 			t.interrupt();
 			try {
 				t.join();
@@ -68,64 +67,62 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
-	@SuppressLint("NewApi")
 	public void run() {
 
-		Log.d(TAG,"AAC LATM packetizer started !");
+		Logger.d(TAG, "AAC LATM packetizer started !");
 
 		int length = 0;
 		long oldts;
-		BufferInfo bufferInfo;
+		EncodedFrame frame;
+		ByteBuffer packet;
 
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
+				frame = source.take();
+				try {
+					// The AudioSpecificConfig is already in the SDP
+					if (frame.isCodecConfig()) continue;
+
+					length = frame.getLength();
 					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
+					ts = frame.getTimestamp();
+
 					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
+					if (oldts>ts) continue;
+
+					if (length>MAXPACKETSIZE-rtphl-4) {
+						Logger.e(TAG, "AAC frame too large: {} bytes", length);
 						continue;
 					}
-					
+
+					packet = socket.requestByteBuffer();
 					socket.markNextPacket();
 					socket.updateTimestamp(ts);
-					
+
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
 					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
+					packet.put(rtphl, (byte) 0);
+					packet.put(rtphl+1, (byte) 0x10); 
 
 					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
+					packet.put(rtphl+2, (byte) (length>>5));
 
 					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
+					packet.put(rtphl+3, (byte) ((length<<3)&0xF8));
+
+					copy(frame, frame.getOffset(), packet, rtphl+4, length);
 					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+
+				} finally {
+					// The buffer goes back to the MediaCodec once the frame is in the FIFO of the socket
+					source.release(frame);
+				}
 			}
 		} catch (IOException e) {
-		} catch (ArrayIndexOutOfBoundsException e) {
-			Log.e(TAG,"ArrayIndexOutOfBoundsException: "+(e.getMessage()!=null?e.getMessage():"unknown error"));
-			e.printStackTrace();
 		} catch (InterruptedException ignore) {}
 
-		Log.d(TAG,"AAC LATM packetizer stopped !");
+		Logger.d(TAG, "AAC LATM packetizer stopped !");
 
 	}
 
@@ -19,7 +19,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.util.Log;
+import net.majorkernelpanic.streaming.log.Logger;
 
 /**
  * 
@@ -71,6 +71,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 		int frameLength, frameType;
 		long now = System.nanoTime(), oldtime = now;
+		long start = now, samples = 0;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
 
 		try {
@@ -79,7 +80,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 			fill(header,0,AMR_HEADER_LENGTH);
 			
 			if (header[5] != '\n') {
-				Log.e(TAG,"Bad header ! AMR not correcty supported by the phone !");
+				Logger.e(TAG, "Bad header ! AMR not correcty supported by the phone !");
 				return;
 			}
 
@@ -102,7 +103,8 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
 				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
+				samples += 160;
+				ts = start+MediaClock.toNanos(samples, samplingRate);
 				socket.updateTimestamp(ts);
 				socket.markNextPacket();
 
@@ -115,7 +117,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		} catch (IOException e) { 
 		} catch (InterruptedException e) {}
 
-		Log.d(TAG,"AMR packetizer stopped !");
+		Logger.d(TAG, "AMR packetizer stopped !");
 
 	}
 
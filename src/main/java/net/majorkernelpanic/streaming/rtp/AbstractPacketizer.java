@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 
@@ -32,20 +33,23 @@ import net.majorkernelpanic.streaming.rtcp.SenderReport;
  */
 abstract public class AbstractPacketizer {
 
-	protected static final int rtphl = RtpSocket.RTP_HEADER_LENGTH;
+	/** Length of the RTP header, header extensions included. */
+	protected int rtphl = RtpSocket.RTP_HEADER_LENGTH;
 	
 	// Maximum size of RTP packets
 	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
 
 	protected RtpSocket socket = null;
 	protected InputStream is = null;
+	protected EncodedFrameSource source = null;
 	protected byte[] buffer;
 	
 	protected long ts = 0;
 
+	private byte[] mScratch = null;
+
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
-		ts = new Random().nextInt();
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
 	}
@@ -62,8 +66,41 @@ abstract public class AbstractPacketizer {
 		return socket.getSSRC();
 	}
 
+	/**
+	 * Adds RTP header extensions to the packets, payloads are shortened accordingly so that
+	 * packets still fit in {@link #MAXPACKETSIZE}. Can't be called while the packetizer is running.
+	 * @param extensions The extensions, or null to remove them
+	 */
+	public void setHeaderExtensions(HeaderExtensions extensions) {
+		socket.setHeaderExtensions(extensions);
+		rtphl = socket.getHeaderLength();
+	}
+
+	/** Feeds the packetizer with a stream, like the one of a MediaRecorder, it replaces the frame source if any. */
 	public void setInputStream(InputStream is) {
 		this.is = is;
+		this.source = null;
+	}
+
+	/** 
+	 * Feeds the packetizer with the access units of an encoder, it replaces the InputStream if any.
+	 * Only the packetizers of the streams encoded with a MediaCodec use a frame source. 
+	 */
+	public void setFrameSource(EncodedFrameSource source) {
+		this.source = source;
+		this.is = null;
+		source.setMetrics(socket.getMetrics());
+		source.setFrameTracer(socket.getFrameTracer());
+	}
+
+	/**
+	 * Traces the access units of the stream, see {@link FrameTracer}.
+	 * Can't be called while the packetizer is running.
+	 * @param tracer The tracer, or null to stop tracing
+	 */
+	public void setFrameTracer(FrameTracer tracer) {
+		socket.setFrameTracer(tracer);
+		if (source != null) source.setFrameTracer(tracer);
 	}
 	
 	public void setTimeToLive(int ttl) throws IOException {
@@ -91,11 +128,80 @@ abstract public class AbstractPacketizer {
 		socket.commitBuffer(length);
 	}
 
+	/** 
+	 * Updates data for RTCP SR and adds the packet to the current access unit.
+	 * The packet is only sent when {@link #flush()} is called.
+	 */
+	protected void stage(int length) throws IOException {
+		socket.stageBuffer(length);
+	}
+
+	/** Sends all the packets of the current access unit at once. */
+	protected void flush() {
+		socket.commitBuffers();
+	}
+
+	/** Closes the InputStream or the frame source, for the packetizer to stop. */
+	protected void closeInput() {
+		if (source != null) source.close();
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Reads exactly length bytes from the InputStream into the buffer at the given offset.
+	 * @return The number of bytes read
+	 */
+	protected int fill(ByteBuffer buffer, int offset, int length) throws IOException {
+		int sum = 0, len;
+		if (buffer.hasArray()) {
+			byte[] array = buffer.array();
+			offset += buffer.arrayOffset();
+			while (sum<length) {
+				len = is.read(array, offset+sum, length-sum);
+				if (len<0) throw new IOException("End of stream");
+				sum += len;
+			}
+			return sum;
+		}
+		buffer.limit(offset+length).position(offset);
+		if (mScratch == null) mScratch = new byte[RtpSocket.MTU];
+		while (buffer.hasRemaining()) {
+			len = is.read(mScratch, 0, buffer.remaining());
+			if (len<0) throw new IOException("End of stream");
+			buffer.put(mScratch, 0, len);
+		}
+		return length;
+	}
+
+	/**
+	 * Copies length bytes of a frame, from the given offset in its buffer, into the packet at the given offset.
+	 * @return The number of bytes copied
+	 */
+	protected static int copy(EncodedFrame frame, int from, ByteBuffer packet, int offset, int length) {
+		return copy(frame.getBuffer(), from, packet, offset, length);
+	}
+
+	/**
+	 * Copies length bytes of a buffer, from the given offset, into the packet at the given offset.
+	 * The position and the limit of the buffer are changed.
+	 * @return The number of bytes copied
+	 */
+	protected static int copy(ByteBuffer data, int from, ByteBuffer packet, int offset, int length) {
+		data.limit(from+length).position(from);
+		packet.limit(offset+length).position(offset);
+		packet.put(data);
+		return length;
+	}
+
 	/** For debugging purposes. */
 	protected static String printBuffer(byte[] buffer, int start,int end) {
-		String str = "";
-		for (int i=start;i<end;i++) str+=","+Integer.toHexString(buffer[i]&0xFF);
-		return str;
+		StringBuilder str = new StringBuilder(3*(end-start));
+		for (int i=start;i<end;i++) str.append(',').append(Integer.toHexString(buffer[i]&0xFF));
+		return str.toString();
 	}
 
 	/** Used in packetizers to estimate timestamps in RTP packets. */
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Estimates the bitrate the network can take, in the spirit of Google Congestion Control.
+ *
+ * Two estimates are kept. The delay-based one looks at how long packets wait in the FIFO of the
+ * {@link RtpSocket} before they are sent: when that delay is high and growing, the uplink is
+ * overused and the estimate drops below the rate at which packets actually went out, otherwise it
+ * slowly grows. The loss-based one follows the fraction of packets lost reported by receivers in
+ * their RTCP reports. The target bitrate is the lowest of both, capped by the last REMB received.
+ *
+ * The {@link Listener} is only told about the target when it moves by more than the hysteresis,
+ * and not more often than the minimum intervals between two decreases and two increases.
+ * This class does not depend on Android, the socket feeds it with {@link #update(long, long, long)}.
+ */
+public class BandwidthEstimator {
+
+	public final static String TAG = "BandwidthEstimator";
+
+	/** The socket updates the estimator that often (ms). */
+	public final static long UPDATE_INTERVAL = 100;
+
+	/** Told about the new target bitrate. */
+	public interface Listener {
+		/** Called with the new target bitrate in bit per second. */
+		public void onTargetBitrate(int bitrate);
+	}
+
+	private final int mMinBitrate, mMaxBitrate, mStartBitrate;
+	private Listener mListener = null;
+
+	private long mOveruseThreshold = 80;
+	private float mHysteresis = 0.05f;
+	private long mDecreaseInterval = 200, mIncreaseInterval = 1000;
+
+	private double mDelayTarget, mLossTarget;
+	private long mRemb = 0;
+	private int mTarget, mApplied;
+	private long mLastUpdate = 0, mLastDecrease = 0, mLastChange = 0;
+	private long mLastQueueDelay = 0, mLastSentBytes = -1;
+	private long mSendRate = 0;
+	private int mOveruses = 0, mChanges = 0;
+
+	/**
+	 * @param minBitrate The target never goes below that (bit/s)
+	 * @param startBitrate The bitrate the encoder starts with (bit/s)
+	 * @param maxBitrate The target never goes above that (bit/s)
+	 */
+	public BandwidthEstimator(int minBitrate, int startBitrate, int maxBitrate) {
+		if (minBitrate<=0 || minBitrate>startBitrate || startBitrate>maxBitrate) {
+			throw new IllegalArgumentException("Invalid bitrates: "+minBitrate+", "+startBitrate+", "+maxBitrate);
+		}
+		mMinBitrate = minBitrate;
+		mStartBitrate = startBitrate;
+		mMaxBitrate = maxBitrate;
+		reset();
+	}
+
+	/** Sets the listener told about the target bitrate. */
+	public synchronized void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** The uplink is considered overused when packets wait more than that in the FIFO (ms), 80 by default. */
+	public synchronized void setOveruseThreshold(long threshold) {
+		mOveruseThreshold = threshold;
+	}
+
+	/**
+	 * Sets the hysteresis and the rate limits of the changes of the target bitrate.
+	 * @param hysteresis Smaller relative changes are ignored, 0.05 by default
+	 * @param decreaseInterval Minimum time between two decreases (ms), 200 by default
+	 * @param increaseInterval Minimum time between an increase and any previous change (ms), 1000 by default
+	 */
+	public synchronized void setRateLimits(float hysteresis, long decreaseInterval, long increaseInterval) {
+		mHysteresis = hysteresis;
+		mDecreaseInterval = decreaseInterval;
+		mIncreaseInterval = increaseInterval;
+	}
+
+	/** Returns the target bitrate last given to the listener (bit/s). */
+	public synchronized int getTargetBitrate() {
+		return mApplied;
+	}
+
+	/** Returns the target bitrate computed by the last update, before hysteresis (bit/s). */
+	public synchronized int getEstimate() {
+		return mTarget;
+	}
+
+	/** Returns the rate at which packets were actually sent during the last update interval (bit/s). */
+	public synchronized long getSendRate() {
+		return mSendRate;
+	}
+
+	/** Returns the number of updates during which the uplink was overused. */
+	public synchronized int getOveruseCount() {
+		return mOveruses;
+	}
+
+	/** Returns the number of times the listener was told about a new target. */
+	public synchronized int getChangeCount() {
+		return mChanges;
+	}
+
+	/** Goes back to the start bitrate. */
+	public synchronized void reset() {
+		mDelayTarget = mTarget = mApplied = mStartBitrate;
+		// Only loss lowers the loss-based estimate
+		mLossTarget = mMaxBitrate;
+		mRemb = 0;
+		mLastUpdate = mLastDecrease = mLastChange = 0;
+		mLastQueueDelay = 0;
+		mLastSentBytes = -1;
+		mSendRate = 0;
+		mOveruses = mChanges = 0;
+	}
+
+	/**
+	 * Delay-based estimate, called by the Thread of the socket every {@link #UPDATE_INTERVAL} ms.
+	 * @param now The current time in ms
+	 * @param queueDelay How long the packets sent recently waited in the FIFO (ms)
+	 * @param sentBytes The number of bytes sent since the beginning of the stream
+	 */
+	public synchronized void update(long now, long queueDelay, long sentBytes) {
+		if (mLastSentBytes<0 || now<=mLastUpdate) {
+			mLastUpdate = mLastChange = now;
+			mLastSentBytes = sentBytes;
+			mLastQueueDelay = queueDelay;
+			return;
+		}
+		long elapsed = now-mLastUpdate;
+		mSendRate = (sentBytes-mLastSentBytes)*8000/elapsed;
+		long gradient = queueDelay-mLastQueueDelay;
+		mLastUpdate = now;
+		mLastSentBytes = sentBytes;
+		mLastQueueDelay = queueDelay;
+
+		if (queueDelay>mOveruseThreshold && gradient>=0) {
+			// Overuse: below what the uplink actually let through
+			mOveruses++;
+			if (now-mLastDecrease>=mDecreaseInterval) {
+				double rate = mSendRate>0 ? Math.min(mSendRate, mDelayTarget) : mDelayTarget;
+				mDelayTarget = Math.max(mMinBitrate, 0.85*rate);
+				mLastDecrease = now;
+			}
+		} else if (queueDelay<mOveruseThreshold/2 && now-mLastDecrease>=mIncreaseInterval) {
+			// 8% per second
+			mDelayTarget = Math.min(mMaxBitrate, mDelayTarget*(1+0.08*elapsed/1000));
+		}
+		apply(now);
+	}
+
+	/**
+	 * Loss-based estimate, called when a receiver sends a reception report.
+	 * @param fractionLost The fraction of packets lost since its previous report, between 0 and 1
+	 */
+	public synchronized void onReceiverReport(long now, float fractionLost) {
+		if (fractionLost>0.1f) {
+			mLossTarget = Math.max(mMinBitrate, Math.min(mLossTarget, mTarget)*(1-0.5*fractionLost));
+		} else if (fractionLost<0.02f) {
+			mLossTarget = Math.min(mMaxBitrate, mLossTarget*1.05);
+		}
+		apply(now);
+	}
+
+	/** Called when a receiver sends a REMB, the target never goes above the last one. */
+	public synchronized void onEstimatedBitrate(long now, long bitrate) {
+		mRemb = bitrate;
+		apply(now);
+	}
+
+	private void apply(long now) {
+		double target = Math.min(mDelayTarget, mLossTarget);
+		if (mRemb>0) target = Math.min(target, mRemb);
+		mTarget = (int) Math.max(mMinBitrate, Math.min(mMaxBitrate, target));
+		if (Math.abs(mTarget-mApplied)<mHysteresis*mApplied) return;
+		long interval = mTarget<mApplied ? mDecreaseInterval : mIncreaseInterval;
+		if (now-mLastChange<interval) return;
+		mApplied = mTarget;
+		mLastChange = now;
+		mChanges++;
+		if (mListener != null) mListener.onTargetBitrate(mApplied);
+	}
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_TCP;
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_UDP;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Metric;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+
+/**
+ * A receiver of the packets of an {@link RtpSocket}, either over UDP or interleaved in a TCP connection.
+ * Each destination has its own RTCP {@link SenderReport}, its own {@link RtcpReceiver} and its own statistics.
+ * If {@link #setSSRC(int)} is called, the SSRC and the sequence numbers of the packets
+ * sent to this destination are rewritten.
+ * Destinations can be added to and removed from an RtpSocket while it is streaming.
+ */
+public class Destination {
+
+	public final static String TAG = "Destination";
+
+	private int mTransport = -1;
+	private InetSocketAddress mAddress;
+	private int mRtcpPort = -1;
+	private final DatagramPacket mPacket = new DatagramPacket(new byte[1], 1);
+	private InterleavedWriter mWriter = null;
+	private byte mChannel;
+	private final SenderReport mReport = new SenderReport();
+	private final RtcpReceiver mReceiver = new RtcpReceiver(mReport);
+
+	private volatile boolean mRewrite = false;
+	private volatile int mSsrc;
+	private int mSeq;
+
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private final Counter mPacketCount = mMetrics.counter("packets.sent");
+	private final Counter mOctetCount = mMetrics.counter("bytes.sent");
+	private final Counter mErrorCount = mMetrics.counter("errors");
+	private final Counter mDropCount = mMetrics.counter("packets.dropped");
+
+	{
+		// What the receivers report, the worst of them
+		mMetrics.register("rtcp.receivers", new Metric() {
+			@Override
+			public long get() {
+				return mReceiver.getReceivers().size();
+			}
+		});
+		mMetrics.register("rtcp.fraction_lost", new Metric() {
+			@Override
+			public long get() {
+				long max = 0;
+				for (ReceiverStats receiver : mReceiver.getReceivers()) max = Math.max(max, (long) (receiver.getFractionLost()*256));
+				return max;
+			}
+		});
+		mMetrics.register("rtcp.cumulative_lost", new Metric() {
+			@Override
+			public long get() {
+				long max = 0;
+				for (ReceiverStats receiver : mReceiver.getReceivers()) max = Math.max(max, receiver.getCumulativeLost());
+				return max;
+			}
+		});
+		mMetrics.register("rtcp.jitter", new Metric() {
+			@Override
+			public long get() {
+				long max = 0;
+				for (ReceiverStats receiver : mReceiver.getReceivers()) max = Math.max(max, receiver.getJitter()&0xFFFFFFFFL);
+				return max;
+			}
+		});
+		mMetrics.register("rtcp.rtt.ms", new Metric() {
+			@Override
+			public long get() {
+				long max = -1;
+				for (ReceiverStats receiver : mReceiver.getReceivers()) max = Math.max(max, receiver.getRtt());
+				return max;
+			}
+		});
+		mMetrics.register("rtcp.reports.sent", new Metric() {
+			@Override
+			public long get() {
+				return mReport.getReportCount();
+			}
+		});
+	}
+
+	/**
+	 * Creates a destination that receives packets over UDP.
+	 * @param dest The address of the receiver
+	 * @param rtpPort The port to which RTP packets are sent
+	 * @param rtcpPort The port to which RTCP packets are sent
+	 */
+	public Destination(InetAddress dest, int rtpPort, int rtcpPort) {
+		setDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Creates a destination that receives packets interleaved in a TCP connection.
+	 * @param outputStream The output stream of the connection
+	 * @param channelIdentifier The channel used for RTP, RTCP uses the next one
+	 */
+	public Destination(OutputStream outputStream, byte channelIdentifier) {
+		setOutputStream(outputStream, channelIdentifier);
+	}
+
+	/** Creates a destination whose transport will be set later. */
+	Destination() {}
+
+	void setDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		mAddress = new InetSocketAddress(dest, rtpPort);
+		mRtcpPort = rtcpPort;
+		mPacket.setAddress(dest);
+		mPacket.setPort(rtpPort);
+		mReport.setDestination(dest, rtcpPort);
+		mReceiver.start();
+		mTransport = TRANSPORT_UDP;
+	}
+
+	void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
+		mWriter = InterleavedWriter.get(outputStream);
+		mChannel = channelIdentifier;
+		mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+		mTransport = TRANSPORT_TCP;
+	}
+
+	/**
+	 * Rewrites the SSRC of the packets sent to this destination. They are also numbered
+	 * with their own sequence numbers, starting from a random value.
+	 */
+	public void setSSRC(int ssrc) {
+		mSeq = new Random().nextInt();
+		mSsrc = ssrc;
+		mReport.setSSRC(ssrc);
+		mRewrite = true;
+	}
+
+	/** Returns the SSRC seen by this destination. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns true if the SSRC and the sequence numbers of the packets are rewritten for this destination. */
+	public boolean isRewriting() {
+		return mRewrite;
+	}
+
+	/** Returns either {@link RtpSocket#TRANSPORT_UDP} or {@link RtpSocket#TRANSPORT_TCP}, or -1 if the destination is not set. */
+	public int getTransport() {
+		return mTransport;
+	}
+
+	/** Returns the address of the receiver, null if TCP is used. */
+	public InetAddress getAddress() {
+		return mAddress != null ? mAddress.getAddress() : null;
+	}
+
+	/** Returns the port to which RTP packets are sent, -1 if TCP is used. */
+	public int getPort() {
+		return mAddress != null ? mAddress.getPort() : -1;
+	}
+
+	/** Returns the port to which RTCP packets are sent, -1 if TCP is used. */
+	public int getRtcpPort() {
+		return mRtcpPort;
+	}
+
+	/** Returns the sender report of this destination. */
+	public SenderReport getSenderReport() {
+		return mReport;
+	}
+
+	/** 
+	 * Returns the RTCP receiver of this destination. Over UDP, it reads the RTCP port of the sender report. 
+	 * With TCP, the packets of the RTCP channel must be handed over to it.
+	 */
+	public RtcpReceiver getReceiver() {
+		return mReceiver;
+	}
+
+	/** Returns the number of RTP packets sent to this destination. */
+	public long getPacketCount() {
+		return mPacketCount.get();
+	}
+
+	/** Returns the number of bytes of RTP packets sent to this destination. */
+	public long getOctetCount() {
+		return mOctetCount.get();
+	}
+
+	/** Returns the number of RTP packets that could not be sent to this destination. */
+	public long getErrorCount() {
+		return mErrorCount.get();
+	}
+
+	/** Returns the number of RTP packets dropped because the TCP connection of this destination did not keep up. */
+	public long getDropCount() {
+		return mDropCount.get();
+	}
+
+	/**
+	 * Returns the metrics of this destination: packets and bytes sent, packets dropped, errors,
+	 * and the loss (in 1/256), jitter and RTT (ms) reported by the worst of its receivers.
+	 */
+	public MetricsRegistry getMetrics() {
+		return mMetrics;
+	}
+
+	/** Returns the writer of the TCP connection of this destination, null if UDP is used. */
+	public InterleavedWriter getWriter() {
+		return mWriter;
+	}
+
+	/** Releases the socket used by the sender report. */
+	void close() {
+		mReport.close();
+	}
+
+	/** Clears the statistics, the sender report and what receivers reported. */
+	void reset() {
+		mReport.reset();
+		mReceiver.reset();
+		mPacketCount.reset();
+		mOctetCount.reset();
+		mErrorCount.reset();
+		mDropCount.reset();
+	}
+
+	/** The SSRC of the stream changed, only matters if the SSRC is not rewritten. */
+	void setStreamSSRC(int ssrc) {
+		if (!mRewrite) {
+			mSsrc = ssrc;
+			mReport.setSSRC(ssrc);
+		}
+	}
+
+	/** Returns the sequence number of the next packet, if they are rewritten. */
+	short nextSequence() {
+		return (short) ++mSeq;
+	}
+
+	InetSocketAddress getSocketAddress() {
+		return mAddress;
+	}
+
+	/** Points the datagram packet of the destination to the packet of the slot. */
+	DatagramPacket getDatagramPacket(byte[] buffer, int length) {
+		mPacket.setData(buffer, 0, length);
+		return mPacket;
+	}
+
+	void sent(int length, long rtpts) throws IOException {
+		mPacketCount.increment();
+		mOctetCount.add(length);
+		mReport.update(length, rtpts);
+	}
+
+	void failed() {
+		mErrorCount.increment();
+	}
+
+	/** 
+	 * Queues the packet in the writer of the TCP connection.
+	 * @return False if the packet was dropped 
+	 */
+	boolean queue(RtpSocket.Slot slot, int length) {
+		if (mWriter.write(mChannel, slot.view, length, slot.droppable)) return true;
+		mDropCount.increment();
+		return false;
+	}
+
+	/** 
+	 * Queues a packet that is not in a slot of the FIFO in the writer of the TCP connection.
+	 * @return False if the packet was dropped 
+	 */
+	boolean queue(byte[] buffer, int length, boolean droppable) {
+		if (mWriter.write(mChannel, buffer, 0, length, droppable)) return true;
+		mDropCount.increment();
+		return false;
+	}
+
+	/** Sends all the packets queued with {@link #queue(RtpSocket.Slot, int)} at once. */
+	void flush() {
+		mWriter.flush();
+	}
+
+}
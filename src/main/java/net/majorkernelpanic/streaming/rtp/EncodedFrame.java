@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An access unit output by an encoder, as handed to a packetizer by an {@link EncodedFrameSource}.
+ *
+ * The frame is a view on the output buffer of the encoder, nothing is copied. Frames are pooled
+ * by their source and reused once {@link EncodedFrameSource#release(EncodedFrame) released}, 
+ * they must not be used after that. The NAL units of H.264 and H.265 frames are located the first 
+ * time they are asked for, the frames of other codecs are never parsed.
+ */
+public class EncodedFrame {
+
+	public final static String TAG = "EncodedFrame";
+
+	/** The frame can be decoded on its own. */
+	public final static int FLAG_KEYFRAME = 0x01;
+
+	/** The frame holds the configuration of the codec (SPS and PPS for instance), not media. */
+	public final static int FLAG_CODEC_CONFIG = 0x02;
+
+	private ByteBuffer mBuffer;
+	private int mOffset, mLength, mFlags;
+	private long mTimestamp;
+
+	// Locates the NAL units of the frame
+	private final NalSplitter mSplitter = new NalSplitter();
+	private int mNalCount = -1;
+
+	/** Index of the output buffer of the encoder the frame comes from. */
+	int index = -1;
+
+	/**
+	 * Points the frame to a new access unit. 
+	 * @param buffer The buffer that holds the access unit
+	 * @param offset Offset of the access unit in the buffer
+	 * @param length Length of the access unit
+	 * @param timestamp Presentation time of the access unit in ns
+	 * @param flags Some of {@link #FLAG_KEYFRAME} and {@link #FLAG_CODEC_CONFIG}
+	 */
+	public void set(ByteBuffer buffer, int offset, int length, long timestamp, int flags) {
+		mBuffer = buffer;
+		mOffset = offset;
+		mLength = length;
+		mTimestamp = timestamp;
+		mFlags = flags;
+		mNalCount = -1;
+	}
+
+	/** 
+	 * Returns the buffer that holds the frame, the frame starts at {@link #getOffset()}. 
+	 * Its position and limit are left where they were last set, see {@link #rewind()}. 
+	 */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/** Positions the buffer on the whole frame again, and returns it. */
+	public ByteBuffer rewind() {
+		mBuffer.limit(mOffset+mLength).position(mOffset);
+		return mBuffer;
+	}
+
+	/** Offset of the frame in its buffer. */
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Presentation time of the frame in ns. */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public boolean isKeyframe() {
+		return (mFlags&FLAG_KEYFRAME) != 0;
+	}
+
+	public boolean isCodecConfig() {
+		return (mFlags&FLAG_CODEC_CONFIG) != 0;
+	}
+
+	/** 
+	 * Returns the number of NAL units in the frame. NAL units are preceded either by start codes 
+	 * or by their length on 4 bytes, see {@link NalSplitter}. A frame that is framed neither way 
+	 * is a single NAL unit. 
+	 */
+	public int getNalCount() {
+		if (mNalCount<0) parse();
+		return mNalCount;
+	}
+
+	/** Returns the offset of a NAL unit, its start code excluded, relative to the start of the frame. */
+	public int getNalOffset(int nal) {
+		if (mNalCount<0) parse();
+		return mSplitter.getOffset(nal)-mOffset;
+	}
+
+	/** Returns the length of a NAL unit, its start code excluded. */
+	public int getNalLength(int nal) {
+		if (mNalCount<0) parse();
+		return mSplitter.getLength(nal);
+	}
+
+	/** Positions the buffer on a NAL unit, start code excluded, and returns it. */
+	public ByteBuffer getNal(int nal) {
+		if (mNalCount<0) parse();
+		int start = mSplitter.getOffset(nal);
+		mBuffer.limit(start+mSplitter.getLength(nal)).position(start);
+		return mBuffer;
+	}
+
+	private void parse() {
+		mNalCount = mSplitter.split(rewind(), mOffset, mLength);
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+
+/**
+ * Hands the access units output by an encoder to a packetizer, one whole {@link EncodedFrame} at a time.
+ * A frame stays valid, and the buffer of the encoder that holds it stays out of the encoder, 
+ * until the packetizer {@link #release(EncodedFrame) releases} it.
+ * See {@link MediaCodecFrameSource}.
+ */
+public interface EncodedFrameSource {
+
+	/**
+	 * Blocks until the encoder outputs an access unit.
+	 * @return The access unit, release it once it has been packetized
+	 * @throws IOException If the source was closed
+	 */
+	public EncodedFrame take() throws IOException;
+
+	/** Gives the frame back to the source, and its buffer back to the encoder. */
+	public void release(EncodedFrame frame);
+
+	/** Closes the source, {@link #take()} throws an IOException from then on. */
+	public void close();
+
+	/** Counts the frames and the bytes output by the encoder in "encoder.frames" and "encoder.bytes". */
+	public void setMetrics(MetricsRegistry metrics);
+
+	/** Records when the encoder outputs a frame, see {@link FrameTracer#ENCODER_OUTPUT}. */
+	public void setFrameTracer(FrameTracer tracer);
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RFC 5109.
+ *
+ * Generates ULPFEC parity packets for the packets sent by an {@link RtpSocket}. Media packets
+ * are XORed together in groups, and each group is protected by one FEC packet (a single protection
+ * level covering the whole packet) that allows a receiver to recover any one packet of the group.
+ * FEC packets are sent as a separate stream, with their own SSRC and payload type.
+ *
+ * Groups are smaller for keyframes, which are worth more protection than delta frames.
+ * A group of a keyframe is closed at the end of the frame so that its FEC packet is not delayed.
+ * Nothing is allocated once the encoder is created.
+ */
+public class FecEncoder {
+
+	public final static String TAG = "FecEncoder";
+
+	/** Default payload type of FEC packets. */
+	public final static int DEFAULT_PAYLOAD_TYPE = 127;
+
+	/** Length of the FEC header followed by the header of the protection level (with a 16 bits mask). */
+	private final static int FEC_HEADER_LENGTH = 10+4;
+
+	/** The mask of the protection level covers at most that many packets. */
+	private final static int MAX_GROUP = 16;
+
+	private final static int H = RtpSocket.RTP_HEADER_LENGTH;
+
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+	private final ByteBuffer mView = ByteBuffer.wrap(mBuffer);
+	private int mLength = 0;
+
+	private int mPayloadType = DEFAULT_PAYLOAD_TYPE;
+	private int mSsrc, mSeq;
+	private int mKeyframeGroup = 4, mDeltaGroup = 10;
+
+	// The group being protected
+	private int mCount = 0, mBase, mMask, mProtectionLength;
+	private int mByte0, mByte1, mTimestamp, mLengthRecovery, mLastTimestamp;
+	private boolean mKeyframe;
+
+	private volatile long mMediaPackets = 0, mMediaOctets = 0, mFecPackets = 0, mFecOctets = 0;
+
+	public FecEncoder() {
+		Random random = new Random();
+		mSsrc = random.nextInt();
+		mSeq = random.nextInt();
+	}
+
+	/**
+	 * Sets how many media packets are protected by each FEC packet.
+	 * @param keyframeGroup Group size for the packets of keyframes, between 1 and 16, 4 by default
+	 * @param deltaGroup Group size for the packets of other frames, between 1 and 16, or 0 to leave them unprotected, 10 by default
+	 */
+	public void setProtection(int keyframeGroup, int deltaGroup) {
+		if (keyframeGroup<1 || keyframeGroup>MAX_GROUP || deltaGroup<0 || deltaGroup>MAX_GROUP) {
+			throw new IllegalArgumentException("Invalid group sizes: "+keyframeGroup+", "+deltaGroup);
+		}
+		mKeyframeGroup = keyframeGroup;
+		mDeltaGroup = deltaGroup;
+	}
+
+	/** Sets the payload type of FEC packets, {@link #DEFAULT_PAYLOAD_TYPE} by default. */
+	public void setPayloadType(int payloadType) {
+		mPayloadType = payloadType;
+	}
+
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
+	/** Sets the SSRC of the FEC stream, a random one is used by default. */
+	public void setSSRC(int ssrc) {
+		mSsrc = ssrc;
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the rtpmap attribute of the FEC stream. */
+	public String getSessionDescription() {
+		return "a=rtpmap:"+mPayloadType+" ulpfec/90000\r\n";
+	}
+
+	/** Returns the number of media packets protected. */
+	public long getMediaPackets() {
+		return mMediaPackets;
+	}
+
+	/** Returns the number of FEC packets generated. */
+	public long getFecPackets() {
+		return mFecPackets;
+	}
+
+	/** Returns the bandwidth used by FEC packets relative to the bandwidth used by media packets. */
+	public float getOverhead() {
+		long media = mMediaOctets;
+		return media>0 ? (float) mFecOctets/media : 0;
+	}
+
+	/** Drops the group being protected and clears the counters. */
+	public void reset() {
+		mCount = 0;
+		mMediaPackets = mMediaOctets = mFecPackets = mFecOctets = 0;
+	}
+
+	/**
+	 * Adds a media packet that was just sent to the current group.
+	 * @param packet The RTP packet
+	 * @param length The length of the packet
+	 * @param keyframe True if the packet belongs to a keyframe
+	 * @return True if a FEC packet is ready, see {@link #getBuffer()} and {@link #getLength()}
+	 */
+	public boolean add(ByteBuffer packet, int length, boolean keyframe) {
+		int seq = packet.getShort(2)&0xFFFF;
+		boolean marker = (packet.get(1)&0x80) != 0;
+
+		if (mCount == 0) {
+			if (!keyframe && mDeltaGroup == 0) return false;
+			mBase = seq;
+			mKeyframe = false;
+			mMask = mByte0 = mByte1 = mTimestamp = mLengthRecovery = mProtectionLength = 0;
+		}
+		// A group that reaches a keyframe gets the protection of the keyframe
+		mKeyframe |= keyframe;
+		int group = mKeyframe ? mKeyframeGroup : mDeltaGroup;
+
+		mCount++;
+		mMediaPackets++;
+		mMediaOctets += length;
+		mMask |= 0x8000 >>> ((seq-mBase)&0xFFFF);
+		mByte0 ^= packet.get(0);
+		mByte1 ^= packet.get(1);
+		mTimestamp ^= packet.getInt(4);
+		mLengthRecovery ^= length-H;
+		mLastTimestamp = packet.getInt(4);
+		int protectionLength = length-H;
+		if (protectionLength>mProtectionLength) {
+			// The part of the accumulator that was not used yet must be cleared
+			Arrays.fill(mBuffer, H+FEC_HEADER_LENGTH+mProtectionLength, H+FEC_HEADER_LENGTH+protectionLength, (byte) 0);
+			mProtectionLength = protectionLength;
+		}
+		if (packet.hasArray()) {
+			byte[] array = packet.array();
+			int offset = packet.arrayOffset()+H;
+			for (int i=0, j=H+FEC_HEADER_LENGTH;i<protectionLength;i++, j++) {
+				mBuffer[j] ^= array[offset+i];
+			}
+		} else {
+			for (int i=0, j=H+FEC_HEADER_LENGTH;i<protectionLength;i++, j++) {
+				mBuffer[j] ^= packet.get(H+i);
+			}
+		}
+
+		if (mCount>=group || (keyframe && marker)) return close();
+		return false;
+	}
+
+	/** Returns the buffer that contains the last FEC packet. */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/** Returns the buffer that contains the last FEC packet, wrapped in a ByteBuffer. */
+	public ByteBuffer getView() {
+		return mView;
+	}
+
+	/** Returns the length of the last FEC packet. */
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Writes the headers of the FEC packet of the current group. */
+	private boolean close() {
+		byte[] b = mBuffer;
+
+		// RTP header
+		b[0] = (byte) 0x80;
+		b[1] = (byte) mPayloadType;
+		mSeq++;
+		b[2] = (byte) (mSeq>>8);
+		b[3] = (byte) mSeq;
+		putInt(b, 4, mLastTimestamp);
+		putInt(b, 8, mSsrc);
+
+		// FEC header, E and L are 0
+		b[H] = (byte) (mByte0&0x3F);
+		b[H+1] = (byte) mByte1;
+		b[H+2] = (byte) (mBase>>8);
+		b[H+3] = (byte) mBase;
+		putInt(b, H+4, mTimestamp);
+		b[H+8] = (byte) (mLengthRecovery>>8);
+		b[H+9] = (byte) mLengthRecovery;
+
+		// Header of the protection level
+		b[H+10] = (byte) (mProtectionLength>>8);
+		b[H+11] = (byte) mProtectionLength;
+		b[H+12] = (byte) (mMask>>8);
+		b[H+13] = (byte) mMask;
+
+		mLength = H+FEC_HEADER_LENGTH+mProtectionLength;
+		mCount = 0;
+		mFecPackets++;
+		mFecOctets += mLength;
+		return true;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int n) {
+		buffer[offset] = (byte) (n>>24);
+		buffer[offset+1] = (byte) (n>>16);
+		buffer[offset+2] = (byte) (n>>8);
+		buffer[offset+3] = (byte) n;
+	}
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces each access unit of a stream through the pipeline, from the output of the encoder
+ * to the network, to find out where the latency comes from.
+ *
+ * The time of each {@link #STAGES stage} is recorded in a ring preallocated when the tracer
+ * is created, one record per access unit, keyed by the RTP timestamp of the access unit.
+ * The packetizer and the thread of the {@link RtpSocket} record their stages, nothing is
+ * allocated and no lock is taken. Any thread can summarize the records with {@link #getSummary()}
+ * or write them in a CSV file with {@link #dump(Writer)}, records still in flight are skipped.
+ *
+ * When the stream does not come from a MediaCodec, the encoder output is the start of the packetizer.
+ * A tracer follows a single stream, see {@link AbstractPacketizer#setFrameTracer(FrameTracer)}.
+ */
+public class FrameTracer {
+
+	public final static String TAG = "FrameTracer";
+
+	/** The MediaCodec output a buffer, see {@link MediaCodecFrameSource}. */
+	public final static int ENCODER_OUTPUT = 0;
+
+	/** The packetizer requested the buffer of the first packet of the access unit. */
+	public final static int PACKETIZER_START = 1;
+
+	/** The packetizer handed the last packet of the access unit over to the socket. */
+	public final static int PACKETIZER_END = 2;
+
+	/** The last packet of the access unit was published in the FIFO of the socket. */
+	public final static int FIFO_ENQUEUE = 3;
+
+	/** The first packet of the access unit was sent. */
+	public final static int FIRST_SEND = 4;
+
+	/** The last packet of the access unit was sent, pacing included. */
+	public final static int LAST_SEND = 5;
+
+	/** Names of the stages, as they appear in the CSV file. */
+	public final static String[] STAGES = {
+		"encoder_output", "packetizer_start", "packetizer_end", "fifo_enqueue", "first_send", "last_send"
+	};
+
+	/** 
+	 * Names of the intervals summarized by {@link #getSummary()}: each one lasts from a stage to 
+	 * the next one, "total" lasts from the output of the encoder to the last packet sent.
+	 */
+	public final static String[] INTERVALS = {
+		"encoder", "packetizer", "staging", "fifo", "pacing", "total"
+	};
+
+	/** Index of the "total" interval. */
+	public final static int TOTAL = LAST_SEND;
+
+	// A record: the id of the access unit, its RTP timestamp and the time of each stage
+	private final static int ID = 0, RTP_TIMESTAMP = 1, TIMES = 2, FIELDS = 8;
+
+	private final AtomicLongArray mRecords;
+	private final int mMask;
+
+	// Only used by the packetizer
+	private volatile long mFrames = 0;
+	private long mKey = -1;
+	private long mEncoderOutput = 0;
+
+	/** Creates a tracer that keeps the last 1024 access units. */
+	public FrameTracer() {
+		this(1024);
+	}
+
+	/** @param capacity The number of access units kept, rounded up to a power of 2 */
+	public FrameTracer(int capacity) {
+		if (capacity<1 || capacity>1<<20) throw new IllegalArgumentException("Invalid capacity: "+capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size<capacity) size <<= 1;
+		mMask = size-1;
+		mRecords = new AtomicLongArray(size*FIELDS);
+	}
+
+	/** Returns the number of access units kept. */
+	public int getCapacity() {
+		return mMask+1;
+	}
+
+	/** Returns the number of access units traced so far. */
+	public long getFrameCount() {
+		return mFrames;
+	}
+
+	/** Called by the packetizer when the encoder outputs a buffer, the next access unit started comes from it. */
+	void onEncoderOutput(long time) {
+		mEncoderOutput = time;
+	}
+
+	/**
+	 * Called by the packetizer when a packet is handed over to the socket.
+	 * A new record starts when the RTP timestamp changes.
+	 * @param rtpTimestamp The RTP timestamp of the packet
+	 * @param start When the buffer of the packet was requested
+	 * @param now The current time
+	 * @return The id of the access unit, to be given back to {@link #onSent(long, long)}
+	 */
+	long onPacket(long rtpTimestamp, long start, long now) {
+		if (rtpTimestamp != mKey || mFrames == 0) {
+			long id = ++mFrames;
+			int base = (int) (id&mMask)*FIELDS;
+			// The id is cleared first so that readers skip the record while it is rewritten
+			mRecords.set(base+ID, 0);
+			mRecords.lazySet(base+RTP_TIMESTAMP, rtpTimestamp);
+			mRecords.lazySet(base+TIMES+ENCODER_OUTPUT, mEncoderOutput != 0 ? mEncoderOutput : start);
+			mRecords.lazySet(base+TIMES+PACKETIZER_START, start);
+			mRecords.lazySet(base+TIMES+FIFO_ENQUEUE, 0);
+			mRecords.lazySet(base+TIMES+FIRST_SEND, 0);
+			mRecords.lazySet(base+TIMES+LAST_SEND, 0);
+			mRecords.lazySet(base+ID, id);
+			mEncoderOutput = 0;
+			mKey = rtpTimestamp;
+		}
+		mRecords.lazySet((int) (mFrames&mMask)*FIELDS+TIMES+PACKETIZER_END, now);
+		return mFrames;
+	}
+
+	/** Called by the packetizer when the packets handed over so far are published in the FIFO. */
+	void onEnqueue(long now) {
+		if (mFrames == 0) return;
+		mRecords.lazySet((int) (mFrames&mMask)*FIELDS+TIMES+FIFO_ENQUEUE, now);
+	}
+
+	/** Called by the thread of the socket once a packet of an access unit was sent. */
+	void onSent(long id, long now) {
+		int base = (int) (id&mMask)*FIELDS;
+		// The record was reused by a more recent access unit
+		if (mRecords.get(base+ID) != id) return;
+		if (mRecords.get(base+TIMES+FIRST_SEND) == 0) mRecords.lazySet(base+TIMES+FIRST_SEND, now);
+		mRecords.lazySet(base+TIMES+LAST_SEND, now);
+	}
+
+	/** Returns the percentiles of the duration of each interval, over the access units in the ring. */
+	public Summary getSummary() {
+		int size = mMask+1, count = 0;
+		long[][] durations = new long[INTERVALS.length][size];
+		long[] times = new long[STAGES.length];
+		for (int i=0;i<size;i++) {
+			if (!read(i, times)) continue;
+			for (int j=0;j<TOTAL;j++) durations[j][count] = times[j+1]-times[j];
+			durations[TOTAL][count] = times[LAST_SEND]-times[ENCODER_OUTPUT];
+			count++;
+		}
+		for (long[] d : durations) Arrays.sort(d, 0, count);
+		return new Summary(durations, count);
+	}
+
+	/**
+	 * Writes the access units in the ring in CSV, oldest first: the RTP timestamp followed by
+	 * the time of each stage in ns, on the timeline of {@link System#nanoTime()}.
+	 */
+	public void dump(Writer writer) throws IOException {
+		StringBuilder line = new StringBuilder(128);
+		line.append("rtp_timestamp");
+		for (String stage : STAGES) line.append(',').append(stage);
+		writer.write(line.append('\n').toString());
+		long[] times = new long[STAGES.length];
+		long last = mFrames;
+		for (long id=Math.max(1, last-mMask);id<=last;id++) {
+			int base = (int) (id&mMask)*FIELDS;
+			long rtpTimestamp = mRecords.get(base+RTP_TIMESTAMP);
+			if (mRecords.get(base+ID) != id || !read((int) (id&mMask), times)) continue;
+			line.setLength(0);
+			line.append(rtpTimestamp);
+			for (long time : times) line.append(',').append(time);
+			writer.write(line.append('\n').toString());
+		}
+		writer.flush();
+	}
+
+	/** Copies the times of a record, returns false if the access unit is still in flight or if the record changed meanwhile. */
+	private boolean read(int index, long[] times) {
+		int base = index*FIELDS;
+		long id = mRecords.get(base+ID);
+		if (id == 0) return false;
+		for (int i=0;i<times.length;i++) times[i] = mRecords.get(base+TIMES+i);
+		return times[LAST_SEND] != 0 && mRecords.get(base+ID) == id;
+	}
+
+	/** Percentiles of the duration of each interval, in ns. */
+	public static class Summary {
+
+		private final long[][] mDurations;
+		private final int mCount;
+
+		private Summary(long[][] durations, int count) {
+			mDurations = durations;
+			mCount = count;
+		}
+
+		/** Returns the number of access units summarized. */
+		public int getCount() {
+			return mCount;
+		}
+
+		/**
+		 * Returns a percentile of the duration of an interval, in ns, or -1 if nothing was traced.
+		 * @param interval One of the {@link FrameTracer#INTERVALS}, {@link FrameTracer#TOTAL} for instance
+		 * @param percentile Between 0 and 100
+		 */
+		public long getPercentile(int interval, double percentile) {
+			if (mCount == 0) return -1;
+			int rank = (int) Math.ceil(percentile/100*mCount)-1;
+			return mDurations[interval][Math.max(0, Math.min(mCount-1, rank))];
+		}
+
+		/** One line per interval with its median, 90th and 99th percentiles and its maximum, in µs. */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(mCount).append(" access units (p50/p90/p99/max in us)\n");
+			for (int i=0;i<INTERVALS.length;i++) {
+				builder.append(INTERVALS[i]).append(": ")
+				.append(getPercentile(i, 50)/1000).append('/')
+				.append(getPercentile(i, 90)/1000).append('/')
+				.append(getPercentile(i, 99)/1000).append('/')
+				.append(getPercentile(i, 100)/1000).append('\n');
+			}
+			return builder.toString();
+		}
+
+	}
+
+}
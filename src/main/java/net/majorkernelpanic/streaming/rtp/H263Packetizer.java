@@ -19,7 +19,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.util.Log;
+import net.majorkernelpanic.streaming.log.Logger;
 
 /**
  *   RFC 4629.
@@ -40,6 +40,7 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 	public H263Packetizer() {
 		super();
 		socket.setClockFrequency(90000);
+		socket.setStartGate(RtpSocket.GATE_KEYFRAME);
 	}
 
 	public void start() {
@@ -68,6 +69,8 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 		boolean firstFragment = true;
 		byte[] nextBuffer;
 		stats.reset();
+		// Timestamps are estimated from the time frames take to arrive
+		ts = System.nanoTime();
 
 		try { 
 			while (!Thread.interrupted()) {
@@ -98,6 +101,8 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					// This is the first fragment of the frame -> header is set to 0x0400
 					buffer[rtphl] = 4;
 					firstFragment = false;
+					// The picture coding type in PTYPE is 0 for an INTRA picture
+					if ((buffer[rtphl+2]&0xFC)==0x80 && (buffer[rtphl+4]&0x02)==0) socket.markSyncPoint();
 				} else {
 					buffer[rtphl] = 0;
 				}
@@ -108,7 +113,9 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					//Log.d(TAG,"End of frame ! duration: "+stats.average());
 					// The last fragment of a frame has to be marked
 					socket.markNextPacket();
-					send(j);
+					stage(j);
+					// All the fragments of the frame are sent at once
+					flush();
 					nextBuffer = socket.requestBuffer();
 					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
 					buffer = nextBuffer;
@@ -117,13 +124,13 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 				} else {
 					// We have not found the beginning of another frame
 					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
+					stage(MAXPACKETSIZE);
 				}
 			}
 		} catch (IOException e) { 
 		} catch (InterruptedException e) {}
 
-		Log.d(TAG,"H263 Packetizer stopped !");
+		Logger.d(TAG, "H263 Packetizer stopped !");
 
 	}
 
@@ -19,8 +19,8 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.util.Log;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.log.Logger;
 
 /**
  * 
@@ -28,7 +28,9 @@ import android.util.Log;
  *   
  *   H.264 streaming over RTP.
  *   
- *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
+ *   Fed either with the access units of a MediaCodec by an {@link EncodedFrameSource}, 
+ *   or with an InputStream containing H.264 NAL units preceded by their length (4 bytes)
+ *   as the MediaRecorder outputs them, read by a {@link NalStreamReader}. 
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
  */
@@ -36,19 +38,22 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H264Packetizer";
 
+	/** NAL units up to this size are aggregated by default, about half the payload of a packet. */
+	public final static int DEFAULT_AGGREGATION_THRESHOLD = 600;
+
 	private Thread t = null;
-	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
 	private byte[] sps = null, pps = null, stapa = null;
-	byte[] header = new byte[5];	
-	private int count = 0;
-	private int streamType = 1;
+	private ByteBuffer packet = null;
+	private int count = 0, aggregation = DEFAULT_AGGREGATION_THRESHOLD;
+	private boolean paramSets = false;
 
 
 	public H264Packetizer() {
 		super();
 		socket.setClockFrequency(90000);
+		socket.setStartGate(RtpSocket.GATE_KEYFRAME);
 	}
 
 	public void start() {
@@ -60,9 +65,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public void stop() {
 		if (t != null) {
-			try {
-				is.close();
-			} catch (IOException e) {}
+			closeInput();
 			t.interrupt();
 			try {
 				t.join();
@@ -97,85 +100,185 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}	
 
+	/**
+	 * Consecutive NAL units of an access unit up to that size, SEI, AUD, SPS, PPS or the slices of a 
+	 * low bitrate stream, are sent together in STAP-A packets (RFC 6184, 5.7.1) as long as they fit in one.
+	 * Only the access units of a MediaCodec are aggregated, the NAL units read from the InputStream 
+	 * all have different timestamps. Can't be called while the packetizer is running.
+	 * @param size The maximum size of the NAL units to aggregate, 0 not to aggregate them
+	 */
+	public void setAggregationThreshold(int size) {
+		aggregation = size;
+	}
+
+	public int getAggregationThreshold() {
+		return aggregation;
+	}
+
 	public void run() {
 		long duration = 0;
-		Log.d(TAG,"H264 packetizer started !");
+		Logger.d(TAG, "H264 packetizer started !");
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
-			streamType = 1;
-			socket.setCacheSize(0);
-		} else {
-			streamType = 0;	
-			socket.setCacheSize(400);
-		}
-
 		try {
-			while (!Thread.interrupted()) {
-
-				oldtime = System.nanoTime();
-				// We read a NAL units from the input stream and we send them
-				send();
-				// We measure how long it took to receive NAL units from the phone
-				duration = System.nanoTime() - oldtime;
+			if (source != null) {
+				socket.setCacheSize(0);
+				while (!Thread.interrupted()) {
+					EncodedFrame frame = source.take();
+					try {
+						send(frame);
+					} finally {
+						// The buffer goes back to the MediaCodec once the access unit is in the FIFO of the socket
+						source.release(frame);
+					}
+				}
+			} else {
+				NalStreamReader reader = new NalStreamReader(is);
+				socket.setCacheSize(400);
+				// Timestamps are estimated from the time NAL units take to arrive
+				ts = System.nanoTime();
+				while (!Thread.interrupted()) {
 
-				stats.push(duration);
-				// Computes the average duration of a NAL unit
-				delay = stats.average();
-				//Log.d(TAG,"duration: "+duration/1000000+" delay: "+delay/1000000);
+					oldtime = System.nanoTime();
+					// We read a NAL units from the input stream and we send them
+					send(reader);
+					// All the packets of the NAL unit are handed over to the RTP socket at once
+					flush();
+					// We measure how long it took to receive NAL units from the phone
+					duration = System.nanoTime() - oldtime;
+
+					stats.push(duration);
+					// Computes the average duration of a NAL unit
+					delay = stats.average();
+					//Log.d(TAG,"duration: "+duration/1000000+" delay: "+delay/1000000);
 
+				}
 			}
 		} catch (IOException e) {
 		} catch (InterruptedException e) {}
 
-		Log.d(TAG,"H264 packetizer stopped !");
+		Logger.d(TAG, "H264 packetizer stopped !");
 
 	}
 
 	/**
-	 * Reads a NAL unit in the FIFO and sends it.
-	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * Sends all the NAL units of an access unit output by the MediaCodec, 
+	 * the last packet of the last NAL unit is marked.
 	 */
-	@SuppressLint("NewApi")
-	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
-
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
+	private void send(EncodedFrame frame) throws IOException, InterruptedException {
+		int nals = frame.getNalCount(), last = nals-1, first = -1, size = 0;
+		ts = frame.getTimestamp();
+		while (last>=0 && frame.getNalLength(last) == 0) last--;
+		for (int i=0;i<=last;i++) {
+			int length = frame.getNalLength(i);
+			if (length == 0) continue;
+			// Small NAL units wait for the next ones, the STAP-A header and their sizes have to fit in the packet
+			if (length<=aggregation && 3+length<=MAXPACKETSIZE-rtphl) {
+				if (first>=0 && size+2+length>MAXPACKETSIZE-rtphl) {
+					aggregate(frame, first, i, false);
+					first = -1;
+				}
+				if (first<0) {
+					first = i;
+					size = 1;
+				}
+				size += 2+length;
+				continue;
+			}
+			if (first>=0) {
+				aggregate(frame, first, i, false);
+				first = -1;
 			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+			int offset = frame.getOffset()+frame.getNalOffset(i);
+			send(frame.rewind().get(offset), length, frame.getBuffer(), offset+1, i == last);
+		}
+		if (first>=0) aggregate(frame, first, last+1, true);
+		// All the packets of the access unit are handed over to the RTP socket at once
+		flush();
+	}
+
+	/**
+	 * Sends the NAL units of a frame from first to end (excluded) in a STAP-A packet (RFC 6184, 5.7.1), 
+	 * or in a single NAL unit packet if there is only one. The caller makes sure that they fit.
+	 * @param last Whether the last of them is the last NAL unit of the access unit
+	 */
+	private void aggregate(EncodedFrame frame, int first, int end, boolean last) throws IOException, InterruptedException {
+		int nals = 0, single = 0, offset, length, position, f = 0, nri = 0;
+		boolean sync = false, droppable = true;
+		byte nal;
+
+		for (int i=first;i<end;i++) {
+			if (frame.getNalLength(i) == 0) continue;
+			single = i;
+			nals++;
 		}
+		if (nals == 1) {
+			offset = frame.getOffset()+frame.getNalOffset(single);
+			send(frame.rewind().get(offset), frame.getNalLength(single), frame.getBuffer(), offset+1, last);
+			return;
+		}
+
+		// The NAL units are looked at before the packet is requested, 
+		// the SPS and PPS that may have to precede an IDR go first
+		for (int i=first;i<end;i++) {
+			if (frame.getNalLength(i) == 0) continue;
+			nal = frame.rewind().get(frame.getOffset()+frame.getNalOffset(i));
+			sync |= inspect(nal);
+			droppable &= (nal&0x60) == 0;
+			// The F bit is set if one of them has it, the NRI is the highest of theirs
+			f |= nal&0x80;
+			nri = Math.max(nri, nal&0x60);
+		}
+
+		packet = socket.requestByteBuffer();
+		if (sync) socket.markSyncPoint();
+		if (droppable) socket.markDroppable();
+		packet.put(rtphl, (byte) (f | nri | 24));
+		position = rtphl+1;
+		for (int i=first;i<end;i++) {
+			length = frame.getNalLength(i);
+			if (length == 0) continue;
+			// The copy of the previous NAL unit moved the limit of the packet
+			packet.limit(packet.capacity());
+			packet.put(position, (byte) (length>>8));
+			packet.put(position+1, (byte) (length&0xFF));
+			position += 2+copy(frame, frame.getOffset()+frame.getNalOffset(i), packet, position+2, length);
+		}
+		socket.updateTimestamp(ts);
+		if (last) socket.markNextPacket();
+		stage(position);
+	}
+
+	/**
+	 * Reads a NAL unit in the InputStream and sends it.
+	 */
+	private void send(NalStreamReader reader) throws IOException, InterruptedException {
+		reader.next();
+		ts += delay;
+		ByteBuffer data = reader.getBuffer();
+		int offset = reader.getOffset();
+		send(data.get(offset), reader.getLength(), data, offset+1, true);
+	}
 
-		// Parses the NAL unit type
-		type = header[4]&0x1F;
+	/**
+	 * Keeps track of the parameter sets found in the stream before a NAL unit is sent, and sends 
+	 * the SPS and PPS before an IDR if they were not in the stream. 
+	 * @param nal The header of the NAL unit
+	 * @return Whether a decoder can start with the NAL unit
+	 */
+	private boolean inspect(byte nal) throws IOException, InterruptedException {
+		int type = nal&0x1F;
 
+		// A decoder can start with parameter sets found in the stream, or with an IDR 
+		// if they were not in the stream (the SDP also contains them)
+		boolean sync = type == 7 || (type == 5 && !paramSets);
+		paramSets = type == 7 || type == 8;
 
 		// The stream already contains NAL unit type 7 or 8, we don't need 
 		// to add them to the stream ourselves
 		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
+			Logger.v(TAG, "SPS or PPS present in the stream.");
 			count++;
 			if (count>4) {
 				sps = null;
@@ -186,98 +289,77 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
 		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
 		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
+			packet = socket.requestByteBuffer();
+			socket.markSyncPoint();
+			sync = false;
 			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
+			packet.position(rtphl);
+			packet.put(stapa);
+			stage(rtphl+stapa.length);
 		}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
+		return sync;
+	}
+
+	/**
+	 * Sends a NAL unit. If it is too big, we split it in FU-A units (RFC 3984).
+	 * @param nal The header of the NAL unit
+	 * @param naluLength The length of the NAL unit, its header included
+	 * @param data The buffer that holds the NAL unit
+	 * @param from Where the NAL unit goes on after its header in the buffer
+	 * @param last Whether it is the last NAL unit of the access unit
+	 */
+	private void send(byte nal, int naluLength, ByteBuffer data, int from, boolean last) throws IOException, InterruptedException {
+		int sum = 1, len = 0;
+		boolean sync = inspect(nal), droppable;
+
+		// NAL units with a nal_ref_idc of 0 are not used for the prediction of other pictures
+		droppable = (nal&0x60) == 0;
+
+		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+(nal&0x1F));
 
 		// Small NAL unit => Single NAL unit 
 		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
-			buffer = socket.requestBuffer();
-			buffer[rtphl] = header[4];
-			len = fill(buffer, rtphl+1,  naluLength-1);
+			packet = socket.requestByteBuffer();
+			if (sync) socket.markSyncPoint();
+			if (droppable) socket.markDroppable();
+			packet.put(rtphl, nal);
+			len = copy(data, from, packet, rtphl+1, naluLength-1);
 			socket.updateTimestamp(ts);
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
+			if (last) socket.markNextPacket();
+			stage(naluLength+rtphl);
 			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
 
 			// Set FU-A header
-			header[1] = (byte) (header[4] & 0x1F);  // FU header type
-			header[1] += 0x80; // Start bit
+			byte fuHeader = (byte) ((nal & 0x1F) + 0x80);  // FU header type, start bit
 			// Set FU-A indicator
-			header[0] = (byte) ((header[4] & 0x60) & 0xFF); // FU indicator NRI
-			header[0] += 28;
+			byte fuIndicator = (byte) ((nal & 0x60) + 28); // FU indicator NRI
 
 			while (sum < naluLength) {
-				buffer = socket.requestBuffer();
-				buffer[rtphl] = header[0];
-				buffer[rtphl+1] = header[1];
+				packet = socket.requestByteBuffer();
+				if (sync) socket.markSyncPoint();
+				if (droppable) socket.markDroppable();
+				sync = false;
+				packet.put(rtphl, fuIndicator);
+				packet.put(rtphl+1, fuHeader);
 				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
+				len = copy(data, from+sum-1, packet, rtphl+2, naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum);
+				sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
 					// End bit on
-					buffer[rtphl+1] += 0x40;
-					socket.markNextPacket();
+					packet.put(rtphl+1, (byte) (fuHeader+0x40));
+					if (last) socket.markNextPacket();
 				}
-				super.send(len+rtphl+2);
+				stage(len+rtphl+2);
 				// Switch start bit
-				header[1] = (byte) (header[1] & 0x7F); 
+				fuHeader = (byte) (fuHeader & 0x7F); 
 				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
 			}
 		}
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
-		return sum;
-	}
-
-	private void resync() throws IOException {
-		int type;
-
-		Log.e(TAG,"Packetizer out of sync ! Let's try to fix that...(NAL length: "+naluLength+")");
-
-		while (true) {
-
-			header[0] = header[1];
-			header[1] = header[2];
-			header[2] = header[3];
-			header[3] = header[4];
-			header[4] = (byte) is.read();
-
-			type = header[4]&0x1F;
-
-			if (type == 5 || type == 1) {
-				naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-				if (naluLength>0 && naluLength<100000) {
-					oldtime = System.nanoTime();
-					Log.e(TAG,"A NAL unit may have been found in the bit stream !");
-					break;
-				}
-				if (naluLength==0) {
-					Log.e(TAG,"NAL unit with NULL size found...");
-				} else if (header[3]==0xFF && header[2]==0xFF && header[1]==0xFF && header[0]==0xFF) {
-					Log.e(TAG,"NAL unit with 0xFFFFFFFF size found...");
-				}
-			}
-
-		}
-
-	}
-
 }
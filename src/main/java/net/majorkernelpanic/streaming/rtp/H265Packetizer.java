@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.log.Logger;
+
+/**
+ * 
+ *   RFC 7798.
+ *   
+ *   H.265 (HEVC) streaming over RTP.
+ *   
+ *   Fed with the access units of a MediaCodec by an {@link EncodedFrameSource}. 
+ *   NAL units are sent in single NAL unit packets, small ones are put together in aggregation 
+ *   packets (AP) and large ones are split in fragmentation units (FU). The stream is sent in
+ *   a single RTP session without DONL fields: sprop-max-don-diff is 0.
+ *   
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "H265Packetizer";
+
+	/** NAL units up to this size are aggregated by default, about half the payload of a packet. */
+	public final static int DEFAULT_AGGREGATION_THRESHOLD = 600;
+
+	/** Types of the NAL units that hold a video, a sequence and a picture parameter set. */
+	public final static int NAL_VPS = 32, NAL_SPS = 33, NAL_PPS = 34;
+
+	// Types of the payloads of RTP packets that are not NAL units (RFC 7798, 4.4)
+	private final static int NAL_AP = 48, NAL_FU = 49;
+
+	private Thread t = null;
+	private byte[] vps = null, sps = null, pps = null, ap = null;
+	private ByteBuffer packet = null;
+	private int count = 0, aggregation = DEFAULT_AGGREGATION_THRESHOLD;
+	private boolean paramSets = false, irapSeen = false;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+		socket.setStartGate(RtpSocket.GATE_KEYFRAME);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			closeInput();
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/**
+	 * The parameter sets are sent in an AP before each IRAP picture, 
+	 * as long as the stream does not hold them. 
+	 */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+		ap = null;
+
+		if (vps != null && sps != null && pps != null) {
+			// PayloadHdr + the size of each NAL unit = 8 bytes, the AP takes the layer and the temporal id of the VPS 
+			ByteBuffer buffer = ByteBuffer.allocate(8 + vps.length + sps.length + pps.length);
+			buffer.putShort((short) (NAL_AP<<9 | header(vps)&0x1FF));
+			buffer.putShort((short) vps.length).put(vps);
+			buffer.putShort((short) sps.length).put(sps);
+			buffer.putShort((short) pps.length).put(pps);
+			ap = buffer.array();
+		}
+	}
+
+	/**
+	 * Consecutive NAL units of an access unit up to that size are sent together in 
+	 * aggregation packets as long as they fit in one. Can't be called while the packetizer is running.
+	 * @param size The maximum size of the NAL units to aggregate, 0 not to aggregate them
+	 */
+	public void setAggregationThreshold(int size) {
+		aggregation = size;
+	}
+
+	public int getAggregationThreshold() {
+		return aggregation;
+	}
+
+	/**
+	 * Looks for the video, sequence and picture parameter sets of a stream, usually in the buffer
+	 * the MediaCodec outputs with BUFFER_FLAG_CODEC_CONFIG or in its "csd-0" format entry.
+	 * @param buffer A buffer that holds NAL units preceded by start codes
+	 * @return The VPS, the SPS and the PPS, without start code, null for those that were not found
+	 */
+	public static byte[][] findParameterSets(ByteBuffer buffer, int offset, int length) {
+		byte[][] sets = new byte[3][];
+		NalSplitter splitter = new NalSplitter();
+		int count = splitter.split(buffer, offset, length), type;
+		for (int i=0;i<count;i++) {
+			if (splitter.getLength(i)<2) continue;
+			type = (buffer.get(splitter.getOffset(i))>>1)&0x3F;
+			if (type>=NAL_VPS && type<=NAL_PPS && sets[type-NAL_VPS] == null) {
+				byte[] nal = new byte[splitter.getLength(i)];
+				for (int j=0;j<nal.length;j++) nal[j] = buffer.get(splitter.getOffset(i)+j);
+				sets[type-NAL_VPS] = nal;
+			}
+		}
+		return sets;
+	}
+
+	public void run() {
+		Logger.d(TAG, "H265 packetizer started !");
+		count = 0;
+
+		if (source == null) {
+			Logger.e(TAG, "The H265 packetizer can only be fed by a frame source.");
+			return;
+		}
+
+		try {
+			socket.setCacheSize(0);
+			while (!Thread.interrupted()) {
+				EncodedFrame frame = source.take();
+				try {
+					send(frame);
+				} finally {
+					// The buffer goes back to the MediaCodec once the access unit is in the FIFO of the socket
+					source.release(frame);
+				}
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Logger.d(TAG, "H265 packetizer stopped !");
+
+	}
+
+	/**
+	 * Sends all the NAL units of an access unit output by the MediaCodec, 
+	 * the last packet of the last NAL unit is marked.
+	 */
+	private void send(EncodedFrame frame) throws IOException, InterruptedException {
+		int nals = frame.getNalCount(), last = nals-1, first = -1, size = 0;
+		ts = frame.getTimestamp();
+		irapSeen = false;
+		// NAL units shorter than their header are not sent
+		while (last>=0 && frame.getNalLength(last)<2) last--;
+		for (int i=0;i<=last;i++) {
+			int length = frame.getNalLength(i);
+			if (length<2) continue;
+			// Small NAL units wait for the next ones, the PayloadHdr and their sizes have to fit in the packet
+			if (length<=aggregation && 4+length<=MAXPACKETSIZE-rtphl) {
+				if (first>=0 && size+2+length>MAXPACKETSIZE-rtphl) {
+					aggregate(frame, first, i, false);
+					first = -1;
+				}
+				if (first<0) {
+					first = i;
+					size = 2;
+				}
+				size += 2+length;
+				continue;
+			}
+			if (first>=0) {
+				aggregate(frame, first, i, false);
+				first = -1;
+			}
+			int offset = frame.getOffset()+frame.getNalOffset(i);
+			send(header(frame.rewind(), offset), length, frame.getBuffer(), offset+2, i == last);
+		}
+		if (first>=0) aggregate(frame, first, last+1, true);
+		// All the packets of the access unit are handed over to the RTP socket at once
+		flush();
+	}
+
+	/**
+	 * Sends the NAL units of a frame from first to end (excluded) in an AP (RFC 7798, 4.4.2), 
+	 * or in a single NAL unit packet if there is only one. The caller makes sure that they fit.
+	 * @param last Whether the last of them is the last NAL unit of the access unit
+	 */
+	private void aggregate(EncodedFrame frame, int first, int end, boolean last) throws IOException, InterruptedException {
+		int nals = 0, single = 0, offset, length, position, header, f = 0, layer = 0x3F, tid = 0x07;
+		boolean sync = false, droppable = true;
+
+		for (int i=first;i<end;i++) {
+			if (frame.getNalLength(i)<2) continue;
+			single = i;
+			nals++;
+		}
+		if (nals == 1) {
+			offset = frame.getOffset()+frame.getNalOffset(single);
+			send(header(frame.rewind(), offset), frame.getNalLength(single), frame.getBuffer(), offset+2, last);
+			return;
+		}
+
+		// The NAL units are looked at before the packet is requested, 
+		// the parameter sets that may have to precede an IRAP picture go first
+		for (int i=first;i<end;i++) {
+			if (frame.getNalLength(i)<2) continue;
+			header = header(frame.rewind(), frame.getOffset()+frame.getNalOffset(i));
+			sync |= inspect(header);
+			droppable &= isDroppable(header);
+			// The F bit is set if one of them has it, the layer and temporal ids are the lowest of theirs
+			f |= header&0x8000;
+			layer = Math.min(layer, (header>>3)&0x3F);
+			tid = Math.min(tid, header&0x07);
+		}
+
+		packet = socket.requestByteBuffer();
+		if (sync) socket.markSyncPoint();
+		if (droppable) socket.markDroppable();
+		packet.putShort(rtphl, (short) (f | NAL_AP<<9 | layer<<3 | tid));
+		position = rtphl+2;
+		for (int i=first;i<end;i++) {
+			length = frame.getNalLength(i);
+			if (length<2) continue;
+			// The copy of the previous NAL unit moved the limit of the packet
+			packet.limit(packet.capacity());
+			packet.putShort(position, (short) length);
+			position += 2+copy(frame, frame.getOffset()+frame.getNalOffset(i), packet, position+2, length);
+		}
+		socket.updateTimestamp(ts);
+		if (last) socket.markNextPacket();
+		stage(position);
+	}
+
+	/**
+	 * Keeps track of the parameter sets found in the stream before a NAL unit is sent, and sends 
+	 * them before an IRAP picture if they were not in the stream. 
+	 * @param header The header of the NAL unit
+	 * @return Whether a decoder can start with the NAL unit
+	 */
+	private boolean inspect(int header) throws IOException, InterruptedException {
+		int type = (header>>9)&0x3F;
+		boolean irap = type>=16 && type<=23;
+
+		// A decoder can start with parameter sets found in the stream, or with an IRAP 
+		// picture if they were not in the stream (the SDP also contains them)
+		boolean sync = type == NAL_VPS || (irap && !paramSets);
+		paramSets = type>=NAL_VPS && type<=NAL_PPS;
+
+		// The stream already contains the parameter sets, we don't need 
+		// to add them to the stream ourselves
+		if (paramSets) {
+			Logger.v(TAG, "VPS, SPS or PPS present in the stream.");
+			count++;
+			if (count>6) {
+				ap = null;
+			}
+		}
+
+		// Once per access unit, a picture can be made of several IRAP slices
+		if (irap && ap != null && !irapSeen) {
+			packet = socket.requestByteBuffer();
+			socket.markSyncPoint();
+			sync = false;
+			socket.updateTimestamp(ts);
+			packet.position(rtphl);
+			packet.put(ap);
+			stage(rtphl+ap.length);
+		}
+		irapSeen |= irap;
+
+		return sync;
+	}
+
+	/**
+	 * Sends a NAL unit. If it is too big, we split it in FUs (RFC 7798, 4.4.3).
+	 * @param header The header of the NAL unit, on 2 bytes
+	 * @param naluLength The length of the NAL unit, its header included
+	 * @param data The buffer that holds the NAL unit
+	 * @param from Where the NAL unit goes on after its header in the buffer
+	 * @param last Whether it is the last NAL unit of the access unit
+	 */
+	private void send(int header, int naluLength, ByteBuffer data, int from, boolean last) throws IOException, InterruptedException {
+		int sum = 2, len = 0;
+		boolean sync = inspect(header), droppable = isDroppable(header);
+
+		// Small NAL unit => Single NAL unit packet
+		if (naluLength<=MAXPACKETSIZE-rtphl) {
+			packet = socket.requestByteBuffer();
+			if (sync) socket.markSyncPoint();
+			if (droppable) socket.markDroppable();
+			packet.putShort(rtphl, (short) header);
+			copy(data, from, packet, rtphl+2, naluLength-2);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			stage(naluLength+rtphl);
+		}
+		// Large NAL unit => FUs
+		else {
+
+			// PayloadHdr: the F bit, the layer and the temporal id of the NAL unit, its type is FU
+			short payloadHeader = (short) (header&0x81FF | NAL_FU<<9);
+			// FU header: the type of the NAL unit, start bit
+			byte fuHeader = (byte) (((header>>9)&0x3F) | 0x80);
+
+			while (sum < naluLength) {
+				packet = socket.requestByteBuffer();
+				if (sync) socket.markSyncPoint();
+				if (droppable) socket.markDroppable();
+				sync = false;
+				packet.putShort(rtphl, payloadHeader);
+				packet.put(rtphl+2, fuHeader);
+				socket.updateTimestamp(ts);
+				len = copy(data, from+sum-2, packet, rtphl+3, naluLength-sum > MAXPACKETSIZE-rtphl-3 ? MAXPACKETSIZE-rtphl-3 : naluLength-sum);
+				sum += len;
+				// Last FU of the NAL unit
+				if (sum >= naluLength) {
+					// End bit on
+					packet.put(rtphl+2, (byte) (fuHeader | 0x40));
+					if (last) socket.markNextPacket();
+				}
+				stage(len+rtphl+3);
+				// Switch start bit
+				fuHeader = (byte) (fuHeader & 0x7F);
+			}
+		}
+	}
+
+	/** Reads the header of a NAL unit, on 2 bytes. */
+	private static int header(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset)&0xFF)<<8 | buffer.get(offset+1)&0xFF;
+	}
+
+	private static int header(byte[] nal) {
+		return (nal[0]&0xFF)<<8 | nal[1]&0xFF;
+	}
+
+	/** Sub-layer non-reference pictures, the even types up to RSV_VCL_N14, are not used for the prediction of other pictures. */
+	private static boolean isDroppable(int header) {
+		int type = (header>>9)&0x3F;
+		return type<=14 && (type&1) == 0;
+	}
+
+}
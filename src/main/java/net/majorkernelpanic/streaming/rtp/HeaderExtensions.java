@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RFC 8285.
+ *
+ * The RTP header extensions added to the packets of an {@link RtpSocket}: abs-send-time and
+ * transport-wide sequence numbers. Room for them is reserved in every packet, right after
+ * the fixed header, and they are stamped by the Thread of the socket when the packet is sent.
+ *
+ * The same instance can be given to several sockets (the audio and video tracks of a session
+ * for instance), transport-wide sequence numbers are then shared by all of them.
+ */
+public class HeaderExtensions {
+
+	public final static String TAG = "HeaderExtensions";
+
+	public final static String URI_ABS_SEND_TIME = "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time";
+	public final static String URI_TRANSPORT_SEQUENCE = "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+
+	/** Elements have a one-byte header, ids go from 1 to 14. */
+	public final static int FORM_ONE_BYTE = 0x01;
+
+	/** Elements have a two-byte header, ids go from 1 to 255. */
+	public final static int FORM_TWO_BYTE = 0x02;
+
+	private final int mForm;
+	private int mAbsSendTimeId = 0, mTransportSequenceId = 0;
+	private int mLength = 0, mAbsSendTimeOffset = -1, mTransportSequenceOffset = -1;
+	private final AtomicInteger mSequence = new AtomicInteger(0);
+
+	/**
+	 * Creates a set of header extensions, add extensions to it with {@link #setAbsSendTime(int)}
+	 * and {@link #setTransportSequence(int)} before handing it to a socket.
+	 * @param form Either {@link #FORM_ONE_BYTE} or {@link #FORM_TWO_BYTE}
+	 */
+	public HeaderExtensions(int form) {
+		if (form != FORM_ONE_BYTE && form != FORM_TWO_BYTE) throw new IllegalArgumentException("Unknown form: "+form);
+		mForm = form;
+	}
+
+	/** Creates a set of one-byte header extensions with abs-send-time as id 1 and transport-wide sequence numbers as id 2. */
+	public HeaderExtensions() {
+		this(FORM_ONE_BYTE);
+		setAbsSendTime(1);
+		setTransportSequence(2);
+	}
+
+	/** Adds the abs-send-time extension with the given id, 0 removes it. */
+	public synchronized void setAbsSendTime(int id) {
+		checkId(id, mTransportSequenceId);
+		mAbsSendTimeId = id;
+		layout();
+	}
+
+	/** Adds the transport-wide sequence number extension with the given id, 0 removes it. */
+	public synchronized void setTransportSequence(int id) {
+		checkId(id, mAbsSendTimeId);
+		mTransportSequenceId = id;
+		layout();
+	}
+
+	/** Returns the number of bytes the extensions add to each packet, 0 if there are none. */
+	public synchronized int getLength() {
+		return mLength;
+	}
+
+	/** Returns the extmap attributes that describe the extensions in a media description. */
+	public synchronized String getSessionDescription() {
+		StringBuilder sdp = new StringBuilder();
+		if (mForm == FORM_TWO_BYTE && mLength>0) sdp.append("a=extmap-allow-mixed\r\n");
+		if (mAbsSendTimeId != 0) sdp.append("a=extmap:"+mAbsSendTimeId+" "+URI_ABS_SEND_TIME+"\r\n");
+		if (mTransportSequenceId != 0) sdp.append("a=extmap:"+mTransportSequenceId+" "+URI_TRANSPORT_SEQUENCE+"\r\n");
+		return sdp.toString();
+	}
+
+	/** Returns the next transport-wide sequence number. */
+	int nextSequence() {
+		return mSequence.incrementAndGet();
+	}
+
+	/** Writes the extension header and the headers of the elements in the packet, their data is stamped later. */
+	synchronized void write(ByteBuffer packet) {
+		int h = RtpSocket.RTP_HEADER_LENGTH;
+		if (mLength == 0) {
+			packet.put(0, (byte) (packet.get(0)&~0x10));
+			return;
+		}
+		packet.put(0, (byte) (packet.get(0)|0x10));
+		packet.putShort(h, (short) (mForm == FORM_ONE_BYTE ? 0xBEDE : 0x1000));
+		packet.putShort(h+2, (short) ((mLength-4)/4));
+		for (int i=h+4;i<h+mLength;i++) packet.put(i, (byte) 0);
+		if (mAbsSendTimeId != 0) writeElementHeader(packet, mAbsSendTimeOffset, mAbsSendTimeId, 3);
+		if (mTransportSequenceId != 0) writeElementHeader(packet, mTransportSequenceOffset, mTransportSequenceId, 2);
+	}
+
+	/**
+	 * Stamps the extensions of a packet, the packet must have been laid out with {@link #write(ByteBuffer)}.
+	 * @param now The current time in ns
+	 * @param sequence The transport-wide sequence number of the packet
+	 */
+	void stamp(ByteBuffer packet, long now, int sequence) {
+		if (mAbsSendTimeOffset>=0) {
+			// 6.18 fixed point seconds, 24 bits
+			int time = (int) ((((now/1000)<<18)/1000000) & 0xFFFFFF);
+			packet.put(mAbsSendTimeOffset, (byte) (time>>16));
+			packet.putShort(mAbsSendTimeOffset+1, (short) time);
+		}
+		if (mTransportSequenceOffset>=0) {
+			packet.putShort(mTransportSequenceOffset, (short) sequence);
+		}
+	}
+
+	private void writeElementHeader(ByteBuffer packet, int offset, int id, int length) {
+		if (mForm == FORM_ONE_BYTE) {
+			packet.put(offset-1, (byte) (id<<4 | (length-1)));
+		} else {
+			packet.put(offset-2, (byte) id);
+			packet.put(offset-1, (byte) length);
+		}
+	}
+
+	/** Computes where the data of each element goes in the packet. */
+	private void layout() {
+		int header = mForm == FORM_ONE_BYTE ? 1 : 2;
+		int offset = RtpSocket.RTP_HEADER_LENGTH+4;
+		mAbsSendTimeOffset = mTransportSequenceOffset = -1;
+		if (mAbsSendTimeId != 0) {
+			mAbsSendTimeOffset = offset+header;
+			offset += header+3;
+		}
+		if (mTransportSequenceId != 0) {
+			mTransportSequenceOffset = offset+header;
+			offset += header+2;
+		}
+		int length = offset-RtpSocket.RTP_HEADER_LENGTH;
+		// The extension is padded to a multiple of 32 bits
+		mLength = length == 4 ? 0 : (length+3)/4*4;
+	}
+
+	private void checkId(int id, int other) {
+		int max = mForm == FORM_ONE_BYTE ? 14 : 255;
+		if (id<0 || id>max) throw new IllegalArgumentException("Invalid extension id: "+id);
+		if (id != 0 && id == other) throw new IllegalArgumentException("Extension id already used: "+id);
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import net.majorkernelpanic.streaming.log.Logger;
+
+/**
+ * Writes RTP and RTCP packets interleaved in a TCP connection (RFC 2326, section 10.12).
+ *
+ * There is one writer per connection, shared by all the streams and sender reports that use it.
+ * Packets are copied, preceded by their '$' header, in a bounded buffer. When {@link #flush()} is
+ * called, the Thread of the writer hands everything queued so far to the connection with a single
+ * write. The threads that queue packets never wait for the connection.
+ *
+ * When the client does not keep up, packets flagged as droppable (non-reference frames) are dropped
+ * once the buffer is half full. If a packet that can't be dropped does not fit in the buffer,
+ * the connection is closed.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Default size of the buffer of a writer in bytes. */
+	public final static int DEFAULT_CAPACITY = 256*1024;
+
+	/** The Thread of the writer stops if nothing is flushed during that time (ms). */
+	private final static long IDLE_TIMEOUT = 4000;
+
+	/** 
+	 * The writers hold their connection, so they are removed from the map when they are closed,
+	 * or when the connection ends with {@link #release(OutputStream)}. 
+	 */
+	private final static HashMap<OutputStream, InterleavedWriter> sWriters = new HashMap<OutputStream, InterleavedWriter>();
+
+	/** Returns the writer of the connection, it is created if needed. */
+	public static InterleavedWriter get(OutputStream outputStream) {
+		synchronized (sWriters) {
+			InterleavedWriter writer = sWriters.get(outputStream);
+			if (writer == null || writer.isClosed()) {
+				writer = new InterleavedWriter(outputStream);
+				sWriters.put(outputStream, writer);
+			}
+			return writer;
+		}
+	}
+
+	/** 
+	 * Closes the writer of a connection that ended, if it has one. 
+	 * Should be called by the owner of the connection when it is closed.
+	 */
+	public static void release(OutputStream outputStream) {
+		InterleavedWriter writer;
+		synchronized (sWriters) {
+			writer = sWriters.remove(outputStream);
+		}
+		if (writer != null) writer.close();
+	}
+
+	/** Removes the writer from the map, unless it was already replaced. */
+	private static void forget(InterleavedWriter writer) {
+		synchronized (sWriters) {
+			if (sWriters.get(writer.mOutputStream) == writer) sWriters.remove(writer.mOutputStream);
+		}
+	}
+
+	private final OutputStream mOutputStream;
+	private byte[] mPending, mWriting;
+	private int mLength = 0, mInFlight = 0;
+	private boolean mFlushRequested = false, mClosed = false;
+	private Thread mThread = null;
+
+	private volatile long mPacketCount = 0, mDropCount = 0, mWriteCount = 0, mOctetCount = 0;
+
+	private InterleavedWriter(OutputStream outputStream) {
+		mOutputStream = outputStream;
+		setCapacity(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Sets the size of the buffer of the writer in bytes.
+	 * It should at least be able to hold the largest frame of the streams.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (mLength>0 || mInFlight>0) throw new IllegalStateException("Can't be called while writing.");
+		mPending = new byte[capacity];
+		mWriting = new byte[capacity];
+	}
+
+	/**
+	 * Queues a packet, taken from the beginning of the buffer.
+	 * @param channel The interleaved channel identifier
+	 * @param buffer The packet, its position and limit are modified
+	 * @param length The length of the packet
+	 * @param droppable Whether the packet can be dropped if the client does not keep up
+	 * @return False if the packet was dropped or if the connection is closed
+	 */
+	public synchronized boolean write(byte channel, ByteBuffer buffer, int length, boolean droppable) {
+		int offset = reserve(channel, length, droppable);
+		if (offset<0) return false;
+		buffer.limit(length).position(0);
+		buffer.get(mPending, offset, length);
+		return true;
+	}
+
+	/**
+	 * Queues a packet.
+	 * @param channel The interleaved channel identifier
+	 * @param buffer The buffer that contains the packet
+	 * @param offset The offset of the packet in the buffer
+	 * @param length The length of the packet
+	 * @param droppable Whether the packet can be dropped if the client does not keep up
+	 * @return False if the packet was dropped or if the connection is closed
+	 */
+	public synchronized boolean write(byte channel, byte[] buffer, int offset, int length, boolean droppable) {
+		int position = reserve(channel, length, droppable);
+		if (position<0) return false;
+		System.arraycopy(buffer, offset, mPending, position, length);
+		return true;
+	}
+
+	/** Sends everything queued so far at once. */
+	public synchronized void flush() {
+		if (mClosed || mLength == 0) return;
+		mFlushRequested = true;
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/** Returns true if the connection was closed, either because of an error or because the client was too slow. */
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/** Returns the number of packets queued. */
+	public long getPacketCount() {
+		return mPacketCount;
+	}
+
+	/** Returns the number of packets dropped because the client did not keep up. */
+	public long getDropCount() {
+		return mDropCount;
+	}
+
+	/** Returns the number of writes made to the connection. */
+	public long getWriteCount() {
+		return mWriteCount;
+	}
+
+	/** Returns the number of bytes written to the connection. */
+	public long getOctetCount() {
+		return mOctetCount;
+	}
+
+	/**
+	 * Applies the slow consumer policy and writes the '$' header of the packet.
+	 * @return Where the packet should be copied in the pending buffer, or -1
+	 */
+	private int reserve(byte channel, int length, boolean droppable) {
+		if (mClosed) return -1;
+		int size = length+4;
+		if (droppable && mLength+mInFlight+size>mPending.length/2) {
+			mDropCount++;
+			return -1;
+		}
+		if (mLength+size>mPending.length) {
+			disconnect();
+			return -1;
+		}
+		mPending[mLength] = '$';
+		mPending[mLength+1] = channel;
+		mPending[mLength+2] = (byte) (length>>8);
+		mPending[mLength+3] = (byte) (length&0xFF);
+		mLength += size;
+		mPacketCount++;
+		return mLength-length;
+	}
+
+	/** Stops the writer, what was not written yet is discarded. The connection is not closed. */
+	private synchronized void close() {
+		mClosed = true;
+		mLength = 0;
+		notifyAll();
+	}
+
+	/** The client is too slow, the connection is closed without waiting for the Thread of the writer. */
+	private void disconnect() {
+		Logger.e(TAG, "The client does not keep up, the connection will be closed.");
+		mClosed = true;
+		mLength = 0;
+		notifyAll();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// Not while holding the lock of the writer, get() holds the lock of the map when it calls isClosed()
+				forget(InterleavedWriter.this);
+				try {
+					mOutputStream.close();
+				} catch (IOException ignore) {}
+			}
+		}).start();
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer;
+		int length;
+		while (true) {
+			synchronized (this) {
+				long deadline = System.currentTimeMillis()+IDLE_TIMEOUT, now;
+				while (!mClosed && !mFlushRequested) {
+					now = System.currentTimeMillis();
+					if (now>=deadline) {
+						mThread = null;
+						return;
+					}
+					try {
+						wait(deadline-now);
+					} catch (InterruptedException e) {
+						mThread = null;
+						return;
+					}
+				}
+				if (mClosed) {
+					mThread = null;
+					return;
+				}
+				// The pending buffer is swapped with the one that was just written
+				buffer = mPending;
+				mPending = mWriting;
+				mWriting = buffer;
+				length = mInFlight = mLength;
+				mLength = 0;
+				mFlushRequested = false;
+			}
+			try {
+				synchronized (mOutputStream) {
+					mOutputStream.write(buffer, 0, length);
+					mOutputStream.flush();
+				}
+				mWriteCount++;
+				mOctetCount += length;
+			} catch (IOException e) {
+				Logger.e(TAG, "Connection lost: {}", e.getMessage());
+				synchronized (this) {
+					mClosed = true;
+					mLength = mInFlight = 0;
+					mThread = null;
+				}
+				forget(this);
+				return;
+			}
+			synchronized (this) {
+				mInFlight = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Maps capture times to NTP and RTP timestamps, shared by all the tracks of a session.
+ *
+ * Capture times are in ns on the timeline of {@link System#nanoTime()}, which is also the one of
+ * the presentation times of MediaCodec and of the timestamps of a SurfaceTexture. The clock is
+ * anchored to the wall clock once, when it is created, so that the NTP timestamps of the sender
+ * reports of every track agree and receivers can synchronize them.
+ *
+ * RTP timestamps are computed from the time elapsed since the anchor with integer arithmetic,
+ * whole seconds and the remaining ns apart, so they never drift and never overflow.
+ * For media whose duration is counted in samples, {@link #toNanos(long, long)} gives capture
+ * times that map back to the exact sample count.
+ *
+ * The clock also holds the CNAME of the session, sent in the RTCP packets of every track
+ * so that receivers know which tracks go together.
+ */
+public class MediaClock {
+
+	public final static String TAG = "MediaClock";
+
+	/** Seconds between the NTP epoch (1900) and the Unix epoch (1970). */
+	private final static long NTP_EPOCH_OFFSET = 2208988800L;
+
+	private final static long NANOS = 1000000000L;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long mWallAnchor, mMonotonicAnchor;
+	private final Random mRandom = new Random();
+	private volatile String mCname = createCname();
+
+	/** Creates a clock anchored to the current time. */
+	public MediaClock() {
+		this(System.currentTimeMillis()*1000000L, System.nanoTime());
+	}
+
+	/**
+	 * Creates a clock with a given anchor, to replay a timeline.
+	 * @param wallTime The wall clock time of the anchor, in ns since the Unix epoch
+	 * @param monotonicTime The capture time of the anchor, in ns
+	 */
+	public MediaClock(long wallTime, long monotonicTime) {
+		mWallAnchor = wallTime;
+		mMonotonicAnchor = monotonicTime;
+	}
+
+	/** Sets the CNAME of the session, a random one is used by default. */
+	public void setCname(String cname) {
+		encodeCname(cname);
+		mCname = cname;
+	}
+
+	/** Returns the CNAME of the session. */
+	public String getCname() {
+		return mCname;
+	}
+
+	/**
+	 * Returns the CNAME in UTF-8, as it is sent in SDES packets.
+	 * @throws IllegalArgumentException if it is longer than the 255 bytes of an SDES item
+	 */
+	public static byte[] encodeCname(String cname) {
+		byte[] bytes = cname.getBytes(UTF8);
+		if (bytes.length>255) throw new IllegalArgumentException("The CNAME is longer than 255 bytes.");
+		return bytes;
+	}
+
+	/** Returns a random CNAME, 96 random bits as recommended by RFC 7022. */
+	public static String createCname() {
+		Random random = new Random();
+		return String.format("%08x%08x%08x", random.nextInt(), random.nextInt(), random.nextInt());
+	}
+
+	/** Returns the current capture time, in ns. */
+	public long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Returns the 64 bits NTP timestamp of a capture time: seconds since 1900 in the
+	 * upper 32 bits, and the fraction of a second in the lower 32 bits.
+	 * @param time A capture time in ns
+	 */
+	public long getNtpTime(long time) {
+		long wall = mWallAnchor+(time-mMonotonicAnchor);
+		long seconds = floorDiv(wall, NANOS);
+		long fraction = ((wall-seconds*NANOS)<<32)/NANOS;
+		return (seconds+NTP_EPOCH_OFFSET)<<32 | fraction;
+	}
+
+	/** Creates a track with a random RTP timestamp offset, as recommended by RFC 3550. */
+	public Track createTrack(long clockRate) {
+		return new Track(clockRate, mRandom.nextInt());
+	}
+
+	/**
+	 * Creates a track.
+	 * @param clockRate The clock rate of the RTP timestamps of the track in Hz
+	 * @param offset The RTP timestamp of the anchor of the clock
+	 */
+	public Track createTrack(long clockRate, int offset) {
+		return new Track(clockRate, offset);
+	}
+
+	/**
+	 * Converts a duration counted in units of a clock to ns, rounded up so that
+	 * {@link Track#getRtpTimestamp(long)} gives back the exact count with the same rate.
+	 * @param units For instance a number of audio samples
+	 * @param rate The number of units per second
+	 */
+	public static long toNanos(long units, long rate) {
+		long seconds = units/rate, rest = units%rate;
+		return seconds*NANOS+(rest*NANOS+rate-1)/rate;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x/y;
+		return (x%y != 0 && (x<0) != (y<0)) ? q-1 : q;
+	}
+
+	/** The RTP timeline of a track of the session. */
+	public final class Track {
+
+		private final long mRate;
+		private final int mOffset;
+
+		private Track(long clockRate, int offset) {
+			if (clockRate<=0) throw new IllegalArgumentException("Invalid clock rate: "+clockRate);
+			mRate = clockRate;
+			mOffset = offset;
+		}
+
+		/** Returns the clock of the session. */
+		public MediaClock getClock() {
+			return MediaClock.this;
+		}
+
+		/** Returns the clock rate of the RTP timestamps in Hz. */
+		public long getClockRate() {
+			return mRate;
+		}
+
+		/**
+		 * Returns the RTP timestamp of a capture time, rounded down to the previous tick.
+		 * @param time A capture time in ns
+		 * @return The RTP timestamp, an unsigned 32 bits integer
+		 */
+		public long getRtpTimestamp(long time) {
+			long elapsed = time-mMonotonicAnchor;
+			long seconds = floorDiv(elapsed, NANOS), rest = elapsed-seconds*NANOS;
+			return (mOffset+seconds*mRate+rest*mRate/NANOS)&0xFFFFFFFFL;
+		}
+
+		/** Returns the NTP timestamp of a capture time, see {@link MediaClock#getNtpTime(long)}. */
+		public long getNtpTime(long time) {
+			return MediaClock.this.getNtpTime(time);
+		}
+
+	}
+
+}
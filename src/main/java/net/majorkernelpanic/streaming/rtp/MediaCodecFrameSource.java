@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+
+/**
+ * Hands the output buffers of a MediaCodec to a packetizer, one access unit at a time.
+ * Each output buffer of the MediaCodec has its {@link EncodedFrame}, created once: a buffer 
+ * goes back to the MediaCodec when its frame is released by the packetizer. 
+ * This class is not thread safe !  
+ */
+@SuppressLint("NewApi")
+public class MediaCodecFrameSource implements EncodedFrameSource {
+
+	public final static String TAG = "MediaCodecFrameSource"; 
+
+	private MediaCodec mMediaCodec = null;
+	private BufferInfo mBufferInfo = new BufferInfo();
+	private ByteBuffer[] mBuffers = null;
+	private EncodedFrame[] mFrames = null;
+	private volatile boolean mClosed = false;
+	private Counter mFrameCount = null, mBytes = null;
+	private FrameTracer mTracer = null;
+	
+	public MediaFormat mMediaFormat;
+
+	public MediaCodecFrameSource(MediaCodec mediaCodec) {
+		mMediaCodec = mediaCodec;
+		updateBuffers();
+	}
+
+	@Override
+	public void setMetrics(MetricsRegistry metrics) {
+		mFrameCount = metrics.counter("encoder.frames");
+		mBytes = metrics.counter("encoder.bytes");
+	}
+
+	@Override
+	public void setFrameTracer(FrameTracer tracer) {
+		mTracer = tracer;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	/** Blocks until the MediaCodec outputs a buffer, or until the source is closed. */
+	@Override
+	public EncodedFrame take() throws IOException {
+		int index;
+		while (!Thread.interrupted() && !mClosed) {
+			index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (index>=0) {
+				if (Logger.TRACE) Logger.v(TAG, "Index: {} Time: {} size: {}", index, mBufferInfo.presentationTimeUs, mBufferInfo.size);
+				if (mFrameCount != null) {
+					mFrameCount.increment();
+					mBytes.add(mBufferInfo.size);
+				}
+				if (mTracer != null) mTracer.onEncoderOutput(System.nanoTime());
+				ByteBuffer buffer = mBuffers[index];
+				buffer.limit(mBufferInfo.offset+mBufferInfo.size).position(mBufferInfo.offset);
+				EncodedFrame frame = mFrames[index];
+				frame.set(buffer, mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs*1000L, flags(mBufferInfo.flags));
+				frame.index = index;
+				return frame;
+			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				updateBuffers();
+			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Logger.i(TAG, "{}", mMediaFormat);
+			} else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Logger.v(TAG, "No buffer available...");
+			} else {
+				Logger.e(TAG, "Message: {}", index);
+			}
+		}
+		throw new IOException("This source was closed");
+	}
+
+	/** Gives the output buffer of the frame back to the MediaCodec. */
+	@Override
+	public void release(EncodedFrame frame) {
+		if (frame.index<0) return;
+		try {
+			mMediaCodec.releaseOutputBuffer(frame.index, false);
+		} catch (IllegalStateException e) {
+			// The MediaCodec was stopped in the meantime
+			Logger.w(TAG, "The output buffer could not be released: {}", e.getMessage()!=null?e.getMessage():"unknown error");
+		}
+		frame.index = -1;
+	}
+
+	/** The frames are created along with the output buffers of the MediaCodec, only when those change. */
+	private void updateBuffers() {
+		mBuffers = mMediaCodec.getOutputBuffers();
+		if (mFrames == null || mFrames.length<mBuffers.length) {
+			EncodedFrame[] frames = new EncodedFrame[mBuffers.length];
+			for (int i=0;i<frames.length;i++) {
+				frames[i] = mFrames != null && i<mFrames.length ? mFrames[i] : new EncodedFrame();
+			}
+			mFrames = frames;
+		}
+	}
+
+	@SuppressLint("InlinedApi")
+	private static int flags(int flags) {
+		return ((flags&MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 ? EncodedFrame.FLAG_KEYFRAME : 0) |
+				((flags&MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 ? EncodedFrame.FLAG_CODEC_CONFIG : 0);
+	}
+
+}
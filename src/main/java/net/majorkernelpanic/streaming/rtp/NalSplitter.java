@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a buffer of H.264 data in NAL units.
+ * 
+ * The framing is detected on every buffer: NAL units are either preceded by start codes 
+ * (Annex-B), as the MediaCodec outputs them, or by their length on 4 bytes, as in the mdat 
+ * box of an MP4 file. Start codes are looked for eight bytes at a time: a word that holds 
+ * no zero byte can't hold the first byte of a start code, and compressed data rarely does.
+ * 
+ * A splitter is reused from one buffer to the next, it does not allocate once its arrays 
+ * are large enough for the number of NAL units of a buffer.
+ */
+public class NalSplitter {
+
+	public final static String TAG = "NalSplitter";
+
+	/** The buffer holds a single NAL unit, without start code nor length. */
+	public final static int FORMAT_RAW = 0;
+
+	/** NAL units are preceded by the start code 0x000001 or 0x00000001. */
+	public final static int FORMAT_ANNEX_B = 1;
+
+	/** NAL units are preceded by their length, on 4 bytes in network byte order. */
+	public final static int FORMAT_LENGTH_PREFIXED = 2;
+
+	private final static long ONES = 0x0101010101010101L;
+	private final static long HIGHS = 0x8080808080808080L;
+
+	// Offsets in the buffer and lengths of the NAL units, start codes and lengths excluded
+	private int[] mOffsets = new int[8], mLengths = new int[8];
+	private int mCount = 0, mFormat = FORMAT_RAW;
+
+	/**
+	 * Locates the NAL units of a part of a buffer. Only absolute gets are used, 
+	 * the part must be below the limit of the buffer, whose position is left untouched.
+	 * @param buffer The buffer that holds the NAL units
+	 * @param offset Offset of the first byte to split
+	 * @param length Number of bytes to split
+	 * @return The number of NAL units found
+	 */
+	public int split(ByteBuffer buffer, int offset, int length) {
+		int end = offset+length;
+		mCount = 0;
+		if (length<=0) {
+			mFormat = FORMAT_RAW;
+		} else if (!isStartCode(buffer, offset, end) && isLengthPrefixed(buffer, offset, end)) {
+			mFormat = FORMAT_LENGTH_PREFIXED;
+			for (int i=offset, n;i<end;i+=4+n) {
+				n = readLength(buffer, i);
+				add(i+4, n);
+			}
+		} else {
+			splitAnnexB(buffer, offset, end);
+		}
+		return mCount;
+	}
+
+	/** The framing of the last buffer split, one of {@link #FORMAT_RAW}, {@link #FORMAT_ANNEX_B} and {@link #FORMAT_LENGTH_PREFIXED}. */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/** Number of NAL units of the last buffer split. */
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Offset of a NAL unit in the buffer, start code or length excluded. */
+	public int getOffset(int nal) {
+		return mOffsets[nal];
+	}
+
+	/** Length of a NAL unit, start code or length excluded. */
+	public int getLength(int nal) {
+		return mLengths[nal];
+	}
+
+	/**
+	 * Returns the index of the first byte of the next start code 0x000001, 
+	 * or -1 if no start code lies entirely between from and end. 
+	 * A four bytes start code is found one byte after its first zero.
+	 */
+	public static int findStartCode(ByteBuffer buffer, int from, int end) {
+		int i = from, b;
+		while (i+2<end) {
+			if ((i = indexOfZero(buffer, i, end-2))<0) return -1;
+			if (buffer.get(i+1) != 0) {
+				i += 2;
+			} else if ((b = buffer.get(i+2)) == 1) {
+				return i;
+			} else {
+				// 0x0000 followed by 0x00 may still be the beginning of a start code
+				i += b == 0 ? 1 : 3;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first zero byte between from and end, or -1. 
+	 * Eight bytes are tested at once with the usual bit trick: subtracting one from each byte 
+	 * of a word only sets the high bit of a byte that was zero, or that already had it set.
+	 */
+	public static int indexOfZero(ByteBuffer buffer, int from, int end) {
+		int i = from;
+		long word;
+		for (;i+8<=end;i+=8) {
+			word = buffer.getLong(i);
+			if (((word-ONES) & ~word & HIGHS) != 0) break;
+		}
+		for (;i<end;i++) {
+			if (buffer.get(i) == 0) return i;
+		}
+		return -1;
+	}
+
+	/** Reads the length of a NAL unit, on 4 bytes in network byte order whatever the order of the buffer. */
+	static int readLength(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset)&0xFF)<<24 | (buffer.get(offset+1)&0xFF)<<16 | (buffer.get(offset+2)&0xFF)<<8 | buffer.get(offset+3)&0xFF;
+	}
+
+	/** 
+	 * Whether the data starts with a start code. Only the four bytes start code is trusted: 0x000001 
+	 * could also be the length of a small NAL unit, and a NAL unit of one byte makes no sense. 
+	 */
+	private static boolean isStartCode(ByteBuffer buffer, int offset, int end) {
+		return end-offset>=4 && buffer.get(offset) == 0 && buffer.get(offset+1) == 0 
+				&& buffer.get(offset+2) == 0 && buffer.get(offset+3) == 1;
+	}
+
+	/** Whether the lengths of the NAL units lead exactly to the end of the data, the forbidden bit of each NAL unit being zero. */
+	private static boolean isLengthPrefixed(ByteBuffer buffer, int offset, int end) {
+		int i = offset, n;
+		while (end-i>=5) {
+			n = readLength(buffer, i);
+			if (n<=0 || n>end-i-4 || (buffer.get(i+4)&0x80) != 0) return false;
+			i += 4+n;
+		}
+		return i == end;
+	}
+
+	private void splitAnnexB(ByteBuffer buffer, int offset, int end) {
+		int start = -1, i = offset, zeros;
+		while ((i = findStartCode(buffer, i, end))>=0) {
+			// The zeros before a start code belong to it
+			zeros = i;
+			while (zeros>(start<0 ? offset : start) && buffer.get(zeros-1) == 0) zeros--;
+			if (start>=0) {
+				add(start, zeros-start);
+			} else if (zeros>offset) {
+				// Nothing precedes the first NAL unit
+				add(offset, zeros-offset);
+			}
+			start = i+3;
+			i = start;
+		}
+		if (start<0) {
+			mFormat = FORMAT_RAW;
+			add(offset, end-offset);
+		} else {
+			mFormat = FORMAT_ANNEX_B;
+			if (start<end) add(start, end-start);
+		}
+	}
+
+	private void add(int offset, int length) {
+		if (mCount == mOffsets.length) {
+			int[] offsets = new int[2*mCount], lengths = new int[2*mCount];
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+			System.arraycopy(mLengths, 0, lengths, 0, mCount);
+			mOffsets = offsets;
+			mLengths = lengths;
+		}
+		mOffsets[mCount] = offset;
+		mLengths[mCount] = length;
+		mCount++;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.log.Logger;
+
+/**
+ * Reads the NAL units of an H.264 stream, as the MediaRecorder writes them in the mdat box 
+ * of an MP4 file: preceded by their length on 4 bytes. NAL units preceded by a start code
+ * are understood as well, the framing is checked at the beginning of every NAL unit.
+ * 
+ * The stream is read in large chunks, and a NAL unit is handed out once it is entirely 
+ * in the buffer of the reader, nothing is copied. When a length makes no sense, the reader 
+ * looks for the next NAL unit in the data it already has, with {@link NalSplitter#indexOfZero}, 
+ * instead of reading the stream again one byte at a time.
+ */
+public class NalStreamReader {
+
+	public final static String TAG = "NalStreamReader";
+
+	/** NAL units longer than this are taken for a sign that the reader is out of sync. */
+	public final static int MAX_NAL_LENGTH = 100000;
+
+	private final static int CAPACITY = 128*1024;
+
+	private final InputStream mInputStream;
+	private final byte[] mArray = new byte[CAPACITY];
+	private final ByteBuffer mBuffer = ByteBuffer.wrap(mArray);
+
+	// The bytes read from the stream that were not handed out yet lie between mPosition and mLimit
+	private int mPosition = 0, mLimit = 0;
+	private int mOffset = 0, mLength = 0;
+	// Whether the last NAL unit was preceded by a start code
+	private boolean mAnnexB = false;
+
+	public NalStreamReader(InputStream is) {
+		mInputStream = is;
+	}
+
+	/**
+	 * Blocks until the next NAL unit has been read. 
+	 * @throws IOException If the stream ends or can't be read
+	 */
+	public void next() throws IOException {
+		int length;
+		// The packetizer changes the limit of the buffer when it copies NAL units 
+		mBuffer.clear();
+		while (true) {
+			require(5);
+			if (mArray[mPosition] == 0 && mArray[mPosition+1] == 0) {
+				// A NAL unit of one byte makes no sense, but 0x000001 could be the length of a small one
+				if (mArray[mPosition+2] == 0 && mArray[mPosition+3] == 1) {
+					if (nextAnnexB(4)) return;
+					continue;
+				} else if (mAnnexB && mArray[mPosition+2] == 1) {
+					if (nextAnnexB(3)) return;
+					continue;
+				}
+			}
+			length = NalSplitter.readLength(mBuffer, mPosition);
+			if (length>0 && length<=MAX_NAL_LENGTH) {
+				require(4+length);
+				mOffset = mPosition+4;
+				mLength = length;
+				mPosition = mOffset+length;
+				mAnnexB = false;
+				return;
+			}
+			resync(length);
+		}
+	}
+
+	/** The buffer that holds the last NAL unit read. */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/** Offset of the last NAL unit read in the buffer, its header included. */
+	public int getOffset() {
+		return mOffset;
+	}
+
+	/** Length of the last NAL unit read, its header included. */
+	public int getLength() {
+		return mLength;
+	}
+
+	/** 
+	 * Reads a NAL unit preceded by a start code: it ends where the next start code begins.
+	 * @param code The length of the start code, 3 or 4 bytes
+	 * @return False if the NAL unit was empty, or too long and skipped
+	 */
+	private boolean nextAnnexB(int code) throws IOException {
+		int scanned = code, end;
+		mAnnexB = true;
+		while ((end = NalSplitter.findStartCode(mBuffer, mPosition+scanned, mLimit))<0) {
+			if (mLimit-mPosition>=MAX_NAL_LENGTH+code) {
+				Logger.e(TAG, "NAL unit longer than {} bytes found, skipped", MAX_NAL_LENGTH);
+				mPosition = mLimit-3;
+				mAnnexB = false;
+				return false;
+			}
+			// A start code may be cut by the end of the data read so far
+			scanned = Math.max(code, mLimit-mPosition-2);
+			require(mLimit-mPosition+1);
+		}
+		mOffset = mPosition+code;
+		// The next NAL unit starts with the zero that precedes the start code if any, 
+		// the other zeros before it end the current NAL unit and are dropped
+		mPosition = end>mOffset && mArray[end-1] == 0 ? end-1 : end;
+		while (end>mOffset && mArray[end-1] == 0) end--;
+		mLength = end-mOffset;
+		return mLength>0;
+	}
+
+	/** 
+	 * Looks for something that looks like the beginning of a NAL unit: a length that makes sense 
+	 * followed by the header of a slice, or a four bytes start code. 
+	 */
+	private void resync(int length) throws IOException {
+		int i, type, n;
+
+		Logger.e(TAG, "Out of sync ! Let's try to fix that...(NAL length: {})", length);
+
+		i = mPosition+1;
+		while (true) {
+			// A length shorter than MAX_NAL_LENGTH starts with a zero, so does a start code
+			while ((i = NalSplitter.indexOfZero(mBuffer, i, mLimit-4))>=0) {
+				if (mArray[i+1] == 0 && mArray[i+2] == 0 && mArray[i+3] == 1) {
+					mPosition = i;
+					Logger.e(TAG, "A start code may have been found in the bit stream !");
+					return;
+				}
+				type = mArray[i+4]&0x1F;
+				if ((mArray[i+4]&0x80) == 0 && (type == 5 || type == 1)) {
+					n = NalSplitter.readLength(mBuffer, i);
+					if (n>0 && n<=MAX_NAL_LENGTH) {
+						mPosition = i;
+						Logger.e(TAG, "A NAL unit may have been found in the bit stream !");
+						return;
+					}
+				}
+				i++;
+			}
+			// Nothing in what was read, the last four bytes may still be the beginning of a NAL unit
+			mPosition = mLimit-4;
+			require(5);
+			i = mPosition;
+		}
+	}
+
+	/** Reads the stream until at least length bytes are available after the position. */
+	private void require(int length) throws IOException {
+		int len;
+		if (mPosition+length>CAPACITY) {
+			// Moves what is left to the beginning of the buffer
+			System.arraycopy(mArray, mPosition, mArray, 0, mLimit-mPosition);
+			mLimit -= mPosition;
+			mPosition = 0;
+		}
+		while (mLimit-mPosition<length) {
+			len = mInputStream.read(mArray, mLimit, CAPACITY-mLimit);
+			if (len<0) throw new IOException("End of stream");
+			mLimit += len;
+		}
+	}
+
+}
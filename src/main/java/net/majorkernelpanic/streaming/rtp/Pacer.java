@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket that paces the packets sent by the thread of an {@link RtpSocket}.
+ *
+ * The pacer knows where frames begin (the packet that follows a packet with the marker bit set)
+ * and spreads the packets of each frame over a fraction of the frame interval, so that a large
+ * frame such as an IDR does not leave the device in a single burst. Frames are never sent slower
+ * than the target rate. The bucket lets a few packets go back to back without waiting.
+ *
+ * Apart from its setters and getters, this class is meant to be used by the sender thread only.
+ */
+public class Pacer {
+
+	public final static String TAG = "Pacer";
+
+	/** Below that, waiting is not worth parking the thread (ns). */
+	private final static long MIN_WAIT = 50000;
+
+	private volatile float mSpread = 0.5f;
+	private volatile long mTargetRate = 0;
+	private volatile long mBucketSize = 4*RtpSocket.MTU;
+
+	private long mInterval = 0, mLastTimestamp = 0;
+	private long mRate = 0;
+	private long mTokens, mLastRefill;
+	private int mBurst = 0;
+
+	private volatile long mWaits = 0, mWaitTime = 0;
+	private volatile int mLastBurst = 0, mMaxBurst = 0;
+
+	public Pacer() {
+		reset();
+	}
+
+	/**
+	 * Sets the fraction of the frame interval over which the packets of a frame are spread.
+	 * @param spread Between 0 (no pacing) and 1 (packets spread over the whole frame interval), 0.5 by default
+	 */
+	public void setFrameSpread(float spread) {
+		if (spread<0 || spread>1) throw new IllegalArgumentException("The spread must be between 0 and 1");
+		mSpread = spread;
+	}
+
+	/**
+	 * Sets the rate below which packets are never sent, in bits per second.
+	 * With the default value of 0, the rate only depends on the size of frames.
+	 */
+	public void setTargetRate(long bitrate) {
+		mTargetRate = bitrate/8;
+	}
+
+	/** Sets how many bytes can be sent back to back without waiting, 4 packets by default. */
+	public void setBurstSize(int bytes) {
+		mBucketSize = bytes;
+	}
+
+	/** Forgets everything about the stream, the counters are cleared. */
+	public void reset() {
+		mInterval = mLastTimestamp = mRate = 0;
+		mTokens = mBucketSize;
+		mLastRefill = System.nanoTime();
+		mBurst = 0;
+		mWaits = mWaitTime = 0;
+		mLastBurst = mMaxBurst = 0;
+	}
+
+	/**
+	 * Called when the first packet of a frame is about to be sent.
+	 * @param timestamp The timestamp of the frame in ns
+	 * @param length The size of the frame in bytes, or at least of the part of the frame already available
+	 */
+	public void startFrame(long timestamp, int length) {
+		long interval = timestamp-mLastTimestamp;
+		if (mLastTimestamp != 0 && interval>0 && interval<1000000000L) {
+			mInterval = mInterval == 0 ? interval : (7*mInterval+interval)/8;
+		}
+		mLastTimestamp = timestamp;
+		long duration = (long) (mSpread*mInterval);
+		mRate = Math.max(mTargetRate, duration>0 ? length*1000000000L/duration : 0);
+	}
+
+	/**
+	 * Takes a packet out of the bucket.
+	 * @param length The size of the packet in bytes
+	 * @return How long the packet should wait before being sent (ns), see {@link #pause(long)}
+	 */
+	public long schedule(int length) {
+		long now = System.nanoTime(), elapsed = now-mLastRefill;
+		mLastRefill = now;
+		if (mRate == 0) {
+			// Nothing is known about the stream yet
+			mTokens = mBucketSize;
+			mBurst++;
+			return 0;
+		}
+		mTokens = Math.min(mBucketSize, mTokens+elapsed*mRate/1000000000L);
+		mTokens -= length;
+		if (mTokens>=0) {
+			mBurst++;
+			return 0;
+		}
+		long wait = -mTokens*1000000000L/mRate;
+		if (wait<MIN_WAIT) {
+			mBurst++;
+			return 0;
+		}
+		mLastBurst = mBurst;
+		if (mBurst>mMaxBurst) mMaxBurst = mBurst;
+		mBurst = 1;
+		return wait;
+	}
+
+	/** Parks the calling thread for the given time, see {@link #schedule(int)}. */
+	public void pause(long wait) throws InterruptedException {
+		long start = System.nanoTime(), deadline = start+wait, now = start;
+		while (deadline-now>0) {
+			LockSupport.parkNanos(this, deadline-now);
+			if (Thread.interrupted()) throw new InterruptedException();
+			now = System.nanoTime();
+		}
+		mWaits++;
+		mWaitTime += now-start;
+	}
+
+	/** Returns the current send rate in bits per second, 0 while the pacer is not pacing. */
+	public long getRate() {
+		return mRate*8;
+	}
+
+	/** Returns the average time a packet was held back by the pacer, when it was held back (ns). */
+	public long getPacingDelay() {
+		long waits = mWaits;
+		return waits>0 ? mWaitTime/waits : 0;
+	}
+
+	/** Returns the number of times the pacer held a packet back. */
+	public long getWaits() {
+		return mWaits;
+	}
+
+	/** Returns the number of packets sent back to back before the pacer last held a packet back. */
+	public int getLastBurstSize() {
+		return mLastBurst;
+	}
+
+	/** Returns the highest number of packets sent back to back. */
+	public int getMaxBurstSize() {
+		return mMaxBurst;
+	}
+
+}
@@ -23,9 +23,15 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Meter;
+import net.majorkernelpanic.streaming.metrics.Metric;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -34,6 +40,14 @@ import android.util.Log;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free {@link SpscFifo}: the packetizer thread is its only producer
+ * and the Thread of the socket its only consumer.
+ * A packetizer can stage all the packets of an access unit with {@link #stageBuffer(int)} and 
+ * hand them over at once with {@link #commitBuffers()}, the Thread then sends them back to back.
+ * Packets are either written in byte arrays and sent with a {@link MulticastSocket}, or,
+ * with {@link #setDirectTransport(boolean)}, written in direct ByteBuffers and sent with
+ * a {@link DatagramChannel} without being copied again.
+ * Every packet is sent to each {@link Destination} of the socket, so that one encoder can serve several receivers.
  */
 public class RtpSocket implements Runnable {
 
@@ -45,30 +59,71 @@ public class RtpSocket implements Runnable {
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = 0x01;	
 	
+	/** Packets are sent as soon as the socket gets them. */
+	public final static int GATE_NONE = 0x00;
+
+	/** Packets are skipped until the packetizer hands over a sync point, see {@link #markSyncPoint()}. */
+	public final static int GATE_KEYFRAME = 0x01;
+
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	/** The sender thread stops if no packet is committed during that time (ns). */
+	private static final long FIFO_TIMEOUT = 4000000000L;
+
+	/** The start gate opens anyway if no sync point was found after that long (ms). */
+	private static final long GATE_TIMEOUT = 5000;
+
+	/** Default bounds of the number of packets the FIFO can hold. */
+	public static final int MIN_BUFFER_COUNT = 16;
+	public static final int MAX_BUFFER_COUNT = 512;
+
+	/** The FIFO should be able to hold that many ms of the stream. */
+	private static final long FIFO_DURATION = 250;
+
+	/** The capacity of the FIFO is reconsidered at most that often (ms). */
+	private static final long FIFO_ADJUST_INTERVAL = 1000;
+
 	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
-	private byte[][] mBuffers;
-	private long[] mTimestamps;
+	private DatagramChannel mChannel;
+	private SpscFifo<Slot> mFifo;
+	private Slot mSlot;
 
-	private SenderReport mReport;
+	private HeaderExtensions mExtensions = null;
+	private volatile FecEncoder mFec = null;
+	private volatile RtxSender mRtx = null;
+	private volatile RtcpReceiver.Callback mRtcpCallback = null;
+	private volatile BandwidthEstimator mEstimator = null;
+	private SrtpContext mSrtp = null;
+	private long mQueueDelay = 0, mSentBytes = 0, mLastEstimate = 0;
+	private long mKeyframeTimestamp = -1;
+	private Destination mPrimary;
+	private volatile Destination[] mDestinations = new Destination[0];
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
 	private Thread mThread;
 
-	private int mTransport;
+	private boolean mDirect = false;
 	private long mCacheSize;
 	private long mClock = 0;
+	private MediaClock mMediaClock = new MediaClock();
+	private volatile MediaClock.Track mTrack = null;
 	private long mOldTimestamp = 0;
-	private int mSsrc, mSeq = 0, mPort = -1;
-	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
-	private byte mTcpHeader[];
-	protected OutputStream mOutputStream = null;
+	private int mSsrc, mSeq = 0;
+	private volatile int mGeneration = 0;
+	private long mLastAdjustment = 0;
+	private volatile int mGate = GATE_NONE;
+	private boolean mGateOpen = false;
+	private volatile long mFirstPacketTime = 0, mFirstFrameTime = 0;
+	private volatile int mSkipped = 0;
 	
-	private AverageBitrate mAverageBitrate;
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private final Meter mStaged = new Meter(FIFO_ADJUST_INTERVAL);
+	private final Counter mPacketsSent = mMetrics.counter("packets.sent");
+	private final Counter mBytesSent = mMetrics.counter("bytes.sent");
+	private int mDestinationIds = 0;
+	private Pacer mPacer;
+	private FrameTracer mTracer = null;
+	private long mTraceStart = 0;
 
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
@@ -77,38 +132,18 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
-		mReport = new SenderReport();
-		mAverageBitrate = new AverageBitrate();
-		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
-		
-		resetFifo();
-
-		for (int i=0; i<mBufferCount; i++) {
-
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
-
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
-
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
+		mPrimary = new Destination();
+		mPacer = new Pacer();
 
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		mFifo = new SpscFifo<Slot>(new SpscFifo.Factory<Slot>() {
+			@Override
+			public Slot create() {
+				return new Slot();
+			}
+		}, MIN_BUFFER_COUNT, MAX_BUFFER_COUNT);
 
-		}
+		resetFifo();
+		registerMetrics();
 
 		try {
 		mSocket = new MulticastSocket();
@@ -119,28 +154,190 @@ public class RtpSocket implements Runnable {
 	}
 
 	private void resetFifo() {
-		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
-		mReport.reset();
-		mAverageBitrate.reset();
+		mGateOpen = false;
+		mSkipped = 0;
+		mFirstPacketTime = mFirstFrameTime = 0;
+		mFifo.reset();
+		for (Destination destination : mDestinations) {
+			destination.reset();
+		}
+		mPacer.reset();
+		mKeyframeTimestamp = -1;
+		mQueueDelay = mSentBytes = mLastEstimate = 0;
+		if (mEstimator != null) mEstimator.reset();
+		if (mFec != null) mFec.reset();
+		if (mRtx != null) mRtx.reset();
 	}
 	
 	/** Closes the underlying socket. */
 	public void close() {
 		mSocket.close();
+		for (Destination destination : mDestinations) {
+			destination.close();
+		}
+		mPrimary.close();
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Switches between the two ways packets can be sent over UDP.
+	 * 
+	 * By default, packets are written in byte arrays and sent with a {@link MulticastSocket}, 
+	 * which copies each one of them in native memory. When enabled, the FIFO is backed by 
+	 * a pool of direct ByteBuffers obtained with {@link #requestByteBuffer()}, and packets are 
+	 * handed to the kernel by a {@link DatagramChannel} with no intermediate copy.
+	 * {@link #requestBuffer()} can still be used in that mode, but those packets will be copied.
+	 * 
+	 * The channel is meant for unicast destinations: {@link #setTimeToLive(int)} only applies to 
+	 * the default transport. This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param direct True to use direct ByteBuffers and a DatagramChannel
+	 * @throws IOException If the DatagramChannel could not be opened
+	 */
+	public void setDirectTransport(boolean direct) throws IOException {
+		if (direct == mDirect) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		if (direct && mChannel == null) {
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(null);
+		}
+		mDirect = direct;
+		mGeneration++;
+	}
+
+	/**
+	 * Adds RTP header extensions to the packets, they are stamped by the Thread of the socket
+	 * right before each packet is sent. This changes the length of the RTP header, see {@link #getHeaderLength()}.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param extensions The extensions, or null to remove them
+	 */
+	public void setHeaderExtensions(HeaderExtensions extensions) {
+		if (extensions == mExtensions) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mExtensions = extensions;
+		mGeneration++;
+	}
+
+	/** Returns the header extensions of the packets, null if there are none. */
+	public HeaderExtensions getHeaderExtensions() {
+		return mExtensions;
+	}
+
+	/**
+	 * Protects the packets of the stream with ULPFEC, see {@link FecEncoder}. FEC packets are sent
+	 * to the destinations that do not rewrite the SSRC and the sequence numbers of the stream.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param fec The FEC encoder, or null to disable FEC
+	 */
+	public void setFecEncoder(FecEncoder fec) {
+		if (fec == mFec) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mFec = fec;
+	}
+
+	/** Returns the FEC encoder of the socket, null if FEC is disabled. */
+	public FecEncoder getFecEncoder() {
+		return mFec;
+	}
+
+	/**
+	 * Traces the access units of the stream from the packetizer to the network, see {@link FrameTracer}.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param tracer The tracer, or null to stop tracing
+	 */
+	public void setFrameTracer(FrameTracer tracer) {
+		if (tracer == mTracer) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mTracer = tracer;
+		mTraceStart = 0;
+	}
+
+	/** Returns the tracer of the socket, null if tracing is disabled. */
+	public FrameTracer getFrameTracer() {
+		return mTracer;
+	}
+
+	/**
+	 * Keeps the packets recently sent so that they can be retransmitted when receivers 
+	 * report them lost, see {@link RtxSender}.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param rtx The RTX sender, or null to disable retransmissions
+	 */
+	public void setRtxSender(RtxSender rtx) {
+		if (rtx == mRtx) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		if (rtx != null) rtx.attach(this);
+		mRtx = rtx;
+	}
+
+	/** Returns the RTX sender of the socket, null if retransmissions are disabled. */
+	public RtxSender getRtxSender() {
+		return mRtx;
+	}
+
+	/**
+	 * Estimates the bitrate the network can take, from the time packets wait in the FIFO
+	 * and from the RTCP feedback of the destinations, see {@link BandwidthEstimator}.
+	 * @param estimator The estimator, or null to disable it
+	 */
+	public void setBandwidthEstimator(BandwidthEstimator estimator) {
+		mEstimator = estimator;
+	}
+
+	/** Returns the bandwidth estimator of the socket, null if there is none. */
+	public BandwidthEstimator getBandwidthEstimator() {
+		return mEstimator;
+	}
+
+	/** Returns how long packets recently waited in the FIFO before being sent, in ms. */
+	public long getQueueDelay() {
+		return mQueueDelay/1000000;
+	}
+
+	/**
+	 * Encrypts and authenticates the packets of the stream, the FEC packets, the retransmissions
+	 * and the RTCP packets of every destination with SRTP, see {@link SrtpContext}.
+	 * Destinations that rewrite the SSRC and the sequence numbers of the stream are not
+	 * served while SRTP is enabled, their packets would need their own keystream.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 * @param srtp The SRTP context, or null to send plain RTP packets
+	 */
+	public synchronized void setSrtp(SrtpContext srtp) {
+		if (srtp == mSrtp) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mSrtp = srtp;
+		mPrimary.getSenderReport().setSrtp(srtp);
+		for (Destination destination : mDestinations) {
+			destination.getSenderReport().setSrtp(srtp);
+		}
+	}
+
+	/** Returns the SRTP context of the socket, null if packets are not protected. */
+	public SrtpContext getSrtp() {
+		return mSrtp;
+	}
+
+	/** Returns the length of the RTP header of the packets, header extensions included. */
+	public int getHeaderLength() {
+		return RTP_HEADER_LENGTH + (mExtensions != null ? mExtensions.getLength() : 0);
+	}
+
+	/** Indicates whether direct ByteBuffers and a DatagramChannel are used, see {@link #setDirectTransport(boolean)}. */
+	public boolean isDirectTransport() {
+		return mDirect;
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+		mGeneration++;
+		mPrimary.setStreamSSRC(ssrc);
+		for (Destination destination : mDestinations) {
+			destination.setStreamSSRC(ssrc);
 		}
-		mReport.setSSRC(mSsrc);
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -149,8 +346,57 @@ public class RtpSocket implements Runnable {
 	}
 
 	/** Sets the clock frequency of the stream in Hz. */
-	public void setClockFrequency(long clock) {
+	public synchronized void setClockFrequency(long clock) {
 		mClock = clock;
+		updateTrack();
+	}
+
+	/** Returns the clock frequency of the stream in Hz. */
+	public long getClockFrequency() {
+		return mClock;
+	}
+
+	/**
+	 * Sets the clock that maps the capture times given to {@link #updateTimestamp(long)} to RTP
+	 * timestamps, and to NTP timestamps in the sender reports. The tracks of a session share
+	 * one clock so that receivers can synchronize them. Each socket has its own clock by default.
+	 * This can only be called while the socket is not sending anything, unless the value does not change.
+	 */
+	public synchronized void setMediaClock(MediaClock clock) {
+		if (clock == mMediaClock) return;
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		mMediaClock = clock;
+		updateTrack();
+	}
+
+	/** Returns the clock of the socket, see {@link #setMediaClock(MediaClock)}. */
+	public MediaClock getMediaClock() {
+		return mMediaClock;
+	}
+
+	/** Returns the RTP timeline of the stream, null until the clock frequency is set. */
+	public MediaClock.Track getTrack() {
+		return mTrack;
+	}
+
+	/** The clock or its frequency changed, the sender reports follow the new timeline. */
+	private void updateTrack() {
+		mTrack = mClock>0 ? mMediaClock.createTrack(mClock) : null;
+		mPrimary.getSenderReport().setTrack(mTrack);
+		for (Destination destination : mDestinations) {
+			destination.getSenderReport().setTrack(mTrack);
+		}
+	}
+
+	/**
+	 * Sets the bounds of the number of packets the FIFO can hold.
+	 * Within those bounds, the FIFO grows when it is full and shrinks when it is mostly
+	 * unused, according to the bitrate of the stream and the occupancy of the FIFO.
+	 * Bounds are rounded up to powers of two, defaults are {@link #MIN_BUFFER_COUNT} 
+	 * and {@link #MAX_BUFFER_COUNT}.
+	 */
+	public void setBufferBounds(int min, int max) {
+		mFifo.setCapacityBounds(min, max);
 	}
 
 	/** Sets the size of the FIFO in ms. */
@@ -158,21 +404,65 @@ public class RtpSocket implements Runnable {
 		mCacheSize = cacheSize;
 	}
 	
+	/** 
+	 * Returns the pacer used by the Thread of the socket, use it to tune how the packets 
+	 * of a frame are spread over time and to read the pacing delay and burst size.
+	 */
+	public Pacer getPacer() {
+		return mPacer;
+	}
+
+	/**
+	 * Decides when the socket starts sending packets to its destinations.
+	 * With {@link #GATE_KEYFRAME}, packets are skipped until a sync point (for instance the parameter 
+	 * sets and IDR of an H.264 stream) reaches the socket, so that receivers can decode the very first 
+	 * frame they get. Packetizers that flag sync points set this for their socket.
+	 * @param gate Either {@link #GATE_NONE} or {@link #GATE_KEYFRAME}
+	 */
+	public void setStartGate(int gate) {
+		mGate = gate;
+	}
+
+	/** Returns the start gate of the socket, see {@link #setStartGate(int)}. */
+	public int getStartGate() {
+		return mGate;
+	}
+
+	/** Returns the number of packets skipped by the start gate. */
+	public int getSkippedPackets() {
+		return mSkipped;
+	}
+
+	/** 
+	 * Returns the time in ms between the first packet handed over to the socket
+	 * and the first packet sent by it, or -1 if nothing was sent yet.
+	 */
+	public long getTimeToFirstFrame() {
+		long first = mFirstFrameTime;
+		return first>0 ? first-mFirstPacketTime : -1;
+	}
+
+	/** 
+	 * Returns the time ({@link SystemClock#elapsedRealtime()}) at which the start gate opened, 
+	 * or 0 if nothing was sent yet.
+	 */
+	public long getFirstFrameTime() {
+		return mFirstFrameTime;
+	}
+
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
 		mSocket.setTimeToLive(ttl);
 	}
 
-	/** Sets the destination address and to which the packets will be sent. */
+	/** 
+	 * Sets the destination address and to which the packets will be sent.
+	 * This is the primary destination of the socket, others can be added with {@link #addDestination(Destination)}.
+	 */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
-			mTransport = TRANSPORT_UDP;
-			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
-			mReport.setDestination(dest, rtcpPort);
+			mPrimary.setDestination(dest, dport, rtcpPort);
+			addDestination(mPrimary);
 		}
 	}
 	
@@ -180,27 +470,98 @@ public class RtpSocket implements Runnable {
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
 	 * be specified with this method.
+	 * This is the primary destination of the socket, others can be added with {@link #addDestination(Destination)}.
 	 */ 
 	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
-			mTransport = TRANSPORT_TCP;
-			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
-			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+			mPrimary.setOutputStream(outputStream, channelIdentifier);
+			addDestination(mPrimary);
 		}
 	}
 
+	/**
+	 * Adds a receiver of the stream, every packet will also be sent to it.
+	 * This can be called while the socket is streaming, the packetizer won't be stopped.
+	 */
+	public synchronized void addDestination(Destination destination) {
+		for (Destination d : mDestinations) {
+			if (d == destination) return;
+		}
+		if (!destination.isRewriting()) destination.setStreamSSRC(mSsrc);
+		destination.getReceiver().setCallback(new Feedback(destination));
+		destination.getSenderReport().setSrtp(mSrtp);
+		destination.getSenderReport().setTrack(mTrack);
+		Destination[] destinations = new Destination[mDestinations.length+1];
+		System.arraycopy(mDestinations, 0, destinations, 0, mDestinations.length);
+		destinations[mDestinations.length] = destination;
+		mDestinations = destinations;
+		mMetrics.addChild("destination"+(mDestinationIds++), destination.getMetrics());
+	}
+
+	/**
+	 * Stops sending packets to a receiver of the stream.
+	 * This can be called while the socket is streaming, the packetizer won't be stopped.
+	 */
+	public synchronized void removeDestination(Destination destination) {
+		int index = -1, n = mDestinations.length;
+		for (int i=0;i<n;i++) {
+			if (mDestinations[i] == destination) index = i;
+		}
+		// Not a destination of this socket, it is left alone
+		if (index<0) return;
+		Destination[] destinations = new Destination[n-1];
+		System.arraycopy(mDestinations, 0, destinations, 0, index);
+		System.arraycopy(mDestinations, index+1, destinations, index, n-index-1);
+		mDestinations = destinations;
+		mMetrics.removeChild(destination.getMetrics());
+		if (destination != mPrimary) destination.close();
+	}
+
+	/**
+	 * Sets the callback told about the RTCP feedback of every destination of the socket.
+	 * Generic NACKs are served by the {@link RtxSender} of the socket, if there is one, before the callback is called.
+	 */
+	public void setRtcpCallback(RtcpReceiver.Callback callback) {
+		mRtcpCallback = callback;
+	}
+
+	/** Sends an RTCP BYE to every destination, their reports start again with the next packet. */
+	public void sendBye() {
+		for (Destination destination : mDestinations) {
+			destination.getSenderReport().sendBye();
+		}
+	}
+
+	/** Returns the receivers of the stream, the primary destination comes first if it is set. */
+	public Destination[] getDestinations() {
+		return mDestinations.clone();
+	}
+
+	/** Returns the destination set with {@link #setDestination(InetAddress, int, int)} or {@link #setOutputStream(OutputStream, byte)}. */
+	public Destination getPrimaryDestination() {
+		return mPrimary;
+	}
+
 	public int getPort() {
-		return mPort;
+		return mPrimary.getPort();
 	}
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
-			mReport.getLocalPort()
+			mDirect ? mChannel.socket().getLocalPort() : mSocket.getLocalPort(),
+			mPrimary.getSenderReport().getLocalPort()
 		};
 		
 	}
+
+	/** 
+	 * Returns the FIFO shared by the packetizer and the sender thread.
+	 * Use it to read the queue depth, its peak occupancy, how many times it was resized 
+	 * and the time both threads spent waiting for each other.
+	 */
+	public SpscFifo<?> getFifo() {
+		return mFifo;
+	}
 	
 	/** 
 	 * Returns an available buffer from the FIFO, it can then be modified. 
@@ -208,239 +569,537 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
-		return mBuffers[mBufferIn];
+		mSlot = mFifo.claim();
+		if (mSlot.generation != mGeneration) configure(mSlot);
+		mSlot.view = mSlot.heap;
+		mSlot.view.clear();
+		mSlot.sync = mSlot.droppable = false;
+		mSlot.buffer[1] &= 0x7F;
+		if (mTracer != null && mTraceStart == 0) mTraceStart = System.nanoTime();
+		return mSlot.buffer;
 	}
 
-	/** Puts the buffer back into the FIFO without sending the packet. */
+	/** 
+	 * Returns an available buffer from the FIFO, it can then be modified with absolute
+	 * or relative puts, its position and limit are ignored when the packet is sent.
+	 * The buffer is direct if {@link #setDirectTransport(boolean)} was called.
+	 * Call {@link #commitBuffer(int)} to send it over the network. 
+	 * @throws InterruptedException 
+	 **/
+	public ByteBuffer requestByteBuffer() throws InterruptedException {
+		mSlot = mFifo.claim();
+		if (mSlot.generation != mGeneration) configure(mSlot);
+		mSlot.view = mDirect ? mSlot.direct : mSlot.heap;
+		mSlot.view.clear();
+		mSlot.sync = mSlot.droppable = false;
+		mSlot.view.put(1, (byte) (mSlot.view.get(1)&0x7F));
+		if (mTracer != null && mTraceStart == 0) mTraceStart = System.nanoTime();
+		return mSlot.view;
+	}
+
+	/** 
+	 * Puts the buffer back into the FIFO without sending the packet. 
+	 * The next call to {@link #requestBuffer()} will return the same buffer.
+	 */
 	public void commitBuffer() throws IOException {
 
 		if (mThread == null) {
+			mFirstPacketTime = SystemClock.elapsedRealtime();
 			mThread = new Thread(this);
 			mThread.start();
 		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
+		stageBuffer(length);
+		commitBuffers();
+	}
+
+	/** 
+	 * Adds the RTP packet to the current batch without sending it yet.
+	 * Call {@link #commitBuffers()} once all the packets of the access unit have been staged.
+	 */
+	public void stageBuffer(int length) throws IOException {
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		mSlot.length = length;
+		mSlot.queued = System.nanoTime();
+
+		mStaged.mark(length);
+
+		if (mTracer != null) {
+			mSlot.trace = mTracer.onPacket(mSlot.view.getInt(4)&0xFFFFFFFFL, mTraceStart, mSlot.queued);
+			mTraceStart = 0;
+		}
 
-		mAverageBitrate.push(length);
+		mFifo.commit();
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		if ((mSeq&0x1F) == 0) adjustFifo();
 
 		if (mThread == null) {
+			mFirstPacketTime = SystemClock.elapsedRealtime();
 			mThread = new Thread(this);
 			mThread.start();
 		}		
 		
 	}
 
+	/** Sends all the RTP packets staged with {@link #stageBuffer(int)} over the network. */
+	public void commitBuffers() {
+		if (mTracer != null) mTracer.onEnqueue(System.nanoTime());
+		mFifo.publish();
+	}
+
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
 	public long getBitrate() {
-		return mAverageBitrate.average();
+		return mStaged.get()*8;
+	}
+
+	/**
+	 * Returns the metrics of the stream: packets and bytes sent, packets skipped by the start gate, 
+	 * depth and capacity of the FIFO, time the packetizer spent blocked on a full FIFO, queue delay,
+	 * bitrate, what the encoder outputs, and the metrics of each destination under "destinationN".
+	 * Recording them costs next to nothing, read them with {@link MetricsRegistry#snapshot()}.
+	 */
+	public MetricsRegistry getMetrics() {
+		return mMetrics;
+	}
+
+	/** Values that the socket already keeps are read when a snapshot is taken. */
+	private void registerMetrics() {
+		mMetrics.register("packets.skipped", new Metric() {
+			@Override
+			public long get() {
+				return mSkipped;
+			}
+		});
+		mMetrics.register("fifo.depth", new Metric() {
+			@Override
+			public long get() {
+				return mFifo.size();
+			}
+		});
+		mMetrics.register("fifo.capacity", new Metric() {
+			@Override
+			public long get() {
+				return mFifo.capacity();
+			}
+		});
+		mMetrics.register("packetizer.blocked.ns", new Metric() {
+			@Override
+			public long get() {
+				return mFifo.getProducerWaitTime();
+			}
+		});
+		mMetrics.register("queue.delay.ms", new Metric() {
+			@Override
+			public long get() {
+				return getQueueDelay();
+			}
+		});
+		mMetrics.register("bitrate", new Metric() {
+			@Override
+			public long get() {
+				return getBitrate();
+			}
+		});
+	}
+
+	/** 
+	 * Applies the SSRC, the header extensions and the transport of the socket to a slot. 
+	 * Slots are updated lazily by the packetizer, so that slots created when the FIFO grows
+	 * and slots used while those settings change are treated the same way.
+	 */
+	private void configure(Slot slot) {
+		int generation = mGeneration;
+		if (mDirect && slot.direct == null) {
+			slot.setDirectBuffer(ByteBuffer.allocateDirect(MTU));
+		}
+		slot.setSSRC(mSsrc);
+		slot.setExtensions(mExtensions);
+		slot.generation = generation;
+	}
+
+	/** 
+	 * Resizes the FIFO so that it can hold {@link #FIFO_DURATION} ms of the stream and
+	 * twice its recent peak occupancy. It grows right away, but only shrinks by half
+	 * when it stayed mostly empty for a whole interval.
+	 */
+	private void adjustFifo() {
+		long now = SystemClock.elapsedRealtime();
+		mStaged.tick(now);
+		if (now-mLastAdjustment<FIFO_ADJUST_INTERVAL) return;
+		mLastAdjustment = now;
+		int capacity = mFifo.capacity(), peak = mFifo.pollPeakSize();
+		int target = (int) Math.max(2*peak, getBitrate()/8*FIFO_DURATION/1000/MTU);
+		if (target>capacity || capacity<mFifo.getMinCapacity()) {
+			mFifo.requestCapacity(target);
+		} else if (4*target<=capacity && capacity>mFifo.getMinCapacity()) {
+			mFifo.requestCapacity(capacity/2);
+		} else if (capacity>mFifo.getMaxCapacity()) {
+			mFifo.requestCapacity(mFifo.getMaxCapacity());
+		} else {
+			return;
+		}
+		if (Logger.isLoggable(Log.DEBUG)) {
+			Logger.d(TAG, "FIFO capacity: "+capacity+" peak: "+peak+" growths: "+mFifo.getGrowths()+" shrinks: "+mFifo.getShrinks());
+		}
 	}
 
 	/** Increments the sequence number. */
 	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+		mSlot.view.putShort(2, (short) ++mSeq);
 	}
 
 	/** 
 	 * Overwrites the timestamp in the packet.
-	 * @param timestamp The new timestamp in ns.
+	 * @param timestamp The capture time of the packet in ns, on the timeline of the {@link MediaClock} of the socket
 	 **/
 	public void updateTimestamp(long timestamp) {
-		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		mSlot.timestamp = timestamp;
+		mSlot.view.putInt(4, (int) getRtpTimestamp(timestamp));
+	}
+
+	private long getRtpTimestamp(long timestamp) {
+		MediaClock.Track track = mTrack;
+		return track != null ? track.getRtpTimestamp(timestamp) : 0;
 	}
 
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
-		mBuffers[mBufferIn][1] |= 0x80;
+		mSlot.view.put(1, (byte) (mSlot.view.get(1)|0x80));
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/** 
+	 * Flags the RTP packet as a sync point: a receiver that starts with this packet 
+	 * will be able to decode the stream. See {@link #setStartGate(int)}.
+	 */
+	public void markSyncPoint() {
+		mSlot.sync = true;
+	}
+
+	/** 
+	 * Flags the RTP packet as droppable: nothing else in the stream depends on it. 
+	 * Such packets are the first to go when a TCP connection does not keep up, see {@link InterleavedWriter}.
+	 */
+	public void markDroppable() {
+		mSlot.droppable = true;
+	}
+
+	/** 
+	 * The Thread sends the packets in the FIFO, paced by a {@link Pacer}.
+	 * Each time it wakes up, it drains all the packets committed so far.
+	 */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
+		Slot slot;
+		int count;
+		boolean frameStart = true;
+		FecEncoder fec = mFec;
+		RtxSender rtx = mRtx;
+		SrtpContext srtp = mSrtp;
+		FrameTracer tracer = mTracer;
+		HeaderExtensions extensions = mExtensions;
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
+			while ((count = mFifo.await(FIFO_TIMEOUT))>0) {
+				while (count-->0) {
+					slot = mFifo.peek();
+					if (slot.timestamp-mOldTimestamp<0 && mOldTimestamp != 0) {
+						Logger.e(TAG, "TS: {} OLD: {}", slot.timestamp, mOldTimestamp);
 					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
+					if (!mGateOpen) openGate(slot);
+					if (mGateOpen) {
+						if (frameStart) {
+							mPacer.startFrame(slot.timestamp, frameLength(count+1));
+						}
+						long wait = mPacer.schedule(slot.length);
+						if (wait>0) {
+							// What was queued so far goes out before the thread waits
+							flushTCP();
+							mPacer.pause(wait);
+						}
+						// The extensions are stamped once, the FEC encoder protects the values the destinations receive
+						if (extensions != null) extensions.stamp(slot.view, System.nanoTime(), extensions.nextSequence());
+						// The history and the FEC encoder need the packet before it is encrypted
+						if (rtx != null) rtx.store(slot.view, slot.length, System.nanoTime());
+						boolean repair = fec != null && addToFec(fec, slot);
+						send(slot, srtp);
+						if (tracer != null) tracer.onSent(slot.trace, System.nanoTime());
+						estimate(slot);
+						if (repair) sendFec(fec, srtp);
 					} else {
-						sendTCP();
+						mSkipped++;
 					}
+					frameStart = (slot.view.get(1)&0x80) != 0;
+					mOldTimestamp = slot.timestamp;
+					mFifo.release();
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				// The packets of the batch are written with a single call when TCP is used
+				flushTCP();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		mThread = null;
 		resetFifo();
+		mThread = null;
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
-			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+	/** Opens the start gate if the packet is a sync point, or if the gate is disabled. */
+	private void openGate(Slot slot) {
+		long now = SystemClock.elapsedRealtime();
+		if (mGate == GATE_KEYFRAME && !slot.sync) {
+			if (now-mFirstPacketTime<GATE_TIMEOUT) return;
+			Logger.w(TAG, "No sync point after {} ms, the stream starts anyway.", GATE_TIMEOUT);
 		}
+		mGateOpen = true;
+		mFirstFrameTime = now;
+		Logger.d(TAG, "First frame sent after {} ms, {} packets skipped.", now-mFirstPacketTime, mSkipped);
 	}
 
-	private void setLong(byte[] buffer, long n, int begin, int end) {
-		for (end--; end >= begin; end--) {
-			buffer[end] = (byte) (n % 256);
-			n >>= 8;
+	/** Returns the size of the frame that begins with the oldest packet, counting only the packets published. */
+	private int frameLength(int count) {
+		int length = 0;
+		for (int i=0;i<count;i++) {
+			Slot slot = mFifo.peek(i);
+			length += slot.length;
+			if ((slot.view.get(1)&0x80) != 0) break;
 		}
+		return length;
 	}
 
 	/** 
-	 * Computes an average bit rate. 
-	 **/
-	protected static class AverageBitrate {
-
-		private final static long RESOLUTION = 200;
-		
-		private long mOldNow, mNow, mDelta;
-		private long[] mElapsed, mSum;
-		private int mCount, mIndex, mTotal;
-		private int mSize;
-		
-		public AverageBitrate() {
-			mSize = 5000/((int)RESOLUTION);
-			reset();
+	 * Sends the packet to every destination. The header of the packet is patched for
+	 * the destinations that rewrite the SSRC and the sequence numbers.
+	 * With SRTP, the payload is encrypted once and the tag is computed for each destination.
+	 * The header extensions were stamped before, all the destinations get the same values.
+	 */
+	private void send(Slot slot, SrtpContext srtp) {
+		Destination[] destinations = mDestinations;
+		ByteBuffer view = slot.view;
+		long rtpts = getRtpTimestamp(slot.timestamp);
+		short seq = view.getShort(2);
+		int ssrc = view.getInt(8);
+		boolean patched = false;
+		int length = slot.length;
+		if (srtp != null) srtp.encrypt(view, slot.length);
+		for (Destination destination : destinations) {
+			if (srtp != null && destination.isRewriting()) {
+				continue;
+			} else if (destination.isRewriting()) {
+				view.putShort(2, destination.nextSequence());
+				view.putInt(8, destination.getSSRC());
+				patched = true;
+			} else if (patched) {
+				view.putShort(2, seq);
+				view.putInt(8, ssrc);
+				patched = false;
+			}
+			if (srtp != null) length = srtp.authenticate(view, slot.length);
+			try {
+				if (destination.getTransport() == TRANSPORT_UDP) {
+					sendUDP(slot, destination, length);
+				} else if (!destination.queue(slot, length)) {
+					continue;
+				}
+				destination.sent(length, rtpts);
+			} catch (IOException e) {
+				destination.failed();
+			}
 		}
-		
-		public AverageBitrate(int delay) {
-			mSize = delay/((int)RESOLUTION);
-			reset();
+		mPacketsSent.increment();
+		mBytesSent.add(slot.length);
+		if (patched) {
+			// The slot will be reused with the SSRC of the stream
+			view.putShort(2, seq);
+			view.putInt(8, ssrc);
 		}
-		
-		public void reset() {
-			mSum = new long[mSize];
-			mElapsed = new long[mSize];
-			mNow = SystemClock.elapsedRealtime();
-			mOldNow = mNow;
-			mCount = 0;
-			mDelta = 0;
-			mTotal = 0;
-			mIndex = 0;
+	}
+
+	/** Measures how long the packet waited in the FIFO, and feeds the bandwidth estimator. */
+	private void estimate(Slot slot) {
+		// Moving average over about 16 packets, in ns
+		mQueueDelay += (System.nanoTime()-slot.queued-mQueueDelay)/16;
+		mSentBytes += slot.length;
+		BandwidthEstimator estimator = mEstimator;
+		if (estimator == null) return;
+		long now = SystemClock.elapsedRealtime();
+		if (now-mLastEstimate>=BandwidthEstimator.UPDATE_INTERVAL) {
+			mLastEstimate = now;
+			estimator.update(now, mQueueDelay/1000000, mSentBytes);
 		}
-		
-		public void push(int length) {
-			mNow = SystemClock.elapsedRealtime();
-			if (mCount>0) {
-				mDelta += mNow - mOldNow;
-				mTotal += length;
-				if (mDelta>RESOLUTION) {
-					mSum[mIndex] = mTotal;
-					mTotal = 0;
-					mElapsed[mIndex] = mDelta;
-					mDelta = 0;
-					mIndex++;
-					if (mIndex>=mSize) mIndex = 0;
-				}
+	}
+
+	/** 
+	 * Hands the packet about to be sent to the FEC encoder.
+	 * @return True if the packet completes a group, the FEC packet should then be sent with {@link #sendFec(FecEncoder, SrtpContext)}
+	 */
+	private boolean addToFec(FecEncoder fec, Slot slot) {
+		// All the packets of a keyframe share the timestamp of its sync point
+		if (slot.sync) mKeyframeTimestamp = slot.timestamp;
+		return fec.add(slot.view, slot.length, slot.timestamp == mKeyframeTimestamp);
+	}
+
+	/** Sends the FEC packet that completes the group of the last packet sent. */
+	private void sendFec(FecEncoder fec, SrtpContext srtp) {
+		byte[] buffer = fec.getBuffer();
+		int length = fec.getLength();
+		if (srtp != null) length = srtp.protect(fec.getView(), length);
+		for (Destination destination : mDestinations) {
+			if (destination.isRewriting()) continue;
+			try {
+				// FEC packets are the first ones to go if the client does not keep up
+				sendPacket(destination, buffer, fec.getView(), length, destination.getDatagramPacket(buffer, length), true);
+			} catch (IOException e) {
+				destination.failed();
 			}
-			mOldNow = mNow;
-			mCount++;
 		}
-		
-		public int average() {
-			long delta = 0, sum = 0;
-			for (int i=0;i<mSize;i++) {
-				sum += mSum[i];
-				delta += mElapsed[i];
+	}
+
+	private void sendUDP(Slot slot, Destination destination, int length) throws IOException {
+		if (mDirect) {
+			// Direct buffers are handed to the kernel as is
+			slot.view.limit(length).position(0);
+			mChannel.send(slot.view, destination.getSocketAddress());
+		} else {
+			mSocket.send(destination.getDatagramPacket(slot.buffer, length));
+		}
+	}
+
+	/** 
+	 * Sends a packet that is not in the FIFO, a FEC packet or a retransmission.
+	 * @param view The packet wrapped in a ByteBuffer, used by the DatagramChannel
+	 * @param packet The datagram packet used by the MulticastSocket, already addressed to the destination
+	 */
+	void sendPacket(Destination destination, byte[] buffer, ByteBuffer view, int length, DatagramPacket packet, boolean droppable) throws IOException {
+		if (destination.getTransport() == TRANSPORT_UDP) {
+			if (mDirect) {
+				view.limit(length).position(0);
+				mChannel.send(view, destination.getSocketAddress());
+			} else {
+				packet.setData(buffer, 0, length);
+				mSocket.send(packet);
 			}
-			//Log.d(TAG, "Time elapsed: "+delta);
-			return (int) (delta>0?8000*sum/delta:0);
+		} else {
+			destination.queue(buffer, length, droppable);
 		}
-		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
 
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
+	/** Writes the packets queued for the destinations that use TCP. */
+	private void flushTCP() {
+		for (Destination destination : mDestinations) {
+			if (destination.getTransport() == TRANSPORT_TCP) destination.flush();
 		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
+	}
+
+	/** Handles the RTCP feedback of a destination and passes it on to the callback of the socket. */
+	private class Feedback implements RtcpReceiver.Callback {
+
+		private final Destination mDestination;
+
+		public Feedback(Destination destination) {
+			mDestination = destination;
+		}
+
+		@Override
+		public void onReceiverReport(ReceiverStats receiver) {
+			BandwidthEstimator estimator = mEstimator;
+			if (estimator != null) estimator.onReceiverReport(SystemClock.elapsedRealtime(), receiver.getFractionLost());
+			RtcpReceiver.Callback callback = mRtcpCallback;
+			if (callback != null) callback.onReceiverReport(receiver);
+		}
+
+		@Override
+		public void onNack(ReceiverStats receiver, int pid, int blp) {
+			RtxSender rtx = mRtx;
+			if (rtx != null && !mDestination.isRewriting()) rtx.retransmit(mDestination, pid, blp);
+			RtcpReceiver.Callback callback = mRtcpCallback;
+			if (callback != null) callback.onNack(receiver, pid, blp);
+		}
+
+		@Override
+		public void onKeyframeRequest(ReceiverStats receiver) {
+			RtcpReceiver.Callback callback = mRtcpCallback;
+			if (callback != null) callback.onKeyframeRequest(receiver);
+		}
+
+		@Override
+		public void onEstimatedBitrate(ReceiverStats receiver, long bitrate) {
+			BandwidthEstimator estimator = mEstimator;
+			if (estimator != null) estimator.onEstimatedBitrate(SystemClock.elapsedRealtime(), bitrate);
+			RtcpReceiver.Callback callback = mRtcpCallback;
+			if (callback != null) callback.onEstimatedBitrate(receiver, bitrate);
+		}
+
+		@Override
+		public void onBye(ReceiverStats receiver) {
+			RtcpReceiver.Callback callback = mRtcpCallback;
+			if (callback != null) callback.onBye(receiver);
+		}
+
+	}
+
+	/** 
+	 * A slot of the FIFO: an RTP packet and what the sender thread needs to know to send it.
+	 * The packet is written either in the byte array or in the direct buffer of the slot, 
+	 * view points to the one in use.
+	 */
+	protected static class Slot {
+
+		final byte[] buffer = new byte[MTU];
+		final ByteBuffer heap = ByteBuffer.wrap(buffer);
+		ByteBuffer direct = null;
+		ByteBuffer view = heap;
+		int length;
+		long timestamp, queued, trace;
+		boolean sync, droppable;
+		int generation = -1;
+
+		Slot() {
+			writeHeader(heap);
+		}
+
+		void setDirectBuffer(ByteBuffer buffer) {
+			direct = buffer;
+			view = heap;
+			writeHeader(direct);
+		}
+
+		void setSSRC(int ssrc) {
+			heap.putInt(8, ssrc);
+			if (direct != null) direct.putInt(8, ssrc);
+		}
+
+		void setExtensions(HeaderExtensions extensions) {
+			if (extensions != null) {
+				extensions.write(heap);
+				if (direct != null) extensions.write(direct);
 			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
+				heap.put(0, (byte) (heap.get(0)&~0x10));
+				if (direct != null) direct.put(0, (byte) (direct.get(0)&~0x10));
 			}
 		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
+
+		private static void writeHeader(ByteBuffer buffer) {
+
+			/*							     Version(2)  Padding(0)					 					*/
+			/*									 ^		  ^			Extension(0)						*/
+			/*									 |		  |				^								*/
+			/*									 | --------				|								*/
+			/*									 | |---------------------								*/
+			/*									 | ||  -----------------------> Source Identifier(0)	*/
+			/*									 | ||  |												*/
+			buffer.put(0, (byte) Integer.parseInt("10000000",2));
+
+			/* Payload Type */
+			buffer.put(1, (byte) 96);
+
+			/* Byte 2,3        ->  Sequence Number                   */
+			/* Byte 4,5,6,7    ->  Timestamp                         */
+			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+
 		}
 
 	}
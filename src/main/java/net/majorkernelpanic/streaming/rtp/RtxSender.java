@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * RFC 4588.
+ *
+ * Keeps the packets recently sent by an {@link RtpSocket} and retransmits them when a receiver
+ * reports them lost with a Generic NACK. Retransmissions are sent on an RTX stream, with their
+ * own SSRC and payload type, and carry the original sequence number in front of the payload.
+ *
+ * The history is a ring of preallocated buffers indexed by sequence number, filled by the Thread of
+ * the socket. Packets older than {@link #setHistoryDuration(long)} are not retransmitted, and
+ * retransmissions can be capped with {@link #setMaxBitrate(long)}.
+ */
+public class RtxSender {
+
+	public final static String TAG = "RtxSender";
+
+	/** Default payload type of retransmissions. */
+	public final static int DEFAULT_PAYLOAD_TYPE = 126;
+
+	/** Default number of packets kept in the history. */
+	public final static int DEFAULT_CAPACITY = 512;
+
+	private final static int H = RtpSocket.RTP_HEADER_LENGTH;
+
+	// The history, written by the Thread of the socket
+	private final byte[][] mPackets;
+	private final int[] mLengths, mSequences;
+	private final long[] mTimes;
+	private final int mMask;
+
+	// The retransmission being sent
+	private final byte[] mBuffer = new byte[RtpSocket.MTU+2+SrtpContext.TAG_LENGTH];
+	private final ByteBuffer mView = ByteBuffer.wrap(mBuffer);
+	private final DatagramPacket mPacket = new DatagramPacket(mBuffer, 1);
+	private final Object mOutputLock = new Object();
+
+	private RtpSocket mSocket;
+	private int mPayloadType = DEFAULT_PAYLOAD_TYPE, mAssociatedPayloadType = 96;
+	private int mSsrc, mSeq;
+	private long mDuration = 1000;
+	private long mMaxBitrate = 0, mTokens = 0, mLastRefill = 0;
+
+	private volatile long mRequested = 0, mServed = 0, mExpired = 0, mThrottled = 0;
+
+	/** Creates an RTX sender that keeps the last {@link #DEFAULT_CAPACITY} packets. */
+	public RtxSender() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an RTX sender.
+	 * @param capacity The maximum number of packets kept in the history, rounded up to a power of two
+	 */
+	public RtxSender(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity, 2)-1)<<1;
+		mPackets = new byte[n][RtpSocket.MTU];
+		mLengths = new int[n];
+		mSequences = new int[n];
+		mTimes = new long[n];
+		mMask = n-1;
+		Random random = new Random();
+		mSsrc = random.nextInt();
+		mSeq = random.nextInt();
+		reset();
+	}
+
+	/** Sets the payload type of retransmissions, {@link #DEFAULT_PAYLOAD_TYPE} by default. */
+	public void setPayloadType(int payloadType) {
+		mPayloadType = payloadType;
+	}
+
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
+	/** Sets the payload type of the stream that is retransmitted, 96 by default. */
+	public void setAssociatedPayloadType(int payloadType) {
+		mAssociatedPayloadType = payloadType;
+	}
+
+	/** Sets the SSRC of the RTX stream, a random one is used by default. */
+	public void setSSRC(int ssrc) {
+		mSsrc = ssrc;
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Packets older than that are not retransmitted (ms), 1000 by default. */
+	public synchronized void setHistoryDuration(long duration) {
+		mDuration = duration;
+	}
+
+	public synchronized long getHistoryDuration() {
+		return mDuration;
+	}
+
+	/** Caps the bitrate of retransmissions in bit per second, 0 means no limit (the default). */
+	public void setMaxBitrate(long bitrate) {
+		synchronized (mOutputLock) {
+			mMaxBitrate = bitrate;
+			mTokens = bitrate/80;
+			mLastRefill = System.nanoTime();
+		}
+	}
+
+	/** Returns the rtpmap and fmtp attributes of the RTX stream. */
+	public String getSessionDescription(long clock) {
+		return "a=rtpmap:"+mPayloadType+" rtx/"+clock+"\r\n" +
+				"a=fmtp:"+mPayloadType+" apt="+mAssociatedPayloadType+";rtx-time="+getHistoryDuration()+"\r\n";
+	}
+
+	/** Returns the number of packets receivers asked for. */
+	public long getRequested() {
+		return mRequested;
+	}
+
+	/** Returns the number of packets retransmitted. */
+	public long getServed() {
+		return mServed;
+	}
+
+	/** Returns the number of packets that were not retransmitted because they were no longer in the history. */
+	public long getExpired() {
+		return mExpired;
+	}
+
+	/** Returns the number of packets that were not retransmitted because of the bitrate cap. */
+	public long getThrottled() {
+		return mThrottled;
+	}
+
+	/** Empties the history and clears the counters. */
+	public synchronized void reset() {
+		for (int i=0;i<mSequences.length;i++) mSequences[i] = -1;
+		mRequested = mServed = mExpired = mThrottled = 0;
+	}
+
+	/**
+	 * Retransmits the packets reported lost by a Generic NACK (RFC 4585, section 6.2.1).
+	 * @param destination The receiver that sent the NACK, or null to send the retransmissions to every
+	 * destination of the socket that does not rewrite the SSRC and sequence numbers of the stream
+	 * @param pid The sequence number of the first packet lost
+	 * @param blp A bitmask of the 16 packets lost after it
+	 * @return The number of packets retransmitted
+	 */
+	public int retransmit(Destination destination, int pid, int blp) {
+		int served = 0;
+		for (int i=0;i<=16;i++) {
+			if (i == 0 || (blp&(1<<(i-1))) != 0) {
+				if (retransmit(destination, (pid+i)&0xFFFF)) served++;
+			}
+		}
+		return served;
+	}
+
+	/**
+	 * Retransmits one packet.
+	 * @param destination The receiver of the retransmission, or null for every destination of the socket
+	 * @param seq The sequence number of the packet
+	 * @return False if the packet was no longer in the history, or if the bitrate cap was reached
+	 */
+	public boolean retransmit(Destination destination, int seq) {
+		mRequested++;
+		RtpSocket socket = mSocket;
+		if (socket == null) return false;
+		synchronized (mOutputLock) {
+			int length = copy(seq);
+			if (length<0) {
+				mExpired++;
+				return false;
+			}
+			if (!consume(length)) {
+				mThrottled++;
+				return false;
+			}
+			// A retransmission is a new packet for congestion control, it gets its own send time and transport-wide sequence number
+			HeaderExtensions extensions = socket.getHeaderExtensions();
+			if (extensions != null && (mBuffer[0]&0x10) != 0) extensions.stamp(mView, System.nanoTime(), extensions.nextSequence());
+			SrtpContext srtp = socket.getSrtp();
+			if (srtp != null) length = srtp.protect(mView, length);
+			if (destination != null) {
+				send(socket, destination, length);
+			} else {
+				for (Destination d : socket.getDestinations()) send(socket, d, length);
+			}
+			mServed++;
+			return true;
+		}
+	}
+
+	/** Called when the sender is given to a socket. */
+	void attach(RtpSocket socket) {
+		mSocket = socket;
+	}
+
+	/** Adds a packet that was just sent to the history, called by the Thread of the socket. */
+	synchronized void store(ByteBuffer packet, int length, long now) {
+		int seq = packet.getShort(2)&0xFFFF;
+		int i = seq&mMask;
+		packet.limit(length).position(0);
+		packet.get(mPackets[i], 0, length);
+		mLengths[i] = length;
+		mSequences[i] = seq;
+		mTimes[i] = now;
+	}
+
+	/**
+	 * Writes the retransmission of a packet in the output buffer.
+	 * @return The length of the retransmission, or -1 if the packet is not in the history
+	 */
+	private synchronized int copy(int seq) {
+		int i = seq&mMask;
+		if (mSequences[i] != seq || (System.nanoTime()-mTimes[i])/1000000>mDuration) return -1;
+		byte[] packet = mPackets[i];
+		int length = mLengths[i];
+
+		// The CSRC list and the header extension are kept, the OSN goes right after them
+		int header = H+(packet[0]&0x0F)*4;
+		if ((packet[0]&0x10) != 0) {
+			header += 4+((packet[header+2]&0xFF)<<8 | (packet[header+3]&0xFF))*4;
+		}
+		System.arraycopy(packet, 0, mBuffer, 0, header);
+		mBuffer[1] = (byte) ((packet[1]&0x80) | mPayloadType);
+		mSeq++;
+		mBuffer[2] = (byte) (mSeq>>8);
+		mBuffer[3] = (byte) mSeq;
+		mView.putInt(8, mSsrc);
+		mBuffer[header] = packet[2];
+		mBuffer[header+1] = packet[3];
+		System.arraycopy(packet, header, mBuffer, header+2, length-header);
+		return length+2;
+	}
+
+	/** Token bucket of the bitrate cap, one tenth of a second of retransmissions can go out at once. */
+	private boolean consume(int length) {
+		if (mMaxBitrate<=0) return true;
+		long now = System.nanoTime();
+		mTokens = Math.min(mMaxBitrate/80, mTokens+Math.min(now-mLastRefill, 1000000000L)*mMaxBitrate/8000000000L);
+		mLastRefill = now;
+		if (mTokens<length) return false;
+		mTokens -= length;
+		return true;
+	}
+
+	private void send(RtpSocket socket, Destination destination, int length) {
+		if (destination.isRewriting()) return;
+		try {
+			if (destination.getTransport() == RtpSocket.TRANSPORT_UDP) {
+				mPacket.setSocketAddress(destination.getSocketAddress());
+			}
+			socket.sendPacket(destination, mBuffer, mView, length, mPacket, false);
+		} catch (IOException e) {
+			destination.failed();
+		}
+	}
+
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free FIFO of pre-allocated slots shared by exactly one producer thread
+ * and one consumer thread.
+ *
+ * The producer {@link #claim()}s the next free slot, fills it and {@link #commit()}s it.
+ * Committed slots are handed over to the consumer all at once by {@link #publish()}, so that
+ * a whole batch of packets costs a single wake-up of the consumer. The consumer
+ * {@link #await(long)}s for published slots, reads them with {@link #peek()} and gives them
+ * back with {@link #release()}. Slots are never copied, only their ownership moves from one
+ * thread to the other.
+ *
+ * A thread that has to wait first spins for a little while, and then parks itself.
+ * The other thread unparks it as soon as it makes progress.
+ *
+ * The slots live in a ring whose capacity is a power of two. To resize the FIFO, the producer
+ * creates a new ring, links it after the current one and goes on in the new ring right away.
+ * The consumer moves on to the new ring once it has drained the old one, so neither thread
+ * ever waits for a resize. The new ring reuses the slots of the old one, only the slots a
+ * larger ring needs on top of them are created. A full FIFO grows on its own up to its maximum capacity, and
+ * {@link #requestCapacity(int)} lets the producer resize it according to its own policy.
+ */
+public class SpscFifo<E> {
+
+	public final static String TAG = "SpscFifo";
+
+	/** Number of times a waiting thread busy-spins before yielding. */
+	private final static int SPINS = 100;
+
+	/** Number of times a waiting thread yields before parking. */
+	private final static int YIELDS = 10;
+
+	/**
+	 * A parked thread re-checks the state of the FIFO at least this often.
+	 * Indexes are written with a full barrier before the other thread is unparked
+	 * so no wake-up should ever be lost, this is just a safety net.
+	 */
+	private final static long PARK_NANOS = 100000000L;
+
+	/** The capacity of the FIFO can't be set above that. */
+	private final static int MAX_CAPACITY = 1<<16;
+
+	/**
+	 * The two indexes are stored 16 longs (128 bytes) apart in an {@link AtomicLongArray}
+	 * so that the producer and the consumer never write to the same cache line.
+	 */
+	private final static int PAD = 16;
+	private final static int HEAD = PAD;
+	private final static int TAIL = 2*PAD;
+
+	/** Creates the slots of the FIFO when it is resized. */
+	public interface Factory<E> {
+		E create();
+	}
+
+	/**
+	 * A ring of slots and its two indexes. Once the producer has linked the next ring,
+	 * it won't publish anything else in this one.
+	 */
+	private static class Ring<E> {
+
+		final Object[] slots;
+		final int mask;
+		final AtomicLongArray indexes = new AtomicLongArray(3*PAD);
+		volatile Ring<E> next = null;
+
+		/**
+		 * Producer side. The slots from index borrowed to the end of the ring were still held by 
+		 * the consumer in the previous ring when this one was created, they are given back in 
+		 * order from index previousHead of the previous ring. Null once they were all reused.
+		 */
+		Ring<E> previous = null;
+		int borrowed;
+		long previousHead;
+
+		Ring(int capacity) {
+			slots = new Object[capacity];
+			mask = capacity-1;
+		}
+
+		@SuppressWarnings("unchecked")
+		E get(long index) {
+			return (E) slots[(int)(index&mask)];
+		}
+
+	}
+
+	private final Factory<E> mFactory;
+	private volatile int mMinCapacity, mMaxCapacity;
+	private volatile int mCapacity;
+
+	/** 
+	 * 128 bytes. The fields of each side are put between two of them, superclass fields come first,
+	 * so that the producer and the consumer never write to the same cache line.
+	 */
+	private static class Padding {
+		long p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+	}
+
+	/** The fields only the producer uses. */
+	private static class ProducerFields<E> extends Padding {
+		Ring<E> ring;
+		long cachedHead = 0, index = 0;
+		boolean claimed = false;
+		int requestedCapacity = 0, peakSize = 0;
+	}
+
+	private final static class Producer<E> extends ProducerFields<E> {
+		long q00, q01, q02, q03, q04, q05, q06, q07, q08, q09, q10, q11, q12, q13, q14, q15;
+	}
+
+	/** The fields only the consumer uses. */
+	private static class ConsumerFields<E> extends Padding {
+		Ring<E> ring;
+		long cachedTail = 0, index = 0;
+	}
+
+	private final static class Consumer<E> extends ConsumerFields<E> {
+		long q00, q01, q02, q03, q04, q05, q06, q07, q08, q09, q10, q11, q12, q13, q14, q15;
+	}
+
+	// Producer side
+	private final Producer<E> mProducer = new Producer<E>();
+	private volatile Thread mParkedProducer = null;
+	private volatile long mProducerWaits = 0, mProducerWaitTime = 0;
+	private volatile int mMaxSize = 0, mGrowths = 0, mShrinks = 0;
+
+	// Consumer side
+	private final Consumer<E> mConsumer = new Consumer<E>();
+	private volatile Thread mParkedConsumer = null;
+	private volatile long mConsumerWaits = 0, mConsumerWaitTime = 0;
+
+	/**
+	 * Creates a FIFO whose capacity can vary between the given bounds,
+	 * the bounds are rounded up to powers of two.
+	 * @param factory Creates the slots of the FIFO
+	 * @param minCapacity The initial and minimal number of slots of the FIFO
+	 * @param maxCapacity The maximal number of slots of the FIFO
+	 */
+	public SpscFifo(Factory<E> factory, int minCapacity, int maxCapacity) {
+		mFactory = factory;
+		setCapacityBounds(minCapacity, maxCapacity);
+		mCapacity = mMinCapacity;
+		Ring<E> ring = new Ring<E>(mCapacity);
+		for (int i=0;i<mCapacity;i++) {
+			ring.slots[i] = factory.create();
+		}
+		mProducer.ring = mConsumer.ring = ring;
+	}
+
+	/**
+	 * Sets the bounds of the capacity of the FIFO, they are rounded up to powers of two.
+	 * The current capacity of the FIFO is only brought back within the bounds at the next
+	 * call to {@link #requestCapacity(int)}.
+	 */
+	public void setCapacityBounds(int minCapacity, int maxCapacity) {
+		if (minCapacity<1 || minCapacity>maxCapacity || maxCapacity>MAX_CAPACITY) {
+			throw new IllegalArgumentException("Invalid capacity bounds: "+minCapacity+", "+maxCapacity);
+		}
+		mMinCapacity = roundUp(minCapacity);
+		mMaxCapacity = roundUp(maxCapacity);
+	}
+
+	/** Returns the number of slots of the ring the producer currently writes to. */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/** Returns the minimal capacity of the FIFO. */
+	public int getMinCapacity() {
+		return mMinCapacity;
+	}
+
+	/** Returns the maximal capacity of the FIFO. */
+	public int getMaxCapacity() {
+		return mMaxCapacity;
+	}
+
+	/**
+	 * Returns the number of slots published but not yet released.
+	 * It is only an approximation while the FIFO is being resized.
+	 */
+	public int size() {
+		Ring<E> consumer = mConsumer.ring, producer = mProducer.ring;
+		long size = consumer.indexes.get(TAIL) - consumer.indexes.get(HEAD);
+		if (producer != consumer) size += producer.indexes.get(TAIL);
+		return (int) size;
+	}
+
+	/** Returns the highest number of slots that were in the FIFO at the same time. */
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Producer side. Returns the highest number of slots that were in the FIFO
+	 * at the same time since the last call to this method.
+	 */
+	public int pollPeakSize() {
+		int peak = mProducer.peakSize;
+		mProducer.peakSize = 0;
+		return peak;
+	}
+
+	/** Returns the number of times the FIFO grew. */
+	public int getGrowths() {
+		return mGrowths;
+	}
+
+	/** Returns the number of times the FIFO shrank. */
+	public int getShrinks() {
+		return mShrinks;
+	}
+
+	/** Returns the number of times the producer had to wait for a free slot. */
+	public long getProducerWaits() {
+		return mProducerWaits;
+	}
+
+	/** Returns the total time in ns the producer spent waiting for a free slot. */
+	public long getProducerWaitTime() {
+		return mProducerWaitTime;
+	}
+
+	/** Returns the number of times the consumer had to wait for a published slot. */
+	public long getConsumerWaits() {
+		return mConsumerWaits;
+	}
+
+	/** Returns the total time in ns the consumer spent waiting for a published slot. */
+	public long getConsumerWaitTime() {
+		return mConsumerWaitTime;
+	}
+
+	/**
+	 * Empties the FIFO and clears its counters, the FIFO keeps its current capacity.
+	 * Neither the producer nor the consumer may be using the FIFO when this is called.
+	 */
+	public void reset() {
+		Ring<E> ring = mProducer.ring;
+		ring.indexes.set(HEAD, 0);
+		ring.indexes.set(TAIL, 0);
+		ring.next = ring.previous = null;
+		mConsumer.ring = ring;
+		mProducer.cachedHead = mConsumer.cachedTail = mProducer.index = mConsumer.index = 0;
+		mProducer.claimed = false;
+		mProducer.requestedCapacity = mProducer.peakSize = 0;
+		mProducerWaits = mProducerWaitTime = 0;
+		mConsumerWaits = mConsumerWaitTime = 0;
+		mMaxSize = mGrowths = mShrinks = 0;
+	}
+
+	/**
+	 * Producer side. Asks for the FIFO to be resized, the capacity is rounded up to a power
+	 * of two and kept within the bounds of the FIFO. The FIFO is resized at the next call to
+	 * {@link #claim()} that does not return an already claimed slot.
+	 */
+	public void requestCapacity(int capacity) {
+		capacity = roundUp(Math.max(1, Math.min(capacity, MAX_CAPACITY)));
+		mProducer.requestedCapacity = Math.max(mMinCapacity, Math.min(capacity, mMaxCapacity));
+	}
+
+	/**
+	 * Producer side. Returns the next free slot. If the FIFO is full, it grows if it can,
+	 * and waits for the consumer otherwise.
+	 * Calling this method twice without calling {@link #commit()} returns the same slot.
+	 * @throws InterruptedException If the producer thread is interrupted while waiting
+	 */
+	public E claim() throws InterruptedException {
+		if (!mProducer.claimed) {
+			mProducer.claimed = true;
+			if (mProducer.requestedCapacity != 0) {
+				if (mProducer.requestedCapacity != mCapacity) resize(mProducer.requestedCapacity);
+				mProducer.requestedCapacity = 0;
+			}
+		}
+		Ring<E> ring = mProducer.ring;
+		long index = mProducer.index;
+		if (index-mProducer.cachedHead > ring.mask) {
+			mProducer.cachedHead = ring.indexes.get(HEAD);
+			if (index-mProducer.cachedHead > ring.mask) {
+				if (mCapacity < mMaxCapacity) {
+					resize(2*mCapacity);
+					return mProducer.ring.get(0);
+				}
+				// The consumer can only free slots that were published
+				publish();
+				mProducer.cachedHead = waitForSlot(ring, index);
+			}
+		}
+		if (ring.previous != null && index>=ring.borrowed) waitForBorrowedSlot(ring, index);
+		return ring.get(index);
+	}
+
+	/**
+	 * Producer side. Adds the slot returned by {@link #claim()} to the current batch.
+	 * The consumer won't see it until {@link #publish()} is called.
+	 */
+	public void commit() {
+		mProducer.index++;
+		mProducer.claimed = false;
+	}
+
+	/** Producer side. Hands all the slots committed so far over to the consumer. */
+	public void publish() {
+		Ring<E> ring = mProducer.ring;
+		long tail = mProducer.index;
+		if (tail == ring.indexes.get(TAIL)) return;
+		ring.indexes.set(TAIL, tail);
+		int size = (int) (tail-mProducer.cachedHead);
+		if (size>mProducer.peakSize) mProducer.peakSize = size;
+		if (size>mMaxSize) mMaxSize = size;
+		Thread consumer = mParkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Consumer side. Waits until at least one slot has been published.
+	 * @param timeout Maximum time to wait in ns
+	 * @return The number of published slots, 0 if none were published before the timeout expired
+	 * @throws InterruptedException If the consumer thread is interrupted while waiting
+	 */
+	public int await(long timeout) throws InterruptedException {
+		int count = available();
+		return count>0 ? count : waitForPublication(timeout);
+	}
+
+	/** Consumer side. Returns the oldest published slot, call {@link #await(long)} first. */
+	public E peek() {
+		return mConsumer.ring.get(mConsumer.index);
+	}
+
+	/**
+	 * Consumer side. Returns a published slot without releasing the slots before it.
+	 * @param offset Between 0 (same as {@link #peek()}) and the value returned by {@link #await(long)} minus one
+	 */
+	public E peek(int offset) {
+		return mConsumer.ring.get(mConsumer.index+offset);
+	}
+
+	/** Consumer side. Gives the slot returned by {@link #peek()} back to the producer. */
+	public void release() {
+		mConsumer.ring.indexes.set(HEAD, ++mConsumer.index);
+		Thread producer = mParkedProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	/**
+	 * Producer side. Publishes what was committed in the current ring and
+	 * goes on in a new ring, the consumer will follow once it has drained the old one.
+	 * The slots the consumer released come first in the new ring, then the new slots if it
+	 * grows, and last the slots the consumer still holds, in the order it gives them back.
+	 */
+	private void resize(int capacity) {
+		Ring<E> ring = mProducer.ring, next = new Ring<E>(capacity);
+		publish();
+		long tail = mProducer.index, head = ring.indexes.get(HEAD);
+		int n = 0;
+		for (long i=tail;i-head<=ring.mask && n<capacity;i++) {
+			// Slots of the ring that are still borrowed are not free yet
+			if (ring.previous != null && i>=ring.borrowed && i<=ring.mask) break;
+			next.slots[n++] = ring.get(i);
+		}
+		int held = (int) Math.min(tail-head, capacity-n);
+		while (n<capacity-held) {
+			next.slots[n++] = mFactory.create();
+		}
+		if (held>0) {
+			next.previous = ring;
+			next.borrowed = n;
+			next.previousHead = head;
+			for (long i=head;n<capacity;i++) {
+				next.slots[n++] = ring.get(i);
+			}
+		}
+		if (capacity>mCapacity) mGrowths++; else mShrinks++;
+		mProducer.ring = next;
+		mProducer.index = mProducer.cachedHead = 0;
+		mCapacity = capacity;
+		ring.next = next;
+	}
+
+	/**
+	 * Consumer side. Returns the number of slots published in the current ring,
+	 * moves on to the next ring if the current one is drained.
+	 */
+	private int available() {
+		Ring<E> ring = mConsumer.ring;
+		if (mConsumer.cachedTail-mConsumer.index > 0) return (int) (mConsumer.cachedTail-mConsumer.index);
+		mConsumer.cachedTail = ring.indexes.get(TAIL);
+		while (mConsumer.cachedTail-mConsumer.index <= 0) {
+			Ring<E> next = ring.next;
+			if (next == null) return 0;
+			// Nothing is published in a ring after the next one is linked, we check one last time
+			mConsumer.cachedTail = ring.indexes.get(TAIL);
+			if (mConsumer.cachedTail-mConsumer.index > 0) break;
+			mConsumer.ring = ring = next;
+			mConsumer.index = 0;
+			mConsumer.cachedTail = ring.indexes.get(TAIL);
+		}
+		return (int) (mConsumer.cachedTail-mConsumer.index);
+	}
+
+	/**
+	 * Producer side. The slot at that index was held by the consumer in the previous ring, 
+	 * the producer waits until the consumer gives it back there.
+	 */
+	private void waitForBorrowedSlot(Ring<E> ring, long index) throws InterruptedException {
+		Ring<E> previous = ring.previous;
+		long release = ring.previousHead+(index-ring.borrowed);
+		if (previous.indexes.get(HEAD)<=release) {
+			// Same condition as a full ring: the slot after the one we need is at release+capacity
+			waitForSlot(previous, release+previous.mask+1);
+		}
+		if (index == ring.mask) ring.previous = null;
+	}
+
+	/** Producer side. Waits until the slot at that index is free, returns the last head read. */
+	private long waitForSlot(Ring<E> ring, long index) throws InterruptedException {
+		long start = System.nanoTime(), head;
+		int spins = 0;
+		try {
+			while (index-(head = ring.indexes.get(HEAD)) > ring.mask) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				if (spins<SPINS) {
+					spins++;
+				} else if (spins<SPINS+YIELDS) {
+					spins++;
+					Thread.yield();
+				} else {
+					mParkedProducer = Thread.currentThread();
+					if (index-ring.indexes.get(HEAD) > ring.mask) {
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+				}
+			}
+			return head;
+		} finally {
+			mParkedProducer = null;
+			mProducerWaits++;
+			mProducerWaitTime += System.nanoTime()-start;
+		}
+	}
+
+	private int waitForPublication(long timeout) throws InterruptedException {
+		long start = System.nanoTime(), now = start;
+		int spins = 0, count = 0;
+		try {
+			while ((count = available()) == 0 && now-start<timeout) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				if (spins<SPINS) {
+					spins++;
+				} else if (spins<SPINS+YIELDS) {
+					spins++;
+					Thread.yield();
+				} else {
+					mParkedConsumer = Thread.currentThread();
+					if (available() == 0) {
+						LockSupport.parkNanos(this, Math.min(PARK_NANOS, timeout-(now-start)));
+					}
+					now = System.nanoTime();
+				}
+			}
+		} finally {
+			mParkedConsumer = null;
+			mConsumerWaits++;
+			mConsumerWaitTime += System.nanoTime()-start;
+		}
+		return count;
+	}
+
+	private static int roundUp(int n) {
+		int capacity = Integer.highestOneBit(n);
+		return capacity<n ? capacity<<1 : capacity;
+	}
+
+}
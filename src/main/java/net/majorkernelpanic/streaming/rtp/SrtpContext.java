@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import android.util.Base64;
+
+/**
+ * RFC 3711.
+ *
+ * SRTP and SRTCP with AES_CM_128_HMAC_SHA1_80, the default crypto suite. The master key and
+ * salt are advertised with an SDES a=crypto attribute (RFC 4568), see {@link #getSessionDescription()},
+ * and are used in both directions: for the packets we send and for the RTCP packets of receivers.
+ *
+ * Packets are encrypted in place in their buffer, the authentication tag is written right after them.
+ * One Cipher and one Mac per direction are created with the context and reused for every packet.
+ * The counter blocks of the keystream are prepared once with the session salt, only the SSRC and
+ * the index of the packet are patched in them before the whole keystream of the packet is
+ * generated with a single call to the Cipher.
+ *
+ * Several SSRCs can be protected by the same context (the media, RTX and FEC streams of a track),
+ * each one has its own rollover counter.
+ */
+public class SrtpContext {
+
+	public final static String TAG = "SrtpContext";
+
+	public final static String CRYPTO_SUITE = "AES_CM_128_HMAC_SHA1_80";
+
+	/** Length of the authentication tag appended to packets. */
+	public final static int TAG_LENGTH = 10;
+
+	/** Length of the E flag and SRTCP index appended to RTCP packets, before the tag. */
+	public final static int SRTCP_INDEX_LENGTH = 4;
+
+	private final static int BLOCKS = (RtpSocket.MTU+15)/16;
+	private final static int MAX_SSRCS = 4;
+
+	private final byte[] mMasterKey = new byte[16], mMasterSalt = new byte[14];
+
+	private final Keys mRtp, mRtcp;
+
+	// Rollover counters of the SSRCs
+	private final int[] mSsrcs = new int[MAX_SSRCS], mRocs = new int[MAX_SSRCS], mLastSeqs = new int[MAX_SSRCS];
+	private int mSsrcCount = 0;
+	private int mRtcpIndex = 0;
+
+	/** Creates a context with a random master key and salt. */
+	public SrtpContext() throws GeneralSecurityException {
+		this(random(30));
+	}
+
+	/**
+	 * Creates a context from the concatenation of a master key and a master salt.
+	 * @param keyAndSalt 16 bytes of key followed by 14 bytes of salt
+	 */
+	public SrtpContext(byte[] keyAndSalt) throws GeneralSecurityException {
+		if (keyAndSalt.length != 30) throw new IllegalArgumentException("The master key and salt must be 30 bytes long.");
+		System.arraycopy(keyAndSalt, 0, mMasterKey, 0, 16);
+		System.arraycopy(keyAndSalt, 16, mMasterSalt, 0, 14);
+		Cipher kdf = Cipher.getInstance("AES/ECB/NoPadding");
+		kdf.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mMasterKey, "AES"));
+		mRtp = new Keys(kdf, 0);
+		mRtcp = new Keys(kdf, 3);
+	}
+
+	/** Returns the a=crypto attribute that carries the master key and salt. */
+	public String getSessionDescription() {
+		byte[] keyAndSalt = new byte[30];
+		System.arraycopy(mMasterKey, 0, keyAndSalt, 0, 16);
+		System.arraycopy(mMasterSalt, 0, keyAndSalt, 16, 14);
+		return "a=crypto:1 "+CRYPTO_SUITE+" inline:"+Base64.encodeToString(keyAndSalt, Base64.NO_WRAP)+"\r\n";
+	}
+
+	/**
+	 * Encrypts and authenticates an RTP packet in place.
+	 * @param packet The packet, the buffer must have room for the {@link #TAG_LENGTH} bytes of the tag after it
+	 * @param length The length of the packet
+	 * @return The length of the SRTP packet
+	 */
+	public synchronized int protect(ByteBuffer packet, int length) {
+		encrypt(packet, length);
+		return authenticate(packet, length);
+	}
+
+	/**
+	 * Encrypts the payload of an RTP packet in place, and updates the rollover counter of its SSRC.
+	 * Its header can still be modified (header extensions) before it is authenticated.
+	 */
+	synchronized void encrypt(ByteBuffer packet, int length) {
+		int ssrc = packet.getInt(8);
+		int seq = packet.getShort(2)&0xFFFF;
+		int roc = updateRoc(ssrc, seq);
+		int offset = getHeaderLength(packet);
+		long index = ((long) roc)<<16 | seq;
+		mRtp.transform(packet, offset, length-offset, ssrc, index, 8);
+	}
+
+	/**
+	 * Computes the tag of an RTP packet encrypted with {@link #encrypt(ByteBuffer, int)} and writes it after the packet.
+	 * @return The length of the SRTP packet
+	 */
+	synchronized int authenticate(ByteBuffer packet, int length) {
+		int roc = getRoc(packet.getInt(8));
+		packet.limit(length).position(0);
+		mRtp.mMac.update(packet);
+		mRtp.mRoc[0] = (byte) (roc>>24);
+		mRtp.mRoc[1] = (byte) (roc>>16);
+		mRtp.mRoc[2] = (byte) (roc>>8);
+		mRtp.mRoc[3] = (byte) roc;
+		mRtp.mMac.update(mRtp.mRoc);
+		writeTag(mRtp, packet, length);
+		return length+TAG_LENGTH;
+	}
+
+	/**
+	 * Encrypts and authenticates an RTCP packet in place.
+	 * @param buffer The buffer that contains the packet, it must have room for
+	 * {@link #SRTCP_INDEX_LENGTH} + {@link #TAG_LENGTH} bytes after it
+	 * @param length The length of the packet
+	 * @return The length of the SRTCP packet
+	 */
+	public synchronized int protectRtcp(byte[] buffer, int length) {
+		ByteBuffer packet = mRtcp.wrap(buffer);
+		int ssrc = packet.getInt(4);
+		mRtcpIndex = (mRtcpIndex+1)&0x7FFFFFFF;
+		mRtcp.transform(packet, 8, length-8, ssrc, mRtcpIndex, 10);
+		// The E flag is set, the packet is encrypted
+		packet.putInt(length, 0x80000000 | mRtcpIndex);
+		packet.limit(length+SRTCP_INDEX_LENGTH).position(0);
+		mRtcp.mMac.update(packet);
+		writeTag(mRtcp, packet, length+SRTCP_INDEX_LENGTH);
+		return length+SRTCP_INDEX_LENGTH+TAG_LENGTH;
+	}
+
+	/**
+	 * Checks the tag of an SRTCP packet and decrypts it in place.
+	 * @return The length of the RTCP packet, or -1 if the packet is not authentic
+	 */
+	public synchronized int unprotectRtcp(byte[] buffer, int offset, int length) {
+		int end = offset+length-TAG_LENGTH;
+		if (length<8+SRTCP_INDEX_LENGTH+TAG_LENGTH) return -1;
+		mRtcp.mMac.update(buffer, offset, length-TAG_LENGTH);
+		byte[] tag = mRtcp.mTag;
+		try {
+			mRtcp.mMac.doFinal(tag, 0);
+		} catch (GeneralSecurityException e) {
+			return -1;
+		}
+		int diff = 0;
+		for (int i=0;i<TAG_LENGTH;i++) diff |= tag[i]^buffer[end+i];
+		if (diff != 0) return -1;
+		end -= SRTCP_INDEX_LENGTH;
+		int index = (buffer[end]&0xFF)<<24 | (buffer[end+1]&0xFF)<<16 | (buffer[end+2]&0xFF)<<8 | (buffer[end+3]&0xFF);
+		if (index<0) {
+			// E flag set
+			ByteBuffer packet = ByteBuffer.wrap(buffer, 0, offset+length);
+			int ssrc = packet.getInt(offset+4);
+			mRtcp.transform(packet, offset+8, end-offset-8, ssrc, index&0x7FFFFFFF, 10);
+		}
+		return end-offset;
+	}
+
+	/** Returns the rollover counter of the SSRC after the packet with that sequence number. */
+	private int updateRoc(int ssrc, int seq) {
+		for (int i=0;i<mSsrcCount;i++) {
+			if (mSsrcs[i] == ssrc) {
+				// The sequence number wrapped around
+				if (seq<mLastSeqs[i] && mLastSeqs[i]-seq>0x8000) mRocs[i]++;
+				mLastSeqs[i] = seq;
+				return mRocs[i];
+			}
+		}
+		int i = mSsrcCount<MAX_SSRCS ? mSsrcCount++ : MAX_SSRCS-1;
+		mSsrcs[i] = ssrc;
+		mRocs[i] = 0;
+		mLastSeqs[i] = seq;
+		return 0;
+	}
+
+	private int getRoc(int ssrc) {
+		for (int i=0;i<mSsrcCount;i++) {
+			if (mSsrcs[i] == ssrc) return mRocs[i];
+		}
+		return 0;
+	}
+
+	private void writeTag(Keys session, ByteBuffer packet, int offset) {
+		try {
+			session.mMac.doFinal(session.mTag, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		packet.limit(offset+TAG_LENGTH).position(offset);
+		packet.put(session.mTag, 0, TAG_LENGTH);
+	}
+
+	/** Length of the fixed header, the CSRCs and the header extension of an RTP packet. */
+	private static int getHeaderLength(ByteBuffer packet) {
+		int length = RtpSocket.RTP_HEADER_LENGTH+(packet.get(0)&0x0F)*4;
+		if ((packet.get(0)&0x10) != 0) {
+			length += 4+(packet.getShort(length+2)&0xFFFF)*4;
+		}
+		return length;
+	}
+
+	private static byte[] random(int length) {
+		byte[] bytes = new byte[length];
+		new SecureRandom().nextBytes(bytes);
+		return bytes;
+	}
+
+	/** The session keys, the Cipher and the Mac of one direction, RTP or RTCP. */
+	private final class Keys {
+
+		final Cipher mCipher;
+		final Mac mMac;
+		final byte[] mSalt = new byte[14];
+		final byte[] mCounters = new byte[BLOCKS*16], mKeystream = new byte[BLOCKS*16];
+		final byte[] mTag = new byte[20], mRoc = new byte[4];
+		private byte[] mWrapped = null;
+		private ByteBuffer mWrapper = null;
+
+		/** Derives the session keys, labels go from firstLabel to firstLabel+2 (RFC 3711, section 4.3). */
+		Keys(Cipher kdf, int firstLabel) throws GeneralSecurityException {
+			byte[] key = derive(kdf, firstLabel, 16);
+			byte[] auth = derive(kdf, firstLabel+1, 20);
+			System.arraycopy(derive(kdf, firstLabel+2, 14), 0, mSalt, 0, 14);
+			mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+			mMac = Mac.getInstance("HmacSHA1");
+			mMac.init(new SecretKeySpec(auth, "HmacSHA1"));
+			// The salt and the block counter never change in the counter blocks
+			for (int b=0;b<BLOCKS;b++) {
+				System.arraycopy(mSalt, 0, mCounters, b*16, 14);
+				mCounters[b*16+14] = (byte) (b>>8);
+				mCounters[b*16+15] = (byte) b;
+			}
+		}
+
+		private byte[] derive(Cipher kdf, int label, int length) throws GeneralSecurityException {
+			byte[] iv = new byte[(length+15)/16*16];
+			for (int b=0;b<iv.length/16;b++) {
+				System.arraycopy(mMasterSalt, 0, iv, b*16, 14);
+				iv[b*16+7] ^= label;
+				iv[b*16+15] = (byte) b;
+			}
+			byte[] out = kdf.doFinal(iv);
+			byte[] result = new byte[length];
+			System.arraycopy(out, 0, result, 0, length);
+			return result;
+		}
+
+		/**
+		 * XORs the keystream of the packet with length bytes of the buffer, starting at offset.
+		 * @param indexOffset Where the index goes in the IV: 8 for SRTP (48 bits), 10 for SRTCP (31 bits)
+		 */
+		void transform(ByteBuffer packet, int offset, int length, int ssrc, long index, int indexOffset) {
+			if (length<=0) return;
+			int blocks = (length+15)/16;
+			for (int b=0;b<blocks;b++) {
+				int p = b*16;
+				mCounters[p+4] = (byte) (mSalt[4]^(ssrc>>24));
+				mCounters[p+5] = (byte) (mSalt[5]^(ssrc>>16));
+				mCounters[p+6] = (byte) (mSalt[6]^(ssrc>>8));
+				mCounters[p+7] = (byte) (mSalt[7]^ssrc);
+				for (int i=8;i<14;i++) {
+					int shift = (13-i)*8;
+					mCounters[p+i] = (byte) (mSalt[i]^(i>=indexOffset ? index>>shift : 0));
+				}
+			}
+			try {
+				mCipher.doFinal(mCounters, 0, blocks*16, mKeystream, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+			if (packet.hasArray()) {
+				byte[] array = packet.array();
+				int base = packet.arrayOffset()+offset;
+				for (int i=0;i<length;i++) array[base+i] ^= mKeystream[i];
+			} else {
+				for (int i=0;i<length;i++) packet.put(offset+i, (byte) (packet.get(offset+i)^mKeystream[i]));
+			}
+		}
+
+		/** Wraps the buffer of the sender report, the wrapper is kept as long as the buffer does not change. */
+		ByteBuffer wrap(byte[] buffer) {
+			if (mWrapped != buffer) {
+				mWrapped = buffer;
+				mWrapper = ByteBuffer.wrap(buffer);
+			}
+			mWrapper.clear();
+			return mWrapper;
+		}
+
+	}
+
+}
@@ -18,11 +18,19 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 
+/**
+ * Separates the packets interleaved in an RTSP connection (RFC 2326, section 10.12) from the
+ * RTSP messages. Packets received on a channel that has an {@link RtcpReceiver} are handed
+ * over to it, other packets are discarded, and RTSP messages can be read from this InputStream.
+ * A '$' is only considered as the beginning of a packet at the beginning of a line.
+ */
 class RtcpDeinterleaver extends InputStream implements Runnable {
 	
 	public final static String TAG = "RtcpDeinterleaver";
@@ -31,30 +39,73 @@ class RtcpDeinterleaver extends InputStream implements Runnable {
 	private InputStream mInputStream;
 	private PipedInputStream mPipedInputStream;
 	private PipedOutputStream mPipedOutputStream;
-	private byte[] mBuffer;
+	private byte[] mBuffer, mLine;
+	private final RtcpReceiver[] mReceivers = new RtcpReceiver[256];
 	
 	public RtcpDeinterleaver(InputStream inputStream) {
-		mInputStream = inputStream;
+		mInputStream = new BufferedInputStream(inputStream);
 		mPipedInputStream = new PipedInputStream(4096);
 		try {
 			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
 		} catch (IOException e) {}
-		mBuffer = new byte[1024];
-		new Thread(this).start();
+		mBuffer = new byte[65535];
+		mLine = new byte[1024];
+		Thread thread = new Thread(this, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Hands the packets received on the channel over to the receiver, null discards them. */
+	public void setReceiver(int channel, RtcpReceiver receiver) {
+		synchronized (mReceivers) {
+			mReceivers[channel&0xFF] = receiver;
+		}
 	}
 
 	@Override
 	public void run() {
 		try {
-			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+			int c, length = 0;
+			boolean lineStart = true;
+			while ((c = mInputStream.read()) != -1) {
+				if (lineStart && c == '$') {
+					int channel = readByte();
+					int size = readByte()<<8 | readByte();
+					readFully(size);
+					RtcpReceiver receiver;
+					synchronized (mReceivers) {
+						receiver = mReceivers[channel];
+					}
+					if (receiver != null) receiver.receive(mBuffer, 0, size);
+					continue;
+				}
+				mLine[length++] = (byte) c;
+				lineStart = c == '\n';
+				if (lineStart || length == mLine.length) {
+					mPipedOutputStream.write(mLine, 0, length);
+					mPipedOutputStream.flush();
+					length = 0;
+				}
 			}
+			throw new IOException("Connection lost");
 		} catch (IOException e) {
+			mIOException = e;
 			try {
-				mPipedInputStream.close();
+				mPipedOutputStream.close();
 			} catch (IOException ignore) {}
-			mIOException = e;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int c = mInputStream.read();
+		if (c<0) throw new IOException("Connection lost");
+		return c;
+	}
+
+	private void readFully(int length) throws IOException {
+		for (int offset=0, n;offset<length;offset+=n) {
+			n = mInputStream.read(mBuffer, offset, length-offset);
+			if (n<0) throw new IOException("Connection lost");
 		}
 	}
 
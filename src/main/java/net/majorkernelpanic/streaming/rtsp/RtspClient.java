@@ -33,13 +33,15 @@ import java.util.Locale;
 import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.util.Log;
 
 /**
  * RFC 2326.
@@ -115,6 +117,7 @@ public class RtspClient {
 	private String mSessionID;
 	private String mAuthorization;
 	private BufferedReader mBufferedReader;
+	private RtcpDeinterleaver mDeinterleaver;
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private Handler mMainHandler;
@@ -229,7 +232,7 @@ public class RtspClient {
 				if (mState != STATE_STOPPED) return;
 				mState = STATE_STARTING;
 				
-				Log.d(TAG,"Connecting to RTSP server...");
+				Logger.d(TAG, "Connecting to RTSP server...");
 				
 				// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
 				mParameters = mTmpParameters.clone();
@@ -296,6 +299,7 @@ public class RtspClient {
 		try {
 			mSocket.close();
 		} catch (Exception ignore) {}
+		if (mOutputStream != null) InterleavedWriter.release(mOutputStream);
 		mHandler.removeCallbacks(mConnectionMonitor);
 		mHandler.removeCallbacks(mRetryConnection);
 		mState = STATE_STOPPED;
@@ -303,8 +307,17 @@ public class RtspClient {
 	
 	private void tryConnection() throws IOException {
 		mCSeq = 0;
+		// The writer of the previous connection, if any, is not needed anymore
+		if (mOutputStream != null) InterleavedWriter.release(mOutputStream);
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		if (mParameters.transport == TRANSPORT_TCP) {
+			// The server may send RTCP packets interleaved with its responses
+			mDeinterleaver = new RtcpDeinterleaver(mSocket.getInputStream());
+			mBufferedReader = new BufferedReader(new InputStreamReader(mDeinterleaver));
+		} else {
+			mDeinterleaver = null;
+			mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		}
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
 		sendRequestAnnounce();
 		sendRequestSetup();
@@ -322,16 +335,16 @@ public class RtspClient {
 				"Content-Length: " + body.length() + "\r\n" +
 				"Content-Type: application/sdp\r\n\r\n" +
 				body;
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
 		Response response = Response.parseResponse(mBufferedReader);
 
 		if (response.headers.containsKey("server")) {
-			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
+			Logger.v(TAG, "RTSP server name:{}", response.headers.get("server"));
 		} else {
-			Log.v(TAG,"RTSP server name unknown");
+			Logger.v(TAG, "RTSP server name unknown");
 		}
 
 		if (response.headers.containsKey("session")) {
@@ -373,7 +386,7 @@ public class RtspClient {
 					"Content-Type: application/sdp\r\n\r\n" +
 					body;
 
-			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+			Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
@@ -394,13 +407,14 @@ public class RtspClient {
 		for (int i=0;i<2;i++) {
 			Stream stream = mParameters.session.getTrack(i);
 			if (stream != null) {
+				String profile = ((MediaStream) stream).getSrtp() != null ? "RTP/SAVP" : "RTP/AVP";
 				String params = mParameters.transport==TRANSPORT_TCP ? 
 						("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
 				String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
-						"Transport: RTP/AVP/"+params+"\r\n" +
+						"Transport: "+profile+"/"+params+"\r\n" +
 						addHeaders();
 
-				Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+				Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 
 				mOutputStream.write(request.getBytes("UTF-8"));
 				mOutputStream.flush();
@@ -421,14 +435,17 @@ public class RtspClient {
 					try {
 						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
 						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
+						Logger.d(TAG, "Setting destination ports: {}, {}", Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
 					} catch (Exception e) {
 						e.printStackTrace();
 						int[] ports = stream.getDestinationPorts();
-						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
+						Logger.d(TAG, "Server did not specify ports, using default ports: {}-{}", ports[0], ports[1]);
 					}
 				} else {
 					stream.setOutputStream(mOutputStream, (byte)(2*i));
+					if (stream instanceof MediaStream) {
+						mDeinterleaver.setReceiver(2*i+1, ((MediaStream) stream).getRtcpReceiver());
+					}
 				}
 			}
 		}
@@ -441,7 +458,7 @@ public class RtspClient {
 		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
 				"Range: npt=0.000-\r\n" +
 				addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
 		Response.parseResponse(mBufferedReader);
@@ -452,7 +469,7 @@ public class RtspClient {
 	 */
 	private void sendRequestTeardown() throws IOException {
 		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
 	}
@@ -462,7 +479,7 @@ public class RtspClient {
 	 */
 	private void sendRequestOption() throws IOException {
 		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		Logger.i(TAG, request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
 		Response.parseResponse(mBufferedReader);
@@ -491,7 +508,7 @@ public class RtspClient {
 				} catch (IOException e) {
 					// Happens if the OPTION request fails
 					postMessage(ERROR_CONNECTION_LOST);
-					Log.e(TAG, "Connection lost with the server...");
+					Logger.e(TAG, "Connection lost with the server...");
 					mParameters.session.stop();
 					mHandler.post(mRetryConnection);
 				}
@@ -505,7 +522,7 @@ public class RtspClient {
 		public void run() {
 			if (mState == STATE_STARTED) {
 				try {
-					Log.e(TAG, "Trying to reconnect...");
+					Logger.e(TAG, "Trying to reconnect...");
 					tryConnection();
 					try {
 						mParameters.session.start();
@@ -608,7 +625,7 @@ public class RtspClient {
 			}
 			if (line==null) throw new SocketException("Connection lost");
 
-			Log.d(TAG, "Response from server: "+response.status);
+			Logger.d(TAG, "Response from server: {}", response.status);
 
 			return response;
 		}
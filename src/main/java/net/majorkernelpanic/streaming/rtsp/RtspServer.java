@@ -32,7 +32,10 @@ import com.nu.art.core.generics.Processor;
 import com.nu.art.cyborg.core.CyborgBuilder;
 import com.nu.art.cyborg.core.CyborgServiceBase;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -282,6 +285,20 @@ public class RtspServer
 		return bitrate;
 	}
 
+	/**
+	 * Returns the metrics of the sessions being streamed, under "session0", "session1"...
+	 */
+	public MetricsRegistry getMetrics() {
+		MetricsRegistry metrics = new MetricsRegistry();
+		int i = 0;
+		for (Session session : mSessions.keySet()) {
+			if (session != null && session.isStreaming()) {
+				metrics.addChild("session"+(i++), session.getMetrics());
+			}
+		}
+		return metrics;
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		return START_STICKY;
@@ -398,25 +415,25 @@ public class RtspServer
 				mServer = new ServerSocket(mPort);
 				start();
 			} catch (BindException e) {
-				Log.e(TAG, "Port already in use !");
+				Logger.e(TAG, "Port already in use !");
 				postError(e, ERROR_BIND_FAILED);
 				throw e;
 			}
 		}
 
 		public void run() {
-			Log.i(TAG, "RTSP server listening on port " + mServer.getLocalPort());
+			Logger.i(TAG, "RTSP server listening on port {}", mServer.getLocalPort());
 			while (!Thread.interrupted()) {
 				try {
 					new WorkerThread(mServer.accept()).start();
 				} catch (SocketException e) {
 					break;
 				} catch (IOException e) {
-					Log.e(TAG, e.getMessage());
+					Logger.e(TAG, "{}", e.getMessage());
 					continue;
 				}
 			}
-			Log.i(TAG, "RTSP server stopped !");
+			Logger.i(TAG, "RTSP server stopped !");
 		}
 
 		public void kill() {
@@ -455,7 +472,7 @@ public class RtspServer
 			Request request;
 			Response response;
 
-			Log.i(TAG, "Connection from " + mClient.getInetAddress().getHostAddress());
+			Logger.i(TAG, "Connection from {}", mClient.getInetAddress().getHostAddress());
 
 			while (!Thread.interrupted()) {
 
@@ -481,7 +498,7 @@ public class RtspServer
 					} catch (Exception e) {
 						// This alerts the main thread that something has gone wrong in this thread
 						postError(e, ERROR_START_FAILED);
-						Log.e(TAG, e.getMessage() != null ? e.getMessage() : "An error occurred");
+						Logger.e(TAG, "{}", e.getMessage() != null ? e.getMessage() : "An error occurred");
 						e.printStackTrace();
 						response = new Response(request);
 					}
@@ -492,7 +509,7 @@ public class RtspServer
 				try {
 					response.send(mOutput);
 				} catch (IOException e) {
-					Log.e(TAG, "Response was not sent properly");
+					Logger.e(TAG, "Response was not sent properly");
 					break;
 				}
 			}
@@ -509,7 +526,7 @@ public class RtspServer
 				mClient.close();
 			} catch (IOException ignore) {}
 
-			Log.i(TAG, "Client disconnected");
+			Logger.i(TAG, "Client disconnected");
 		}
 
 		public Response processRequest(Request request)
@@ -606,7 +623,8 @@ public class RtspServer
 						postMessage(MESSAGE_STREAMING_STARTED);
 					}
 
-					response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast"
+					String profile = ((MediaStream) mSession.getTrack(trackId)).getSrtp() != null ? "RTP/SAVP" : "RTP/AVP";
+					response.attributes = "Transport: " + profile + "/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast"
 																																																										 : "unicast") + ";destination=" + mSession.getDestination() + ";client_port=" + p1 + "-" + p2 + ";server_port=" + src[0] + "-" + src[1] + ";ssrc=" + Integer
 							.toHexString(ssrc) + ";mode=play\r\n" + "Session: " + "1185d20035702ca" + "\r\n" + "Cache-Control: no-cache\r\n";
 					response.status = Response.STATUS_OK;
@@ -650,7 +668,7 @@ public class RtspServer
 								/* ********************************* Unknown method ? ******************************* */
 								/* ********************************************************************************** */
 				else {
-					Log.e(TAG, "Command unknown: " + request);
+					Logger.e(TAG, "Command unknown: {}", request);
 					response.status = Response.STATUS_BAD_REQUEST;
 				}
 			}
@@ -722,7 +740,7 @@ public class RtspServer
 				throw new SocketException("Client disconnected");
 
 			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
-			Log.e(TAG, request.method + " " + request.uri);
+			Logger.e(TAG, "{} {}", request.method, request.uri);
 
 			return request;
 		}
@@ -765,14 +783,19 @@ public class RtspServer
 			try {
 				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ", ""));
 			} catch (Exception e) {
-				Log.e(TAG, "Error parsing CSeq: " + (e.getMessage() != null ? e.getMessage() : ""));
+				Logger.e(TAG, "Error parsing CSeq: {}", e.getMessage() != null ? e.getMessage() : "");
 			}
 
-			String serverName = RtspServer.serverName;
-			String response = "RTSP/1.0 " + status + "\r\n" + "Server: " + serverName + "\r\n" + (seqid >= 0 ? ("Cseq: " + seqid + "\r\n")
-																																																			 : "") + "Content-Length: " + content.length() + "\r\n" + attributes + "\r\n" + content;
+			StringBuilder builder = new StringBuilder(128+attributes.length()+content.length());
+			builder.append("RTSP/1.0 ").append(status).append("\r\n");
+			builder.append("Server: ").append(RtspServer.serverName).append("\r\n");
+			if (seqid >= 0) builder.append("Cseq: ").append(seqid).append("\r\n");
+			builder.append("Content-Length: ").append(content.length()).append("\r\n");
+			builder.append(attributes).append("\r\n").append(content);
+
+			String response = builder.toString();
 
-			Log.d(TAG, response.replace("\r", ""));
+			if (Logger.isLoggable(Log.DEBUG)) Logger.d(TAG, response.replace("\r", ""));
 
 			output.write(response.getBytes());
 		}
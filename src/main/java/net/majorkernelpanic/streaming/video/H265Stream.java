@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.hw.CodecManager;
+import net.majorkernelpanic.streaming.hw.CodecManager.Codec;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences.Editor;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 (HEVC) from the camera of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * 
+ * H.265 is only encoded by a MediaCodec fed by a surface ({@link #MODE_MEDIACODEC_API_2}), 
+ * which needs Android 5.0. The VPS, SPS and PPS of the SDP are those of a short test of the encoder.
+ */
+public class H265Stream extends VideoStream {
+
+	public final static String TAG = "H265Stream";
+
+	private final static String MIME_TYPE = "video/hevc";
+
+	/** How long the test of the encoder may take to output the parameter sets, in ms. */
+	private final static int TEST_DURATION = 3000;
+
+	private byte[] mVPS, mSPS, mPPS;
+
+	/**
+	 * Constructs the H.265 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public H265Stream() {
+		this(CameraInfo.CAMERA_FACING_BACK);
+	}
+
+	/**
+	 * Constructs the H.265 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(int cameraId) {
+		super(cameraId);
+		mMimeType = MIME_TYPE;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer();
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mSPS == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+		"a=rtpmap:96 H265/90000\r\n" +
+		"a=fmtp:96 sprop-vps="+Base64.encodeToString(mVPS, Base64.NO_WRAP)+";sprop-sps="+Base64.encodeToString(mSPS, Base64.NO_WRAP)+";sprop-pps="+Base64.encodeToString(mPPS, Base64.NO_WRAP)+";\r\n";
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			((H265Packetizer)mPacketizer).setStreamParameters(mVPS, mSPS, mPPS);
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		if (Build.VERSION.SDK_INT<21) {
+			throw new ConfNotSupportedException("H.265 needs Android 5.0 or later.");
+		}
+		mMode = MODE_MEDIACODEC_API_2;
+		mQuality = mRequestedQuality.clone();
+		testH265();
+	}
+
+	/** H.265 is not recorded with the MediaRecorder API. */
+	protected void encodeWithMediaRecorder() throws IOException, ConfNotSupportedException {
+		throw new ConfNotSupportedException("H.265 can only be encoded with the MediaCodec API.");
+	}
+
+	@SuppressLint("NewApi")
+	protected MediaCodec createSurfaceEncoder() throws IOException {
+		return MediaCodec.createByCodecName(mEncoderName);
+	}
+
+	/** 
+	 * Picks an encoder and determines the vps, sps and pps with the given configuration 
+	 * (bit rate, frame rate, resolution). Should not be called by the UI thread.
+	 **/
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	private void testH265() throws IOException {
+		int colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+		Codec[] encoders = CodecManager.findEncodersForMimeType(MIME_TYPE);
+		Codec codec = null;
+
+		// Hardware encoders first, the software ones are too slow for the camera
+		for (int i=0;i<encoders.length;i++) {
+			boolean software = encoders[i].name.startsWith("OMX.google.") || encoders[i].name.startsWith("c2.android.");
+			if (codec == null || !software) codec = encoders[i];
+			if (!software) break;
+		}
+		if (codec == null) throw new ConfNotSupportedException("No H.265 encoder found on this phone.");
+		mEncoderName = codec.name;
+		if (codec.formats.length>0) colorFormat = codec.formats[0];
+
+		String key = PREF_PREFIX+"h265-mc-"+mQuality.framerate+","+mQuality.resX+","+mQuality.resY;
+		if (mSettings != null && mSettings.contains(key)) {
+			String[] s = mSettings.getString(key, "").split(",");
+			if (s.length == 4 && s[0].equals(mEncoderName)) {
+				mVPS = Base64.decode(s[1], Base64.NO_WRAP);
+				mSPS = Base64.decode(s[2], Base64.NO_WRAP);
+				mPPS = Base64.decode(s[3], Base64.NO_WRAP);
+				return;
+			}
+		}
+
+		Log.i(TAG,"Testing H265 support with "+mEncoderName+"...");
+
+		// Gray pictures are encoded until the encoder outputs its parameter sets
+		byte[][] sets = new byte[3][];
+		byte[] picture = new byte[mQuality.resX*mQuality.resY*3/2];
+		Arrays.fill(picture, (byte) 128);
+		MediaCodec encoder = MediaCodec.createByCodecName(mEncoderName);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mQuality.resX, mQuality.resY);
+		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
+		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		try {
+			encoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			encoder.start();
+			try {
+				ByteBuffer[] inputBuffers = encoder.getInputBuffers();
+				ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
+				MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+				long timeout = System.currentTimeMillis()+TEST_DURATION;
+				int frame = 0, index;
+				while ((sets[0] == null || sets[1] == null || sets[2] == null) && System.currentTimeMillis()<timeout) {
+					index = encoder.dequeueInputBuffer(10000);
+					if (index>=0) {
+						ByteBuffer input = inputBuffers[index];
+						input.clear();
+						int size = Math.min(input.capacity(), picture.length);
+						input.put(picture, 0, size);
+						encoder.queueInputBuffer(index, 0, size, frame++*1000000L/mQuality.framerate, 0);
+					}
+					index = encoder.dequeueOutputBuffer(info, 10000);
+					if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+						outputBuffers = encoder.getOutputBuffers();
+					} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+						// Encoders usually put the three of them in csd-0
+						ByteBuffer csd = encoder.getOutputFormat().getByteBuffer("csd-0");
+						if (csd != null) merge(sets, H265Packetizer.findParameterSets(csd, csd.position(), csd.remaining()));
+					} else if (index>=0) {
+						merge(sets, H265Packetizer.findParameterSets(outputBuffers[index], info.offset, info.size));
+						encoder.releaseOutputBuffer(index, false);
+					}
+				}
+			} finally {
+				encoder.stop();
+			}
+		} catch (IllegalStateException e) {
+			throw new ConfNotSupportedException(e.getMessage());
+		} finally {
+			encoder.release();
+		}
+
+		if (sets[0] == null || sets[1] == null || sets[2] == null) {
+			throw new ConfNotSupportedException("The H.265 encoder did not output its parameter sets.");
+		}
+		mVPS = sets[0];
+		mSPS = sets[1];
+		mPPS = sets[2];
+
+		Log.i(TAG,"H265 Test succeded...");
+
+		// Save test result
+		if (mSettings != null) {
+			Editor editor = mSettings.edit();
+			editor.putString(key, mEncoderName+","+Base64.encodeToString(mVPS, Base64.NO_WRAP)+","
+					+Base64.encodeToString(mSPS, Base64.NO_WRAP)+","+Base64.encodeToString(mPPS, Base64.NO_WRAP));
+			editor.commit();
+		}
+	}
+
+	private static void merge(byte[][] sets, byte[][] found) {
+		for (int i=0;i<sets.length;i++) {
+			if (sets[i] == null) sets[i] = found[i];
+		}
+	}
+
+}
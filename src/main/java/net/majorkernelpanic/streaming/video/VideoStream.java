@@ -32,7 +32,8 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.log.Logger;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -43,6 +44,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -483,7 +486,7 @@ public abstract class VideoStream extends MediaStream {
 		mCamera.setPreviewCallbackWithBuffer(callback);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+		mPacketizer.setFrameSource(new MediaCodecFrameSource(mMediaCodec));
 		mPacketizer.start();
 
 		mStreaming = true;
@@ -506,10 +509,8 @@ public abstract class VideoStream extends MediaStream {
 		// Estimates the frame rate of the camera
 		measureFramerate();
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-		mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+		mMediaCodec = createSurfaceEncoder();
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -520,13 +521,39 @@ public abstract class VideoStream extends MediaStream {
 		mMediaCodec.start();
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+		mPacketizer.setFrameSource(new MediaCodecFrameSource(mMediaCodec));
 		mPacketizer.start();
 
 		mStreaming = true;
 
 	}
 
+	/** The MediaCodec of the stream follows the target bitrate of the bandwidth estimator, from Android 4.4. */
+	@SuppressLint("NewApi")
+	@Override
+	protected void onTargetBitrate(int bitrate) {
+		MediaCodec codec = mMediaCodec;
+		if (codec == null || Build.VERSION.SDK_INT<Build.VERSION_CODES.KITKAT) return;
+		Bundle parameters = new Bundle();
+		parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+		try {
+			codec.setParameters(parameters);
+			Logger.d(TAG, "Target bitrate: {} kbps", bitrate/1000);
+		} catch (IllegalStateException e) {
+			// The encoder is being released
+		}
+	}
+
+	/**
+	 * Creates the encoder used with {@link #MODE_MEDIACODEC_API_2}, 
+	 * by default the H.264 encoder found by the {@link EncoderDebugger}.
+	 */
+	@SuppressLint("NewApi")
+	protected MediaCodec createSurfaceEncoder() throws IOException {
+		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+		return MediaCodec.createByCodecName(debugger.getEncoderName());
+	}
+
 	/**
 	 * Returns a description of the stream using SDP. 
 	 * This method can only be called after {@link Stream#configure()}.